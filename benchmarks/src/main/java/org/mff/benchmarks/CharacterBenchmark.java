@@ -0,0 +1,67 @@
+package org.mff.benchmarks;
+import java.util.concurrent.TimeUnit;
+
+import org.mff.Character;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the construction of a character, the recomputation of the modifiers and the rendering of the sheet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CharacterBenchmark {
+    private Character character;
+    private int value;
+
+    @Setup
+    public void setup() {
+        character = new Character();
+    }
+
+    /**
+     * Creates a new character with all its modifiers.
+     */
+    @Benchmark
+    public Character construct() {
+        return new Character();
+    }
+
+    /**
+     * Sets a stat, which recomputes the stat, skill and save modifiers.
+     */
+    @Benchmark
+    public Character setStatValue() throws Exception {
+        character.setStatValue("dexterity", 8 + (value++ & 7));
+        return character;
+    }
+
+    /**
+     * Sets the level, which recomputes the proficiency level and the skill and save modifiers.
+     */
+    @Benchmark
+    public Character setLevel() {
+        character.setLevel(1 + (value++ & 15));
+        return character;
+    }
+
+    /**
+     * Renders the character sheet.
+     */
+    @Benchmark
+    public String sheet() {
+        return character.toString();
+    }
+}
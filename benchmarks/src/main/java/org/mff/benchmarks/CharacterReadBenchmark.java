@@ -0,0 +1,79 @@
+package org.mff.benchmarks;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.mff.Character;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares reading all the skills of a character through the copying getters and through the visitor and view API.
+ * Run with "-prof gc" and compare gc.alloc.rate.norm to see the bytes allocated per read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CharacterReadBenchmark {
+    private Character character;
+    private Blackhole blackhole;
+    private Character.AttributeVisitor consumer;
+
+    @Setup
+    public void setup(Blackhole _blackhole) {
+        character = new Character();
+        blackhole = _blackhole;
+        consumer = (attribute, value, mod) -> blackhole.consume(value + mod);
+    }
+
+    /**
+     * Reads the skills through the getters which copy the collections on every call.
+     */
+    @Benchmark
+    public void copyingGetters() {
+        HashMap<String, Integer> profs = character.getAllSkillProfs();
+        HashMap<String, Integer> mods = character.getAllSkillMods();
+        for (String skill : character.getSkills()) {
+            blackhole.consume(profs.get(skill) + mods.get(skill));
+        }
+    }
+
+    /**
+     * Reads the skills through the visitor.
+     */
+    @Benchmark
+    public void visitor() {
+        character.forEachSkill(consumer);
+    }
+
+    /**
+     * Reads the skills through the unmodifiable view and the single value getters.
+     */
+    @Benchmark
+    public void view() {
+        List<String> skills = Character.getSkillsView();
+        for (int i = 0; i < skills.size(); i++) {
+            blackhole.consume(character.getSkillMod(skills.get(i)));
+        }
+    }
+
+    /**
+     * Renders the character sheet.
+     */
+    @Benchmark
+    public String sheet() {
+        return character.toString();
+    }
+}
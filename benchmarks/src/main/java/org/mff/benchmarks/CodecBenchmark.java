@@ -0,0 +1,127 @@
+package org.mff.benchmarks;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.mff.Character;
+import org.mff.Codecs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Measures the throughput of the shared {@link Codecs} for characters and compain metadata over the String, byte array
+ * and ByteBuffer paths, next to a mapper built per use and the line based read the database used before. The GC
+ * profiler adds the bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private Character character;
+    private String characterJson;
+    private byte[] characterBytes;
+    private ByteBuffer characterBuffer;
+    private ByteBuffer directBuffer;
+    private ByteBuffer output;
+    private HashMap<String, String> metadata;
+    private byte[] metadataBytes;
+
+    @Setup
+    public void setup() throws Exception {
+        character = new Character();
+        characterJson = Codecs.writeCharacterString(character);
+        characterBytes = Codecs.writeCharacter(character);
+        characterBuffer = ByteBuffer.wrap(characterBytes);
+        directBuffer = ByteBuffer.allocateDirect(characterBytes.length);
+        directBuffer.put(characterBytes).flip();
+        output = ByteBuffer.allocate(characterBytes.length * 2);
+        metadata = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            metadata.put("player" + i, "Character " + i);
+        }
+        metadataBytes = Codecs.writeMetadata(metadata);
+    }
+
+    @Benchmark
+    public Character readCharacterString() throws Exception {
+        return Codecs.readCharacter(characterJson);
+    }
+
+    @Benchmark
+    public Character readCharacterBytes() throws Exception {
+        return Codecs.readCharacter(characterBytes);
+    }
+
+    @Benchmark
+    public Character readCharacterHeapBuffer() throws Exception {
+        characterBuffer.rewind();
+        return Codecs.readCharacter(characterBuffer);
+    }
+
+    @Benchmark
+    public Character readCharacterDirectBuffer() throws Exception {
+        directBuffer.rewind();
+        return Codecs.readCharacter(directBuffer);
+    }
+
+    /**
+     * Decodes the bytes to a String first, as reading the first line of the file did.
+     */
+    @Benchmark
+    public Character readCharacterViaLine() throws Exception {
+        return Codecs.readCharacter(new String(characterBytes, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Builds a new mapper for the read, as every handler and client did for its connection.
+     */
+    @Benchmark
+    public Character readCharacterNewMapper() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
+        return mapper.readValue(characterBytes, Character.class);
+    }
+
+    @Benchmark
+    public String writeCharacterString() throws Exception {
+        return Codecs.writeCharacterString(character);
+    }
+
+    @Benchmark
+    public byte[] writeCharacterBytes() throws Exception {
+        return Codecs.writeCharacter(character);
+    }
+
+    @Benchmark
+    public ByteBuffer writeCharacterBuffer() throws Exception {
+        output.clear();
+        Codecs.writeCharacter(character, output);
+        return output;
+    }
+
+    @Benchmark
+    public HashMap<String, String> readMetadata() throws Exception {
+        return Codecs.readMetadata(metadataBytes);
+    }
+
+    @Benchmark
+    public byte[] writeMetadata() throws Exception {
+        return Codecs.writeMetadata(metadata);
+    }
+}
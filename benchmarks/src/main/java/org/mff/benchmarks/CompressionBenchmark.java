@@ -0,0 +1,135 @@
+package org.mff.benchmarks;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.mff.Character;
+import org.mff.Compression;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Measures the CPU cost of compressing a payload the way {@link Compression} does, raw Deflate of each payload on its
+ * own, against the bytes it saves. The sizes before and after the compression are printed once per trial, so the
+ * time of deflate and inflate can be read next to the ratio of the same level and dictionary.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+    /**
+     * The payload: a rendered character sheet (VIEW), the JSON of a character (replication, archives) or
+     * a list of 500 character names (LIST).
+     */
+    @Param({"sheet", "json", "list"})
+    public String payload;
+    /**
+     * The Deflate level.
+     */
+    @Param({"1", "6", "9"})
+    public int level;
+    /**
+     * Whether the preset dictionary is used.
+     */
+    @Param({"true", "false"})
+    public boolean dictionary;
+    private byte[] raw;
+    private byte[] preset;
+    private byte[] compressed;
+    private byte[] buffer;
+    private byte[] inflated;
+    private Deflater deflater;
+    private Inflater inflater;
+
+    @Setup
+    public void setup() throws Exception {
+        Character character = new Character();
+        character.setName("Tester");
+        character.setPlayer("bob");
+        character.setCharacterClass("wizard");
+        character.setLevel(5);
+        character.setStatValue("dexterity", 14);
+        character.setStatValue("intelligence", 17);
+        character.setSkillProf("arcana", 1);
+        character.setSaveProf("wisdom", 1);
+        String text = switch (payload) {
+            case "sheet" -> character.toString();
+            case "json" -> {
+                ObjectMapper mapper = new ObjectMapper();
+                mapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
+                yield mapper.writeValueAsString(character);
+            }
+            default -> {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < 500; i++) {
+                    sb.append("Character ").append(i).append('\n');
+                }
+                yield sb.toString();
+            }
+        };
+        raw = text.getBytes(StandardCharsets.UTF_8);
+        preset = Compression.getDictionary();
+        deflater = new Deflater(level, true);
+        inflater = new Inflater(true);
+        buffer = new byte[raw.length + 64];
+        inflated = new byte[raw.length];
+        compressed = Arrays.copyOf(buffer, deflate());
+        System.out.printf("%n%s, level %d, dictionary %b: %d bytes compressed to %d (%.1f %%)%n", payload, level,
+                dictionary, raw.length, compressed.length, 100.0 * compressed.length / raw.length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        deflater.end();
+        inflater.end();
+    }
+
+    /**
+     * Compresses the payload.
+     * @return  the number of the compressed bytes
+     */
+    @Benchmark
+    public int deflate() {
+        deflater.reset();
+        if (dictionary) deflater.setDictionary(preset);
+        deflater.setInput(raw);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        return length;
+    }
+
+    /**
+     * Decompresses the payload.
+     * @return  the number of the decompressed bytes
+     */
+    @Benchmark
+    public int inflate() throws DataFormatException {
+        inflater.reset();
+        if (dictionary) inflater.setDictionary(preset);
+        inflater.setInput(compressed);
+        return inflater.inflate(inflated);
+    }
+}
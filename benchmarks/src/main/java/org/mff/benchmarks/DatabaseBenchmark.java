@@ -0,0 +1,63 @@
+package org.mff.benchmarks;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.mff.Character;
+import org.mff.Database;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading and writing a character through the {@link Database} against a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatabaseBenchmark {
+    private static final String NAME = "Benchmark Character";
+    private Path root;
+    private Character character;
+    private Database database;
+
+    @Setup
+    public void setup() throws Exception {
+        root = Files.createTempDirectory("character_manager-bench");
+        database = Database.getInstance("benchmark", root);
+        character = new Character();
+        character.setName(NAME);
+        database.writeCharacter(character);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> walk = Files.walk(root)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Character readCharacter() throws IOException {
+        return database.readCharacter(NAME);
+    }
+
+    @Benchmark
+    public void writeCharacter() throws IOException {
+        database.writeCharacter(character);
+    }
+}
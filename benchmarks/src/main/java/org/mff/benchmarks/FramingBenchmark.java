@@ -0,0 +1,130 @@
+package org.mff.benchmarks;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.mff.Character;
+import org.mff.Message;
+import org.mff.MessageType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the framing of messages with ObjectOutputStream and ObjectInputStream, the way the server and the client
+ * exchange them over one long lived stream pair.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+    /**
+     * The payload: an empty request or a rendered character sheet.
+     */
+    @Param({"empty", "sheet"})
+    public String payload;
+    private Message message;
+    private ByteArrayOutputStream buffer;
+    private ObjectOutputStream out;
+    private byte[] frame;
+    private byte[] header;
+    private ObjectInputStream in;
+
+    @Setup
+    public void setup() throws IOException {
+        message = new Message(MessageType.MESSAGE, payload.equals("sheet") ? new Character().toString() : "");
+        buffer = new ByteArrayOutputStream();
+        out = new ObjectOutputStream(buffer);
+        out.flush();
+        header = buffer.toByteArray();
+        buffer.reset();
+        out.reset();
+        out.writeObject(message);
+        out.flush();
+        frame = buffer.toByteArray();
+        in = new ObjectInputStream(new ReplayInputStream(header, frame));
+    }
+
+    /**
+     * Writes a message to a long lived stream.
+     */
+    @Benchmark
+    public int write() throws IOException {
+        buffer.reset();
+        out.reset();
+        out.writeObject(message);
+        out.flush();
+        return buffer.size();
+    }
+
+    /**
+     * Reads a message from a long lived stream.
+     */
+    @Benchmark
+    public Message read() throws IOException, ClassNotFoundException {
+        return (Message) in.readObject();
+    }
+
+    /**
+     * Reads a message from a new stream, including the stream header, as happens once per connection.
+     */
+    @Benchmark
+    public Message openAndRead() throws IOException, ClassNotFoundException {
+        byte[] bytes = new byte[header.length + frame.length];
+        System.arraycopy(header, 0, bytes, 0, header.length);
+        System.arraycopy(frame, 0, bytes, header.length, frame.length);
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Message) in.readObject();
+        }
+    }
+
+    /**
+     * Represents a stream which returns the header once and then repeats the frame forever.
+     */
+    private static class ReplayInputStream extends InputStream {
+        private final byte[] header;
+        private final byte[] frame;
+        private boolean headerRead;
+        private int position;
+
+        ReplayInputStream(byte[] _header, byte[] _frame) {
+            header = _header;
+            frame = _frame;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[1];
+            read(b, 0, 1);
+            return b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            byte[] source = headerRead ? frame : header;
+            int n = Math.min(len, source.length - position);
+            System.arraycopy(source, position, b, off, n);
+            position += n;
+            if (position == source.length) {
+                headerRead = true;
+                position = 0;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.mff.benchmarks;
+import java.util.concurrent.TimeUnit;
+
+import org.mff.Character;
+import org.mff.Message;
+import org.mff.MessageType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Measures the Jackson serialization and deserialization of characters and messages, configured the same way
+ * as the server and the client configure their mappers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+    private ObjectMapper mapper;
+    private Character character;
+    private String characterJson;
+    private Message message;
+    private String messageJson;
+
+    @Setup
+    public void setup() throws Exception {
+        mapper = new ObjectMapper();
+        mapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
+        character = new Character();
+        characterJson = mapper.writeValueAsString(character);
+        message = new Message(MessageType.MESSAGE, characterJson);
+        messageJson = mapper.writeValueAsString(message);
+    }
+
+    @Benchmark
+    public String writeCharacter() throws Exception {
+        return mapper.writeValueAsString(character);
+    }
+
+    @Benchmark
+    public Character readCharacter() throws Exception {
+        return mapper.readValue(characterJson, Character.class);
+    }
+
+    @Benchmark
+    public String writeMessage() throws Exception {
+        return mapper.writeValueAsString(message);
+    }
+
+    @Benchmark
+    public Message readMessage() throws Exception {
+        return mapper.readValue(messageJson, Message.class);
+    }
+}
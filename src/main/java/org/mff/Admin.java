@@ -0,0 +1,193 @@
+package org.mff;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * Runs the administrative commands sent in ADMIN messages. The server only accepts them from the loopback address.
+ * Export and import work on the compain the sending player has authenticated to. The commands are:
+ * <pre>
+ *     jfr start [settings]    starts a flight recording, "default" or "profile" settings, "default" if not given
+ *     jfr dump [file]         writes the recording so far to the file on the server
+ *     jfr stop                stops and discards the recording
+ *     jfr status              describes the recording
+ *     export &lt;file&gt;           exports the compain to the file on the server, gzipped if it ends with ".gz"
+ *     import &lt;file&gt;           imports the compain archive from the file on the server
+ *     stats                   lists the metrics of the server
+ *     compains                lists the compains open in the server
+ *     verify                  replays the history of every character of the compain and checks it against its file
+ *     replication             describes the replication role of the server
+ *     promote                 stops following the leader and makes the server the leader
+ *     follow &lt;host:port&gt;      makes the server a read-only follower of the leader
+ * </pre>
+ */
+public class Admin {
+    private static final DateTimeFormatter DUMP_NAME = DateTimeFormatter.ofPattern("'server-'yyyyMMdd-HHmmss'.jfr'");
+    private static Recording recording;
+
+    private Admin() {
+    }
+
+    /**
+     * Runs the command.
+     * @param command   the command with its arguments
+     * @param database  the compain of the sender, null if the sender has not authenticated
+     * @return          the description of the result
+     * @throws IOException
+     * @throws IllegalArgumentException if the command is malformed or can't be run now
+     */
+    public static synchronized String execute(String command, Database database) throws IOException {
+        String[] words = command.trim().split("\\s+");
+        if (words.length == 1 && words[0].equalsIgnoreCase("stats"))
+            return Metrics.describe();
+        if (words.length == 1 && words[0].equalsIgnoreCase("compains"))
+            return String.join("\n", Database.getOpenCompains()) + "\n";
+        if (words.length == 2 && (words[0].equalsIgnoreCase("export") || words[0].equalsIgnoreCase("import"))) {
+            if (database == null)
+                throw new IllegalArgumentException("Authenticate to the compain to " + words[0].toLowerCase() + " first");
+            if (words[0].equalsIgnoreCase("import") && ReplicationFollower.current() != null)
+                throw new IllegalArgumentException("Import into the leader, this server is a read-only follower");
+            CompainArchive archive = new CompainArchive(database);
+            if (words[0].equalsIgnoreCase("export"))
+                return "Exported " + archive.exportTo(Paths.get(words[1])) + " characters";
+            return archive.importFrom(Paths.get(words[1])).toString();
+        }
+        if (words.length == 1 && words[0].equalsIgnoreCase("verify")) {
+            if (database == null) throw new IllegalArgumentException("Authenticate to the compain to verify first");
+            ArrayList<String> mismatched = database.verifyHistory();
+            return mismatched.isEmpty() ? "The history of every character matches its file"
+                                        : "The history does not match the file of: " + String.join(", ", mismatched);
+        }
+        if (words.length == 1 && words[0].equalsIgnoreCase("replication"))
+            return describeReplication();
+        if (words.length == 1 && words[0].equalsIgnoreCase("promote"))
+            return promote();
+        if (words.length == 2 && words[0].equalsIgnoreCase("follow"))
+            return follow(words[1]);
+        if (words.length < 2 || !words[0].equalsIgnoreCase("jfr"))
+            throw new IllegalArgumentException("Unknown admin command: " + command.trim());
+        String argument = words.length > 2 ? words[2] : null;
+        return switch (words[1].toLowerCase()) {
+            case "start" -> startRecording(argument == null ? "default" : argument);
+            case "dump" -> dumpRecording(argument == null ? Paths.get(LocalDateTime.now().format(DUMP_NAME))
+                                                          : Paths.get(argument));
+            case "stop" -> stopRecording();
+            case "status" -> recording == null ? "No recording" : describe(recording);
+            default -> throw new IllegalArgumentException("Unknown jfr command: " + words[1]);
+        };
+    }
+
+    /**
+     * Describes the replication role of the server.
+     * @return  the description
+     */
+    private static String describeReplication() {
+        ReplicationFollower follower = ReplicationFollower.current();
+        if (follower != null) return follower.describe();
+        ReplicationLeader leader = ReplicationLeader.current();
+        if (leader != null) return leader.describe();
+        return "Not replicating";
+    }
+
+    /**
+     * Stops following the leader and, if -Dreplication.port is set, starts accepting followers. The changes are
+     * numbered on from the last change applied by the follower.
+     * @return  the description of the result
+     * @throws IOException
+     */
+    private static String promote() throws IOException {
+        if (ReplicationFollower.current() == null)
+            throw new IllegalArgumentException("This server is not a follower");
+        long applied = ReplicationFollower.stopFollowing();
+        Integer port = Integer.getInteger("replication.port");
+        Log.info("Promoted to leader at change {}", applied);
+        if (port == null) return "Promoted at change " + applied + ", not accepting followers without -Dreplication.port";
+        ReplicationLeader.start(port, applied);
+        return "Promoted at change " + applied + ", accepting followers on port " + port;
+    }
+
+    /**
+     * Makes the server a follower of the leader, replacing its compains by the leader's ones.
+     * @param leader    the leader's replication address, host:port
+     * @return          the description of the result
+     */
+    private static String follow(String leader) {
+        ReplicationLeader.stop();
+        ReplicationFollower.stopFollowing();
+        ReplicationFollower.start(leader);
+        return "Following " + leader;
+    }
+
+    /**
+     * Starts a recording with the given settings and all the events of the server enabled.
+     * @param settings  the name of the JFR settings
+     * @return          the description of the result
+     * @throws IOException
+     */
+    private static String startRecording(String settings) throws IOException {
+        if (recording != null && recording.getState() == RecordingState.RUNNING)
+            throw new IllegalArgumentException("A recording is already running");
+        Configuration configuration;
+        try {
+            configuration = Configuration.getConfiguration(settings);
+        } catch (ParseException | IOException e) {
+            throw new IllegalArgumentException("Unknown settings: " + settings);
+        }
+        if (recording != null) recording.close();
+        recording = new Recording(configuration);
+        recording.setName("character-manager");
+        recording.enable(Events.RequestEvent.class);
+        recording.enable(Events.DatabaseEvent.class);
+        recording.enable(Events.SerializationEvent.class);
+        recording.setToDisk(true);
+        recording.start();
+        Log.info("Flight recording started with {} settings", settings);
+        return "Started " + describe(recording);
+    }
+
+    /**
+     * Writes the running recording to the file.
+     * @param file  the file to write to
+     * @return      the description of the result
+     * @throws IOException
+     */
+    private static String dumpRecording(Path file) throws IOException {
+        if (recording == null)
+            throw new IllegalArgumentException("No recording, start one with: jfr start");
+        Path path = file.toAbsolutePath();
+        recording.dump(path);
+        Log.info("Flight recording dumped to {}", path);
+        return "Dumped to " + path;
+    }
+
+    /**
+     * Stops and discards the recording.
+     * @return  the description of the result
+     */
+    private static String stopRecording() {
+        if (recording == null)
+            throw new IllegalArgumentException("No recording");
+        recording.close();
+        recording = null;
+        Log.info("Flight recording stopped");
+        return "Stopped";
+    }
+
+    /**
+     * Describes the recording.
+     * @param recording the recording to describe
+     * @return          the description
+     */
+    private static String describe(Recording recording) {
+        return "recording " + recording.getId() + " (" + recording.getState().toString().toLowerCase()
+                + ", started " + recording.getStartTime() + ")";
+    }
+}
@@ -0,0 +1,241 @@
+package org.mff;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Represents the admission control of the requests. Every connection has a token bucket per message type, kept
+ * across a new AUTH, and every player has one more, shared by all the player's connections: a request takes a token
+ * from the bucket of its connection and, after AUTH, from that of its player, and a request finding either bucket empty
+ * is answered at once with RETRY_LATER, whose payload is the number of milliseconds until the next token. So neither
+ * a player opening more connections nor a connection authenticating under a new name gets more requests.
+ * -Dlimit.&lt;type&gt;=rate[:burst], e.g. -Dlimit.view=50:100, sets the tokens added per
+ * second and the size of the bucket (twice the rate by default) of a type, 0 removes the limit of the type.
+ * Types without their own limit use -Dlimit.default (100:200); SET is limited to 20:40 and LIST to 10:20.
+ * HELLO, CLOSE, ADMIN and PING are never limited, so that an operator can look at a loaded server. -Dlimit.enabled=false
+ * turns all the limits off.
+ * <p>
+ * The expensive operations, LIST and the disk reads and writes of SET, are also limited to -Dlimit.concurrent
+ * (twice the number of processors, at least 4) running at once over all the compains. LIST and a new SET are refused with
+ * RETRY_LATER after -Dlimit.retryMillis (50) when all the slots are taken; the write of a SET whose client has
+ * already sent the character waits for a slot instead.
+ * <p>
+ * The refusals are counted by "throttled.&lt;type&gt;" and "throttled.concurrency".
+ */
+public class Admission {
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final boolean enabled = !"false".equals(System.getProperty("limit.enabled"));
+    private static final long[] rates = new long[MessageType.values().length];
+    private static final long[] bursts = new long[MessageType.values().length];
+    private static final LongAdder[] throttled = new LongAdder[MessageType.values().length];
+    private static final int concurrent = !enabled ? 0 : Integer.getInteger("limit.concurrent",
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    private static final long retryMillis = Long.getLong("limit.retryMillis", 50);
+    private static final Semaphore expensive = new Semaphore(Math.max(1, concurrent));
+    private static final LongAdder throttledConcurrency = Metrics.counter("throttled.concurrency");
+    private static final ConcurrentHashMap<String, Buckets> buckets = new ConcurrentHashMap<>();
+
+    static {
+        for (MessageType type : MessageType.values()) {
+            String name = type.toString().toLowerCase();
+            String fallback = switch (type) {
+                case HELLO, CLOSE, ADMIN, PING -> "0";
+                case SET -> "20:40";
+                case LIST -> "10:20";
+                default -> System.getProperty("limit.default", "100:200");
+            };
+            parseLimit(type, enabled ? System.getProperty("limit." + name, fallback) : "0");
+            if (rates[type.ordinal()] > 0) throttled[type.ordinal()] = Metrics.counter("throttled." + name);
+        }
+        Metrics.gauge("admission.players", buckets::size);
+        Metrics.gauge("admission.expensive.running",
+                () -> concurrent <= 0 ? 0 : concurrent - expensive.availablePermits());
+    }
+
+    private Admission() {
+    }
+
+    /**
+     * Parses the limit of the message type.
+     * @param type  the message type
+     * @param limit the limit, rate[:burst]
+     */
+    private static void parseLimit(MessageType type, String limit) {
+        int colon = limit.indexOf(':');
+        try {
+            long rate = Long.parseLong((colon < 0 ? limit : limit.substring(0, colon)).trim());
+            long burst = colon < 0 ? rate * 2 : Long.parseLong(limit.substring(colon + 1).trim());
+            rates[type.ordinal()] = Math.max(0, rate);
+            bursts[type.ordinal()] = Math.max(1, burst);
+        } catch (NumberFormatException e) {
+            Log.warn("Invalid limit of {}: {}", type, limit);
+        }
+    }
+
+    /**
+     * Represents the token buckets of a single connection or player, one per message type. The tokens are counted in
+     * nanoseconds of refill, so a bucket is just the time at which it was last empty.
+     */
+    private static class Buckets {
+        private final long[] emptyAt = new long[MessageType.values().length];
+        private volatile long lastUsed;
+
+        Buckets(long now) {
+            for (int i = 0; i < emptyAt.length; i++) {
+                emptyAt[i] = now - (rates[i] == 0 ? 0 : TimeUnit.SECONDS.toNanos(bursts[i]) / rates[i]);
+            }
+            lastUsed = now;
+        }
+
+        /**
+         * Takes a token of the message type.
+         * @param type  the ordinal of the message type
+         * @param now   the current time in nanoseconds
+         * @return      0 if the token was taken, otherwise the nanoseconds until the next token
+         */
+        synchronized long take(int type, long now) {
+            long next = next(type, now);
+            if (next > now) return next - now;
+            emptyAt[type] = next;
+            return 0;
+        }
+
+        /**
+         * Gets the time until the next token of the message type without taking it.
+         * @param type  the ordinal of the message type
+         * @param now   the current time in nanoseconds
+         * @return      0 if a token is there, otherwise the nanoseconds until the next token
+         */
+        synchronized long peek(int type, long now) {
+            return Math.max(0, next(type, now) - now);
+        }
+
+        /**
+         * Gets the time at which the bucket of the message type is empty again if a token is taken.
+         * Holds the monitor.
+         * @param type  the ordinal of the message type
+         * @param now   the current time in nanoseconds
+         * @return      the time in nanoseconds, after now if there is no token
+         */
+        private long next(int type, long now) {
+            lastUsed = now;
+            long interval = TimeUnit.SECONDS.toNanos(1) / rates[type];
+            long capacity = interval * bursts[type];
+            // a bucket which has been full for a long time holds only the burst
+            long start = Math.max(emptyAt[type], now - capacity);
+            return start + interval;
+        }
+    }
+
+    /**
+     * Admits the request or refuses it if the bucket of its type of the connection or of the player is empty.
+     * @param connection    the identity of the connection
+     * @param player        the identity of the player, e.g. "compain/player", null before AUTH
+     * @param type          the type of the request
+     * @return              0 if the request is admitted, otherwise the milliseconds after which it may be retried
+     */
+    public static long admit(String connection, String player, MessageType type) {
+        return admit(connection, player, type, System.nanoTime());
+    }
+
+    /**
+     * Admits the request of a single bucket owner at the given time or refuses it if its bucket of the type is empty.
+     * @param owner the identity of the connection or the player
+     * @param type  the type of the request
+     * @param now   the current time in nanoseconds
+     * @return      0 if the request is admitted, otherwise the milliseconds after which it may be retried
+     */
+    static long admit(String owner, MessageType type, long now) {
+        return admit(owner, null, type, now);
+    }
+
+    /**
+     * Admits the request at the given time or refuses it if the bucket of its type of the connection or of
+     * the player is empty. A refused request takes no token from either bucket.
+     * @param connection    the identity of the connection
+     * @param player        the identity of the player, null before AUTH
+     * @param type          the type of the request
+     * @param now           the current time in nanoseconds
+     * @return              0 if the request is admitted, otherwise the milliseconds after which it may be retried
+     */
+    static long admit(String connection, String player, MessageType type, long now) {
+        int ordinal = type.ordinal();
+        if (rates[ordinal] == 0) return 0;
+        Buckets own = getBuckets(connection, now);
+        long wait;
+        if (player == null) {
+            wait = own.take(ordinal, now);
+        } else {
+            Buckets shared = getBuckets(player, now);
+            // always the connection's monitor first; the players' keys hold a '/', so they never name a connection
+            synchronized (own) {
+                synchronized (shared) {
+                    wait = Math.max(own.peek(ordinal, now), shared.peek(ordinal, now));
+                    if (wait == 0) {
+                        own.take(ordinal, now);
+                        shared.take(ordinal, now);
+                    }
+                }
+            }
+        }
+        if (wait == 0) return 0;
+        throttled[ordinal].increment();
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+    }
+
+    /**
+     * Gets the buckets of the connection or the player, creating full ones if there are none.
+     * @param owner the identity of the connection or the player
+     * @param now   the current time in nanoseconds
+     * @return      the buckets
+     */
+    private static Buckets getBuckets(String owner, long now) {
+        Buckets result = buckets.get(owner);
+        return result != null ? result : buckets.computeIfAbsent(owner, key -> new Buckets(now));
+    }
+
+    /**
+     * Starts an expensive operation unless the limit of the running ones is reached.
+     * @return  true if the operation may run, it then has to call {@link #endExpensive()}
+     */
+    public static boolean tryStartExpensive() {
+        if (concurrent <= 0 || expensive.tryAcquire()) return true;
+        throttledConcurrency.increment();
+        return false;
+    }
+
+    /**
+     * Starts an expensive operation, waiting until one of the running ones ends if the limit is reached.
+     */
+    public static void startExpensive() {
+        if (concurrent > 0) expensive.acquireUninterruptibly();
+    }
+
+    /**
+     * Ends the expensive operation started by {@link #tryStartExpensive()} or {@link #startExpensive()}.
+     */
+    public static void endExpensive() {
+        if (concurrent > 0) expensive.release();
+    }
+
+    /**
+     * Gets the time after which a request refused by {@link #tryStartExpensive()} may be retried.
+     * @return  the time in milliseconds
+     */
+    public static long getRetryMillis() {
+        return retryMillis;
+    }
+
+    /**
+     * Forgets the buckets of the connections and the players which have sent no request for a minute; their buckets
+     * are full again.
+     */
+    public static void evictIdle() {
+        long now = System.nanoTime();
+        for (Iterator<Buckets> it = buckets.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().lastUsed > IDLE_NANOS) it.remove();
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package org.mff;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Represents the non-interactive client. Reads commands one per line from a file or the standard input, runs them
+ * over one connection and prints one JSON object per command with the result. The commands are:
+ * <pre>
+ *     auth &lt;player&gt;          list                  pick &lt;character&gt;     view
+ *     set stat &lt;stat&gt; &lt;value&gt;  set save &lt;stat&gt; &lt;prof&gt;  set skill &lt;skill&gt; &lt;prof&gt;
+ *     set class &lt;class&gt;     set level &lt;n&gt;        set maxhp &lt;n&gt;         set health &lt;n&gt;
+ *     heal &lt;n&gt;              harm &lt;n&gt;              query &lt;query&gt;         roll &lt;rolls&gt;
+ *     history [version]     revert &lt;version&gt;      admin &lt;command&gt;       combat &lt;command&gt;
+ *     ping                  quit
+ * </pre>
+ * "auth bob@c2" authenticates to the compain c2 instead of the server's default compain. Empty lines and lines
+ * starting with '#' are skipped. In the pipelined mode requests are sent without waiting for
+ * the previous responses. Commands which change the character need the whole SET exchange, so they wait until all
+ * the previous responses arrived.
+ */
+public class BatchClient {
+    private static final int PIPELINE_WINDOW = 64;
+    private final ObjectMapper mapper;
+    private final PrintStream output;
+    private final boolean pipelined;
+    private final BlockingQueue<Pending> pending;
+    private final Semaphore window;
+    private Compression.Input in;
+    private Compression.Output out;
+    private boolean failed;
+
+    /**
+     * Represents a request which was sent and waits for its response.
+     */
+    private static class Pending {
+        private final int line;
+        private final String command;
+        private final long start;
+
+        Pending(int _line, String _command, long _start) {
+            line = _line;
+            command = _command;
+            start = _start;
+        }
+    }
+
+    /**
+     * Creates the client.
+     * @param _output       the stream to print the results to
+     * @param _pipelined    true to send requests without waiting for the previous responses
+     */
+    public BatchClient(PrintStream _output, boolean _pipelined) {
+        mapper = Codecs.mapper();
+        output = _output;
+        pipelined = _pipelined;
+        pending = new ArrayBlockingQueue<>(PIPELINE_WINDOW);
+        window = new Semaphore(PIPELINE_WINDOW);
+    }
+
+    /**
+     * Parses the arguments and runs the commands. Exits with 1 if any command failed and with 2 if the client could
+     * not connect.
+     * @param args  the arguments: client --batch [file] [--pipeline] [--compress] [--host h] [--port p]
+     */
+    public static void run(String[] args) {
+        String file = null;
+        String host = "127.0.0.1";
+        int port = 6666;
+        boolean pipelined = false;
+        boolean compress = false;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--batch" -> {}
+                case "--pipeline" -> pipelined = true;
+                case "--compress" -> compress = true;
+                case "--host" -> host = args[++i];
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                default -> file = args[i];
+            }
+        }
+        BatchClient client = new BatchClient(System.out, pipelined);
+        try (BufferedReader reader = file == null || file.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8);
+             Socket socket = new Socket(host, port)) {
+            client.out = new Compression.Output(socket.getOutputStream());
+            client.in = new Compression.Input(socket.getInputStream());
+            if (compress && !Compression.negotiate(client.out, client.in)) {
+                System.err.println("The server refused compression, the payloads are sent uncompressed.");
+            }
+            client.runCommands(reader);
+        } catch (IOException | ClassNotFoundException e) {
+            client.printError(0, "", e.toString());
+            System.exit(2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.exit(2);
+        }
+        System.exit(client.failed ? 1 : 0);
+    }
+
+    /**
+     * Runs all the commands read from the reader.
+     * @param reader    the reader to read the commands from
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws InterruptedException
+     */
+    public void runCommands(BufferedReader reader) throws IOException, ClassNotFoundException, InterruptedException {
+        if (pipelined) {
+            Thread responses = new Thread(this::readResponses, "batch-responses");
+            responses.setDaemon(true);
+            responses.start();
+        }
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+            number++;
+            String command = line.trim();
+            if (command.isEmpty() || command.startsWith("#")) continue;
+            if (command.equals("quit") || command.equals("exit")) break;
+            runCommand(number, command);
+        }
+        drain();
+        out.writeObject(new Message(MessageType.CLOSE, ""));
+        out.flush();
+    }
+
+    /**
+     * Runs a single command.
+     * @param line      the number of the line of the command
+     * @param command   the command
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws InterruptedException
+     */
+    private void runCommand(int line, String command) throws IOException, ClassNotFoundException, InterruptedException {
+        int space = command.indexOf(' ');
+        String verb = (space < 0 ? command : command.substring(0, space)).toLowerCase();
+        String argument = space < 0 ? "" : command.substring(space + 1).trim();
+        switch (verb) {
+            case "set" -> {
+                drain();
+                edit(line, command, argument);
+            }
+            case "heal", "harm" -> {
+                drain();
+                edit(line, command, command);
+            }
+            case "auth" -> send(line, command, new Message(MessageType.AUTH, argument));
+            case "list" -> send(line, command, new Message(MessageType.LIST, argument));
+            case "pick" -> send(line, command, new Message(MessageType.PICK, argument));
+            case "view" -> send(line, command, new Message(MessageType.VIEW, ""));
+            case "query" -> send(line, command, new Message(MessageType.QUERY, argument));
+            case "roll" -> send(line, command, new Message(MessageType.ROLL, argument));
+            case "combat" -> send(line, command, new Message(MessageType.COMBAT, argument));
+            case "ping" -> send(line, command, new Message(MessageType.PING, argument));
+            case "history" -> send(line, command, new Message(MessageType.HISTORY, argument));
+            case "revert" -> send(line, command, new Message(MessageType.REVERT, argument));
+            case "admin" -> send(line, command, new Message(MessageType.ADMIN, argument));
+            default -> printError(line, command, "Unknown command");
+        }
+    }
+
+    /**
+     * Sends the request. In the pipelined mode the response is printed by the response thread, otherwise it is
+     * read and printed right away. Every CHUNK of a streamed response is printed as it arrives.
+     * @param line      the number of the line of the command
+     * @param command   the command
+     * @param request   the request to send
+     * @throws IOException
+     * @throws ClassNotFoundException
+     * @throws InterruptedException
+     */
+    private void send(int line, String command, Message request)
+            throws IOException, ClassNotFoundException, InterruptedException {
+        long start = System.nanoTime();
+        if (pipelined) {
+            window.acquire();
+            pending.put(new Pending(line, command, start));
+            out.writeObject(request);
+            out.flush();
+            return;
+        }
+        out.writeObject(request);
+        out.flush();
+        Message response;
+        do {
+            response = (Message) in.readObject();
+            printResult(line, command, response, start);
+        } while (response.type == MessageType.CHUNK);
+    }
+
+    /**
+     * Reads the responses of the pipelined requests in the order they were sent.
+     */
+    private void readResponses() {
+        try {
+            while (true) {
+                Pending request = pending.take();
+                Message response;
+                do {
+                    response = (Message) in.readObject();
+                    printResult(request.line, request.command, response, request.start);
+                } while (response.type == MessageType.CHUNK);
+                window.release();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            printError(0, "", e.toString());
+            System.exit(2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until all the pipelined requests got their responses.
+     * @throws InterruptedException
+     */
+    private void drain() throws InterruptedException {
+        if (!pipelined) return;
+        window.acquire(PIPELINE_WINDOW);
+        window.release(PIPELINE_WINDOW);
+    }
+
+    /**
+     * Runs the SET exchange: gets the character, applies the edit and sends the character back.
+     * @param line      the number of the line of the command
+     * @param command   the command
+     * @param edit      the edit, e.g. "stat dexterity 14" or "harm 7"
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void edit(int line, String command, String edit) throws IOException, ClassNotFoundException {
+        long start = System.nanoTime();
+        out.writeObject(new Message(MessageType.SET, ""));
+        out.flush();
+        Message response = (Message) in.readObject();
+        if (response.type != MessageType.OK) {
+            printResult(line, command, response, start);
+            return;
+        }
+        Character character = Codecs.readCharacter(((Message) in.readObject()).payload);
+        try {
+            applyEdit(character, edit);
+        } catch (Exception e) {
+            out.writeObject(new Message(MessageType.DISCARD, ""));
+            out.flush();
+            printError(line, command, e.getMessage());
+            return;
+        }
+        out.writeObject(new Message(MessageType.OK, ""));
+        out.writeObject(new Message(MessageType.MESSAGE, Codecs.writeCharacterString(character)));
+        out.flush();
+        printResult(line, command, new Message(MessageType.OK, ""), start);
+    }
+
+    /**
+     * Applies the edit to the character.
+     * @param character the character to edit
+     * @param edit      the edit, the field followed by its arguments with the value last
+     * @throws Exception if the edit is malformed or the character rejects it
+     */
+    private static void applyEdit(Character character, String edit) throws Exception {
+        int first = edit.indexOf(' ');
+        int last = edit.lastIndexOf(' ');
+        if (first < 0) throw new Exception("Missing value");
+        String field = edit.substring(0, first).toLowerCase();
+        String value = edit.substring(last + 1);
+        String name = first < last ? edit.substring(first + 1, last).trim().toLowerCase() : "";
+        switch (field) {
+            case "stat" -> character.setStatValue(name, Integer.parseInt(value));
+            case "save" -> character.setSaveProf(name, Integer.parseInt(value));
+            case "skill" -> character.setSkillProf(name, Integer.parseInt(value));
+            case "class" -> character.setCharacterClass(edit.substring(first + 1).trim());
+            case "level" -> character.setLevel(Integer.parseInt(value));
+            case "maxhp" -> character.setMaxHP(Integer.parseInt(value));
+            case "health" -> character.setCurrentHP(Integer.parseInt(value));
+            case "heal" -> character.putHeal(Integer.parseInt(value));
+            case "harm" -> character.putDamage(Integer.parseInt(value));
+            default -> throw new Exception("Unknown field: " + field);
+        }
+    }
+
+    /**
+     * Prints the result of the command as a single JSON line.
+     * @param line      the number of the line of the command
+     * @param command   the command
+     * @param response  the response of the server
+     * @param start     the time the command was started at, in nanoseconds
+     */
+    private synchronized void printResult(int line, String command, Message response, long start) {
+        ObjectNode result = mapper.createObjectNode();
+        result.put("line", line);
+        result.put("command", command);
+        result.put("status", switch (response.type) {
+            case ERROR -> "error";
+            case RETRY_LATER -> "retry";
+            default -> "ok";
+        });
+        result.put("type", response.type.toString());
+        result.put("payload", response.payload);
+        if (response.version >= 0) result.put("version", response.version);
+        result.put("ms", (System.nanoTime() - start) / 1e6);
+        if (response.type == MessageType.ERROR || response.type == MessageType.RETRY_LATER) failed = true;
+        output.println(result);
+    }
+
+    /**
+     * Prints an error which did not come from the server as a single JSON line.
+     * @param line      the number of the line of the command
+     * @param command   the command
+     * @param error     the error message
+     */
+    private synchronized void printError(int line, String command, String error) {
+        ObjectNode result = mapper.createObjectNode();
+        result.put("line", line);
+        result.put("command", command);
+        result.put("status", "error");
+        result.put("payload", error);
+        failed = true;
+        output.println(result);
+    }
+}
@@ -1,17 +1,29 @@
 package org.mff;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import java.io.Serializable;
 import java.util.ArrayList;
 
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
 /**
- * Represents character sheet.
+ * Represents character sheet. Only the fields are serialized. Unknown properties are ignored, so that the
+ * sheets written when the getters were serialized as well can still be read.
  */
+@JsonAutoDetect(fieldVisibility = Visibility.ANY, getterVisibility = Visibility.NONE,
+        isGetterVisibility = Visibility.NONE, setterVisibility = Visibility.NONE)
+@JsonIgnoreProperties(ignoreUnknown = true)
 public class Character implements Serializable{
     private static ArrayList<String> stats;
     private static ArrayList<String> skills;
+    private static List<String> statsView;
+    private static List<String> skillsView;
     private static HashMap<String, String> skillToStat;
     private HashMap<String, Integer> statVals;
     private HashMap<String, Integer> statMods;
@@ -61,6 +73,8 @@ public class Character implements Serializable{
         initStats();
         initSkills();
         initSkillToStat();
+        statsView = Collections.unmodifiableList(stats);
+        skillsView = Collections.unmodifiableList(skills);
     }
 
     /**
@@ -210,6 +224,95 @@ public class Character implements Serializable{
         return new ArrayList<>(skills);
     }
 
+    /**
+     * Gets the unmodifiable view of the list of stats. Unlike {@link #getStats()} does not copy the list.
+     * @return  the unmodifiable List of stats
+     */
+    public static List<String> getStatsView() {
+        initStatic();
+        return statsView;
+    }
+
+    /**
+     * Gets the unmodifiable view of the list of skills. Unlike {@link #getSkills()} does not copy the list.
+     * @return  the unmodifiable List of skills
+     */
+    public static List<String> getSkillsView() {
+        initStatic();
+        return skillsView;
+    }
+
+    /**
+     * Calls the visitor with the value and the modifier of every stat, in the order of {@link #getStatsView()}.
+     * @param visitor   the visitor to call
+     */
+    public void forEachStat(AttributeVisitor visitor) {
+        for (int i = 0; i < stats.size(); i++) {
+            String stat = stats.get(i);
+            visitor.visit(stat, statVals.get(stat), statMods.get(stat));
+        }
+    }
+
+    /**
+     * Calls the visitor with the proficiency and the modifier of every save, in the order of
+     * {@link #getStatsView()}.
+     * @param visitor   the visitor to call
+     */
+    public void forEachSave(AttributeVisitor visitor) {
+        for (int i = 0; i < stats.size(); i++) {
+            String stat = stats.get(i);
+            visitor.visit(stat, saveProfs.get(stat), saveMods.get(stat));
+        }
+    }
+
+    /**
+     * Calls the visitor with the proficiency and the modifier of every skill, in the order of
+     * {@link #getSkillsView()}.
+     * @param visitor   the visitor to call
+     */
+    public void forEachSkill(AttributeVisitor visitor) {
+        for (int i = 0; i < skills.size(); i++) {
+            String skill = skills.get(i);
+            visitor.visit(skill, skillProfs.get(skill), skillMods.get(skill));
+        }
+    }
+
+    /**
+     * Gets the value of the stat.
+     * @param stat  the stat
+     * @return      the value of the stat
+     */
+    public int getStatValue(String stat) {
+        return statVals.get(stat);
+    }
+
+    /**
+     * Gets the modifier of the stat.
+     * @param stat  the stat
+     * @return      the modifier of the stat
+     */
+    public int getStatMod(String stat) {
+        return statMods.get(stat);
+    }
+
+    /**
+     * Gets the modifier of the save.
+     * @param save  the save
+     * @return      the modifier of the save
+     */
+    public int getSaveMod(String save) {
+        return saveMods.get(save);
+    }
+
+    /**
+     * Gets the modifier of the skill.
+     * @param skill the skill
+     * @return      the modifier of the skill
+     */
+    public int getSkillMod(String skill) {
+        return skillMods.get(skill);
+    }
+
     /**
      * Gets the HashMap from stats to their values.
      * @return  the HashMap form stats to their values
@@ -413,49 +516,68 @@ public class Character implements Serializable{
         characterClass = _characterClass;
     }
 
+    /**
+     * Checks that the character has a name and the values of all the stats, saves and skills, and recomputes all
+     * the modifiers from them. Used for the characters which did not come from this server.
+     * @throws IllegalArgumentException if the character is incomplete
+     */
+    public void validate() {
+        if (name == null || name.isBlank()) throw new IllegalArgumentException("Missing name");
+        if (statVals == null || saveProfs == null || skillProfs == null)
+            throw new IllegalArgumentException("Missing stats, saves or skills");
+        for (String stat : stats) {
+            if (statVals.get(stat) == null) throw new IllegalArgumentException("Missing stat " + stat);
+            if (saveProfs.get(stat) == null) throw new IllegalArgumentException("Missing save " + stat);
+        }
+        for (String skill : skills) {
+            if (skillProfs.get(skill) == null) throw new IllegalArgumentException("Missing skill " + skill);
+        }
+        if (level < 1) throw new IllegalArgumentException("Invalid level " + level);
+        if (statMods == null) statMods = new HashMap<>();
+        if (skillMods == null) skillMods = new HashMap<>();
+        if (saveMods == null) saveMods = new HashMap<>();
+        updateProfLevel();
+        updateStatMods();
+        updateSkillMods();
+        updateSaveMods();
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append(name + '\n');
-        sb.append("LEVEL: " + level + '\n');
-        sb.append("CLASS: " + characterClass + '\n');
-        sb.append("HP: " + currentHp + "/" + maxHp + '\n');
+        sb.append(name).append('\n');
+        sb.append("LEVEL: ").append(level).append('\n');
+        sb.append("CLASS: ").append(characterClass).append('\n');
+        sb.append("HP: ").append(currentHp).append('/').append(maxHp).append('\n');
+        AttributeVisitor line = (attribute, value, mod) -> appendLine(sb, attribute, value, mod);
         sb.append("---STATS---\n");
-        for (Map.Entry<String, Integer> stat : statMods.entrySet()) {
-            int s = stat.getValue();
-            sb.append(
-                    stat.getKey()
-                            + " "
-                            + statVals.get(stat.getKey())
-                            + ":"
-                            + (s >= 0 ? "+" + s : + s)
-                            + '\n'
-            );
-        }
+        forEachStat(line);
         sb.append("---SAVES---\n");
-        for (Map.Entry<String, Integer> save : saveMods.entrySet()) {
-            int s = save.getValue();
-            sb.append(
-                    save.getKey()
-                            + " "
-                            + saveProfs.get(save.getKey())
-                            + ":"
-                            + (s >= 0 ? "+" + s : + s)
-                            + '\n'
-            );
-        }
+        forEachSave(line);
         sb.append("---SKILLS---\n");
-        for (Map.Entry<String, Integer> skill : skillMods.entrySet()) {
-            int s = skill.getValue();
-            sb.append(
-                    skill.getKey()
-                            + " "
-                            + skillProfs.get(skill.getKey())
-                            + ":"
-                            + (s >= 0 ? "+" + s : + s)
-                            + '\n'
-            );
-        }
+        forEachSkill(line);
         return sb.toString();
     }
+
+    /**
+     * Appends a single line of the character sheet in the form "attribute value:+mod".
+     * @param sb        the StringBuilder to append to
+     * @param attribute the name of the attribute
+     * @param value     the value or the proficiency of the attribute
+     * @param mod       the modifier of the attribute
+     */
+    private static void appendLine(StringBuilder sb, String attribute, int value, int mod) {
+        sb.append(attribute).append(' ').append(value).append(':');
+        if (mod >= 0) sb.append('+');
+        sb.append(mod).append('\n');
+    }
+
+    /**
+     * Represents a callback receiving a single attribute of the character: a stat with its value and modifier,
+     * or a save or a skill with its proficiency and modifier.
+     */
+    @FunctionalInterface
+    public interface AttributeVisitor {
+        void visit(String attribute, int value, int mod);
+    }
 }
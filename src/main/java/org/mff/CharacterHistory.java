@@ -0,0 +1,300 @@
+package org.mff;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Represents the history of the characters of the compain as an ordered log of mutation events. Every event holds
+ * only the fields which were changed by the write; a removed field is recorded as the tombstone {"$removed":true}.
+ * Each character has its own directory with snapshots and log segments: the file "snapshot.&lt;b&gt;" holds the full
+ * state at version b and the file "log.&lt;b&gt;" holds the events of versions b+1 to b+N, one JSON object per line.
+ * A snapshot is taken every N versions, so any version is restored from the closest snapshot and at most N events.
+ * <p>
+ * The current state is read from the character's file, the history only serves the older versions;
+ * {@link #readLatest(Path)} replays the latest version so that the two can be checked against each other.
+ */
+public class CharacterHistory {
+    private static final String SNAPSHOT_PREFIX = "snapshot.";
+    private static final String LOG_PREFIX = "log.";
+    private static final String REMOVED = "$removed";
+    private final ObjectMapper mapper;
+    private final int snapshotInterval;
+    private final ConcurrentHashMap<Path, Long> versions;
+
+    /**
+     * Creates the history.
+     * @param _mapper           the mapper to convert characters with
+     * @param _snapshotInterval the number of events between two snapshots
+     */
+    public CharacterHistory(ObjectMapper _mapper, int _snapshotInterval) {
+        mapper = _mapper;
+        snapshotInterval = _snapshotInterval;
+        versions = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Appends the change between the two states of the character to the log. Takes a snapshot when the new
+     * version is a multiple of the snapshot interval.
+     * @param dir       the history directory of the character
+     * @param before    the previous state of the character, null if the character is new
+     * @param after     the new state of the character
+     * @param author    the author of the change, may be null
+     * @return          the appended event, its "version" is the new version of the character
+     * @throws IOException
+     */
+    public synchronized ObjectNode append(Path dir, JsonNode before, JsonNode after, String author) throws IOException {
+        ObjectNode event = mapper.createObjectNode();
+        event.put("version", getVersion(dir) + 1);
+        event.put("time", System.currentTimeMillis());
+        event.put("author", author);
+        event.set("changes", diff(before, after));
+        write(dir, event, after);
+        return event;
+    }
+
+    /**
+     * Appends the event appended by {@link #append(Path, JsonNode, JsonNode, String)} to the history of another
+     * copy of the compain, e.g. on a replication follower, so that both copies have the same versions.
+     * @param dir       the history directory of the character
+     * @param event     the event to append
+     * @param after     the state of the character after the event
+     * @throws IOException
+     * @throws IllegalStateException if the event does not follow the latest version
+     */
+    public synchronized void replay(Path dir, JsonNode event, JsonNode after) throws IOException {
+        long expected = getVersion(dir) + 1;
+        if (event.path("version").asLong() != expected)
+            throw new IllegalStateException("Expected version " + expected + " of " + dir + ", got "
+                    + event.path("version").asLong());
+        write(dir, event, after);
+    }
+
+    /**
+     * Forgets the cached versions, e.g. after the history files were replaced.
+     */
+    public void forget() {
+        versions.clear();
+    }
+
+    /**
+     * Writes the event to the log and the snapshot if its version is a multiple of the snapshot interval.
+     * @param dir       the history directory of the character
+     * @param event     the event to write
+     * @param after     the state of the character after the event
+     * @throws IOException
+     */
+    private void write(Path dir, JsonNode event, JsonNode after) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            Files.createDirectories(dir);
+        }
+        long version = event.get("version").asLong();
+        Path log = dir.resolve(LOG_PREFIX + base(version));
+        try (BufferedWriter writer = Files.newBufferedWriter(log, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(mapper.writeValueAsString(event));
+            writer.newLine();
+        }
+        if (version % snapshotInterval == 0) {
+            mapper.writeValue(dir.resolve(SNAPSHOT_PREFIX + version).toFile(), after);
+        }
+        versions.put(dir, version);
+    }
+
+    /**
+     * Gets the latest version of the character. The version is computed from the last log segment on the first
+     * call and cached afterwards.
+     * @param dir   the history directory of the character
+     * @return      the latest version, 0 if the character has no history
+     * @throws IOException
+     */
+    public long getVersion(Path dir) throws IOException {
+        Long cached = versions.get(dir);
+        if (cached != null) return cached;
+        long base = lastLogBase(dir);
+        long version = base < 0 ? 0 : base + readEvents(dir, base).size();
+        versions.put(dir, version);
+        return version;
+    }
+
+    /**
+     * Restores the state of the character at the given version from the closest snapshot and the tail of the log.
+     * @param dir       the history directory of the character
+     * @param version   the version to restore
+     * @return          the state of the character at the version
+     * @throws IOException
+     * @throws IllegalArgumentException if there is no such version
+     */
+    public JsonNode readVersion(Path dir, long version) throws IOException {
+        if (version < 1 || version > getVersion(dir))
+            throw new IllegalArgumentException("No such version: " + version);
+        long base = base(version);
+        Path snapshot = dir.resolve(SNAPSHOT_PREFIX + base);
+        ObjectNode state = base > 0 && Files.exists(snapshot)
+                ? (ObjectNode) mapper.readTree(snapshot.toFile())
+                : mapper.createObjectNode();
+        for (JsonNode event : readEvents(dir, base)) {
+            if (event.get("version").asLong() > version) break;
+            merge(state, event.get("changes"));
+        }
+        return state;
+    }
+
+    /**
+     * Restores the latest state of the character from the history.
+     * @param dir   the history directory of the character
+     * @return      the latest state of the character, null if the character has no history
+     * @throws IOException
+     */
+    public JsonNode readLatest(Path dir) throws IOException {
+        long version = getVersion(dir);
+        return version == 0 ? null : readVersion(dir, version);
+    }
+
+    /**
+     * Describes the latest events of the character, one line per event, newest first.
+     * @param dir   the history directory of the character
+     * @param count the maximal number of events to describe
+     * @return      the ArrayList of descriptions
+     * @throws IOException
+     */
+    public ArrayList<String> describe(Path dir, int count) throws IOException {
+        ArrayList<String> result = new ArrayList<>();
+        long base = base(getVersion(dir));
+        while (base >= 0 && result.size() < count) {
+            ArrayList<JsonNode> events = readEvents(dir, base);
+            for (int i = events.size() - 1; i >= 0 && result.size() < count; i--) {
+                result.add(describe(events.get(i)));
+            }
+            base -= snapshotInterval;
+        }
+        return result;
+    }
+
+    /**
+     * Describes a single event.
+     * @param event the event to describe
+     * @return      the description
+     */
+    private String describe(JsonNode event) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('v').append(event.get("version").asLong());
+        sb.append(' ').append(Instant.ofEpochMilli(event.get("time").asLong()));
+        if (!event.get("author").isNull()) sb.append(" by ").append(event.get("author").asText());
+        sb.append(':');
+        Iterator<String> fields = event.get("changes").fieldNames();
+        while (fields.hasNext()) {
+            sb.append(' ').append(fields.next());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets the version of the snapshot from which the given version is restored.
+     * @param version   the version
+     * @return          the version of the snapshot
+     */
+    private long base(long version) {
+        return version < 1 ? 0 : ((version - 1) / snapshotInterval) * snapshotInterval;
+    }
+
+    /**
+     * Finds the base version of the last log segment.
+     * @param dir   the history directory of the character
+     * @return      the base version of the last segment, -1 if there are no segments
+     * @throws IOException
+     */
+    private long lastLogBase(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) return -1;
+        try (Stream<Path> files = Files.list(dir)) {
+            return files
+                    .map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(LOG_PREFIX))
+                    .mapToLong(name -> Long.parseLong(name.substring(LOG_PREFIX.length())))
+                    .max()
+                    .orElse(-1);
+        }
+    }
+
+    /**
+     * Reads all the events of the log segment.
+     * @param dir   the history directory of the character
+     * @param base  the base version of the segment
+     * @return      the ArrayList of events, empty if there is no such segment
+     * @throws IOException
+     */
+    private ArrayList<JsonNode> readEvents(Path dir, long base) throws IOException {
+        ArrayList<JsonNode> events = new ArrayList<>();
+        Path log = dir.resolve(LOG_PREFIX + base);
+        if (!Files.exists(log)) return events;
+        try (BufferedReader reader = Files.newBufferedReader(log, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) events.add(mapper.readTree(line));
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Computes the fields which differ between the two states. Nested objects are compared entry by entry.
+     * @param before    the previous state, may be null
+     * @param after     the new state
+     * @return          the changed fields with their new values and the removed fields with the tombstone
+     */
+    private ObjectNode diff(JsonNode before, JsonNode after) {
+        ObjectNode changes = mapper.createObjectNode();
+        if (before != null) {
+            Iterator<String> names = before.fieldNames();
+            while (names.hasNext()) {
+                String name = names.next();
+                if (!after.has(name)) changes.putObject(name).put(REMOVED, true);
+            }
+        }
+        Iterator<Map.Entry<String, JsonNode>> fields = after.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode old = before == null ? null : before.get(field.getKey());
+            if (field.getValue().equals(old)) continue;
+            if (old != null && old.isObject() && field.getValue().isObject()) {
+                changes.set(field.getKey(), diff(old, field.getValue()));
+            } else {
+                changes.set(field.getKey(), field.getValue());
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Applies the changes to the state. Nested objects are merged entry by entry, tombstones remove the fields.
+     * @param state     the state to change
+     * @param changes   the changes to apply
+     */
+    private void merge(ObjectNode state, JsonNode changes) {
+        Iterator<Map.Entry<String, JsonNode>> fields = changes.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode old = state.get(field.getKey());
+            if (field.getValue().path(REMOVED).asBoolean()) {
+                state.remove(field.getKey());
+            } else if (old != null && old.isObject() && field.getValue().isObject()) {
+                merge((ObjectNode) old, field.getValue());
+            } else {
+                state.set(field.getKey(), field.getValue().deepCopy());
+            }
+        }
+    }
+}
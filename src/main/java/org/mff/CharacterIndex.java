@@ -0,0 +1,293 @@
+package org.mff;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * Represents an in-memory columnar index over all the characters of the compain. Every numeric attribute of
+ * a character is stored in its own primitive column, one row per character, so that queries scan plain int arrays
+ * instead of reading character sheets.
+ */
+public class CharacterIndex {
+    private static final int INITIAL_CAPACITY = 64;
+    private final HashMap<String, Integer> columnIds;
+    private final ArrayList<String> columnNames;
+    private final HashMap<String, Integer> rowIds;
+    private final TreeSet<String> sortedNames;
+    private final ReentrantReadWriteLock lock;
+    private final int[] statColumns;
+    private final int[] skillColumns;
+    private String[] names;
+    private int[][] columns;
+    private int size;
+
+    public CharacterIndex() {
+        Character.initStatic();
+        columnIds = new HashMap<>();
+        columnNames = new ArrayList<>();
+        rowIds = new HashMap<>();
+        sortedNames = new TreeSet<>();
+        lock = new ReentrantReadWriteLock();
+        addColumn("level");
+        addColumn("hp");
+        addColumn("maxhp");
+        addColumn("hp%");
+        List<String> stats = Character.getStatsView();
+        statColumns = new int[stats.size()];
+        for (int i = 0; i < stats.size(); i++) {
+            statColumns[i] = columnNames.size();
+            addColumn(stats.get(i));
+            addColumn(stats.get(i) + ".mod");
+            addColumn(stats.get(i) + ".save");
+        }
+        List<String> skills = Character.getSkillsView();
+        skillColumns = new int[skills.size()];
+        for (int i = 0; i < skills.size(); i++) {
+            skillColumns[i] = columnNames.size();
+            addColumn(columnName(skills.get(i)));
+            addColumn("passive." + columnName(skills.get(i)));
+        }
+        names = new String[INITIAL_CAPACITY];
+        columns = new int[columnNames.size()][INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    /**
+     * Converts the name of a skill to the name of its column. Spaces are replaced by underscores so that column
+     * names are single words.
+     * @param skill the name of the skill
+     * @return      the name of the column
+     */
+    public static String columnName(String skill) {
+        return skill.replace(' ', '_');
+    }
+
+    /**
+     * Registers a new column.
+     * @param name  the name of the column
+     */
+    private void addColumn(String name) {
+        columnIds.put(name, columnNames.size());
+        columnNames.add(name);
+    }
+
+    /**
+     * Gets the id of the column with the given name.
+     * @param name  the name of the column
+     * @return      the id of the column
+     * @throws IllegalArgumentException if there is no such column
+     */
+    public int getColumnId(String name) {
+        Integer id = columnIds.get(name.toLowerCase());
+        if (id == null) throw new IllegalArgumentException("No such column: " + name);
+        return id;
+    }
+
+    /**
+     * Gets the name of the column with the given id.
+     * @param id    the id of the column
+     * @return      the name of the column
+     */
+    public String getColumnName(int id) {
+        return columnNames.get(id);
+    }
+
+    /**
+     * Gets the ArrayList of all the column names.
+     * @return  the ArrayList of column names
+     */
+    public ArrayList<String> getColumnNames() {
+        return new ArrayList<>(columnNames);
+    }
+
+    /**
+     * Inserts the character into the index or overwrites its row if it is already indexed.
+     * @param character the character to index
+     */
+    public void update(Character character) {
+        lock.writeLock().lock();
+        try {
+            Integer row = rowIds.get(character.getName());
+            if (row == null) {
+                ensureCapacity(size + 1);
+                row = size++;
+                rowIds.put(character.getName(), row);
+                sortedNames.add(character.getName());
+                names[row] = character.getName();
+            }
+            fillRow(row, character);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the character from the index. The last row is moved into the place of the removed one.
+     * @param name  the name of the character to remove
+     */
+    public void remove(String name) {
+        lock.writeLock().lock();
+        try {
+            Integer row = rowIds.remove(name);
+            if (row == null) return;
+            sortedNames.remove(name);
+            int last = --size;
+            if (row != last) {
+                names[row] = names[last];
+                rowIds.put(names[row], row);
+                for (int[] column : columns) {
+                    column[row] = column[last];
+                }
+            }
+            names[last] = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Decides whether the character is indexed.
+     * @param name  the name of the character
+     * @return      true if the character is indexed
+     */
+    public boolean contains(String name) {
+        lock.readLock().lock();
+        try {
+            return rowIds.containsKey(name);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of indexed characters.
+     * @return  the number of indexed characters
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the value of the given column for the character.
+     * @param name      the name of the character
+     * @param column    the id of the column
+     * @return          the value
+     * @throws IllegalArgumentException if the character is not indexed
+     */
+    public int getValue(String name, int column) {
+        lock.readLock().lock();
+        try {
+            Integer row = rowIds.get(name);
+            if (row == null) throw new IllegalArgumentException("No such character: " + name);
+            return columns[column][row];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Calls the visitor with the name and the value of the given column for every indexed character.
+     * @param column    the id of the column
+     * @param visitor   the visitor to call
+     */
+    public void forEachRow(int column, RowVisitor visitor) {
+        lock.readLock().lock();
+        try {
+            int[] values = columns[column];
+            for (int row = 0; row < size; row++) {
+                visitor.visit(names[row], values[row]);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Runs the query against the index.
+     * @param query the query to run
+     * @return      the matching rows as a human readable table
+     */
+    public String query(CharacterQuery query) {
+        lock.readLock().lock();
+        try {
+            return query.execute(names, columns, size, this);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Collects a chunk of the page of the LIST request from the names in alphabetical order.
+     * @param list      the LIST request
+     * @param from      the name to start after, null to start at the first name
+     * @param count     the maximal number of names to collect
+     * @param available the filter of the names which may be listed
+     * @param result    the list to add the names to
+     * @return          true if there are more matching names after the collected ones
+     */
+    public boolean list(CharacterList list, String from, int count, Predicate<String> available, List<String> result) {
+        lock.readLock().lock();
+        try {
+            return list.execute(sortedNames, from, count, available, result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes all the attributes of the character into the given row.
+     * @param row       the row to write to
+     * @param character the character to take the values from
+     */
+    private void fillRow(int row, Character character) {
+        int maxHp = character.getMaxHP();
+        int currentHp = character.getCurrentHP();
+        columns[columnIds.get("level")][row] = character.getLevel();
+        columns[columnIds.get("hp")][row] = currentHp;
+        columns[columnIds.get("maxhp")][row] = maxHp;
+        columns[columnIds.get("hp%")][row] = maxHp > 0 ? currentHp * 100 / maxHp : 0;
+        List<String> stats = Character.getStatsView();
+        for (int i = 0; i < stats.size(); i++) {
+            String stat = stats.get(i);
+            columns[statColumns[i]][row] = character.getStatValue(stat);
+            columns[statColumns[i] + 1][row] = character.getStatMod(stat);
+            columns[statColumns[i] + 2][row] = character.getSaveMod(stat);
+        }
+        List<String> skills = Character.getSkillsView();
+        for (int i = 0; i < skills.size(); i++) {
+            int mod = character.getSkillMod(skills.get(i));
+            columns[skillColumns[i]][row] = mod;
+            columns[skillColumns[i] + 1][row] = 10 + mod;
+        }
+    }
+
+    /**
+     * Grows the name array and all the columns so that they can hold at least the given number of rows.
+     * @param capacity  the required number of rows
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= names.length) return;
+        int newCapacity = Math.max(capacity, names.length * 2);
+        names = Arrays.copyOf(names, newCapacity);
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = Arrays.copyOf(columns[i], newCapacity);
+        }
+    }
+
+    /**
+     * Represents a callback receiving a single value of a column.
+     */
+    @FunctionalInterface
+    public interface RowVisitor {
+        void visit(String name, int value);
+    }
+}
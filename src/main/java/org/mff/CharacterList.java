@@ -0,0 +1,159 @@
+package org.mff;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.function.Predicate;
+
+/**
+ * Represents a LIST request: a page of the names of the characters in alphabetical order, optionally only those
+ * starting with a prefix or containing a text, for example:
+ * <pre>
+ *     prefix Gob limit 20
+ *     contains orc after Big%20Orc
+ * </pre>
+ * The prefix is case sensitive, the text is not. The server streams the page as CHUNK messages and ends it with
+ * an OK message holding the cursor of the next page, which the client passes back after "after", or an empty
+ * payload if there are no more characters. The names are looked up in the sorted names of the
+ * {@link CharacterIndex}, so the first chunk takes the same time in a compain of any size.
+ */
+public class CharacterList {
+    /**
+     * Number of names of a page when the request does not give the limit.
+     */
+    public static final int DEFAULT_LIMIT = Integer.getInteger("list.pageSize", 100);
+    /**
+     * Largest accepted limit.
+     */
+    public static final int MAX_LIMIT = Integer.getInteger("list.maxPageSize", 10_000);
+    private static final String[] KEYWORDS = {"prefix", "contains", "limit", "after"};
+
+    private final String prefix;
+    private final String text;
+    private final int limit;
+    private final String after;
+
+    private CharacterList(String prefix, String text, int limit, String after) {
+        this.prefix = prefix;
+        this.text = text;
+        this.limit = limit;
+        this.after = after;
+    }
+
+    /**
+     * Parses the request. An empty request lists the first page of all the characters.
+     * @param request   the text of the request
+     * @return          the parsed request
+     * @throws IllegalArgumentException if the request is malformed
+     */
+    public static CharacterList parse(String request) {
+        String[] tokens = request == null ? new String[0] : request.trim().split("\\s+");
+        String prefix = null;
+        String text = null;
+        int limit = DEFAULT_LIMIT;
+        String after = null;
+        int i = 0;
+        while (i < tokens.length && !tokens[i].isEmpty()) {
+            if (!isKeyword(tokens[i])) throw new IllegalArgumentException("Unexpected token: " + tokens[i]);
+            String keyword = tokens[i++].toLowerCase();
+            int end = i;
+            while (end < tokens.length && !isKeyword(tokens[end])) end++;
+            if (end == i) throw new IllegalArgumentException("Expected value after " + keyword);
+            String value = String.join(" ", List.of(tokens).subList(i, end));
+            switch (keyword) {
+                case "prefix" -> prefix = value;
+                case "contains" -> text = value;
+                case "limit" -> {
+                    try {
+                        limit = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Expected number after limit: " + value);
+                    }
+                    if (limit < 1 || limit > MAX_LIMIT)
+                        throw new IllegalArgumentException("Limit must be between 1 and " + MAX_LIMIT);
+                }
+                case "after" -> {
+                    if (end - i > 1) throw new IllegalArgumentException("Invalid cursor: " + value);
+                    after = Database.decodeName(value);
+                }
+            }
+            i = end;
+        }
+        return new CharacterList(prefix, text, limit, after);
+    }
+
+    /**
+     * Decides whether the token is one of the keywords of the request.
+     * @param token the token
+     * @return      true if the token is a keyword
+     */
+    private static boolean isKeyword(String token) {
+        for (String keyword : KEYWORDS) {
+            if (keyword.equalsIgnoreCase(token)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Makes the cursor of the page following the given name.
+     * @param name  the last name of the page
+     * @return      the cursor, free of spaces
+     */
+    public static String cursor(String name) {
+        return Database.encodeName(name);
+    }
+
+    /**
+     * Gets the number of names of the page.
+     * @return  the limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Gets the name the page starts after.
+     * @return  the name, null if the page starts at the first character
+     */
+    public String getAfter() {
+        return after;
+    }
+
+    /**
+     * Collects the matching names which follow the given name. Called by {@link CharacterIndex} under its lock.
+     * @param names     the sorted names of all the characters
+     * @param from      the name to start after, null to start at the first name
+     * @param count     the maximal number of names to collect
+     * @param available the filter of the names which may be listed, e.g. those not assigned to players
+     * @param result    the list to add the names to
+     * @return          true if there are more matching names after the collected ones
+     */
+    boolean execute(NavigableSet<String> names, String from, int count, Predicate<String> available,
+                    List<String> result) {
+        NavigableSet<String> tail;
+        if (prefix != null && (from == null || from.compareTo(prefix) < 0)) {
+            tail = names.tailSet(prefix, true);
+        } else {
+            tail = from == null ? names : names.tailSet(from, false);
+        }
+        for (String name : tail) {
+            if (prefix != null && !name.startsWith(prefix)) return false;
+            if (text != null && !containsIgnoreCase(name, text)) continue;
+            if (!available.test(name)) continue;
+            if (result.size() == count) return true;
+            result.add(name);
+        }
+        return false;
+    }
+
+    /**
+     * Decides whether the name contains the text, ignoring the case, without allocating.
+     * @param name  the name
+     * @param text  the text to look for
+     * @return      true if the name contains the text
+     */
+    private static boolean containsIgnoreCase(String name, String text) {
+        for (int i = 0; i + text.length() <= name.length(); i++) {
+            if (name.regionMatches(true, i, text, 0, text.length())) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,288 @@
+package org.mff;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Represents a query over the {@link CharacterIndex}. A query consists of optional filters, an optional sort and
+ * an optional limit, for example:
+ * <pre>
+ *     where passive.perception &gt;= 15 and hp% &lt; 50 sort dexterity.save desc top 5
+ * </pre>
+ */
+public class CharacterQuery {
+    /**
+     * Number of rows above which the filter is evaluated in parallel on the common fork-join pool.
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+    private static final int EQ = 0;
+    private static final int NE = 1;
+    private static final int LT = 2;
+    private static final int LE = 3;
+    private static final int GT = 4;
+    private static final int GE = 5;
+    private static final String[] OPERATORS = {"=", "!=", "<", "<=", ">", ">="};
+
+    private final String[] filterColumns;
+    private final int[] filterOperators;
+    private final int[] filterValues;
+    private final String sortColumn;
+    private final boolean descending;
+    private final int limit;
+
+    private CharacterQuery(ArrayList<String> columns, ArrayList<Integer> operators, ArrayList<Integer> values,
+                           String sortColumn, boolean descending, int limit) {
+        filterColumns = columns.toArray(new String[0]);
+        filterOperators = operators.stream().mapToInt(Integer::intValue).toArray();
+        filterValues = values.stream().mapToInt(Integer::intValue).toArray();
+        this.sortColumn = sortColumn;
+        this.descending = descending;
+        this.limit = limit;
+    }
+
+    /**
+     * Parses the query.
+     * @param text  the text of the query
+     * @return      the parsed query
+     * @throws IllegalArgumentException if the query is malformed
+     */
+    public static CharacterQuery parse(String text) {
+        String[] tokens = text.trim().toLowerCase().split("\\s+");
+        ArrayList<String> columns = new ArrayList<>();
+        ArrayList<Integer> operators = new ArrayList<>();
+        ArrayList<Integer> values = new ArrayList<>();
+        String sortColumn = null;
+        boolean descending = false;
+        int limit = -1;
+        int i = 0;
+        while (i < tokens.length && !tokens[i].isEmpty()) {
+            switch (tokens[i]) {
+                case "where", "and" -> {
+                    if (i + 3 >= tokens.length)
+                        throw new IllegalArgumentException("Expected <column> <operator> <value> after " + tokens[i]);
+                    columns.add(tokens[i + 1]);
+                    operators.add(parseOperator(tokens[i + 2]));
+                    values.add(parseInt(tokens[i + 3]));
+                    i += 4;
+                }
+                case "sort" -> {
+                    if (i + 1 >= tokens.length) throw new IllegalArgumentException("Expected column after sort");
+                    sortColumn = tokens[i + 1];
+                    i += 2;
+                    if (i < tokens.length && (tokens[i].equals("asc") || tokens[i].equals("desc"))) {
+                        descending = tokens[i].equals("desc");
+                        i++;
+                    }
+                }
+                case "top" -> {
+                    if (i + 1 >= tokens.length) throw new IllegalArgumentException("Expected number after top");
+                    limit = parseInt(tokens[i + 1]);
+                    if (limit < 0) throw new IllegalArgumentException("Limit must not be negative");
+                    i += 2;
+                }
+                default -> throw new IllegalArgumentException("Unexpected token: " + tokens[i]);
+            }
+        }
+        return new CharacterQuery(columns, operators, values, sortColumn, descending, limit);
+    }
+
+    /**
+     * Parses the comparison operator.
+     * @param token the token to parse
+     * @return      the id of the operator
+     */
+    private static int parseOperator(String token) {
+        for (int i = 0; i < OPERATORS.length; i++) {
+            if (OPERATORS[i].equals(token)) return i;
+        }
+        throw new IllegalArgumentException("Unknown operator: " + token);
+    }
+
+    /**
+     * Parses the integer value.
+     * @param token the token to parse
+     * @return      the parsed value
+     */
+    private static int parseInt(String token) {
+        try {
+            return Integer.parseInt(token);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a number, got: " + token);
+        }
+    }
+
+    /**
+     * Executes the query over the columns of the index. Must be called with the read lock of the index held.
+     * @param names     the names of the indexed characters
+     * @param columns   the columns of the index
+     * @param size      the number of rows in the index
+     * @param index     the index, used to resolve column names
+     * @return          the matching rows as a human readable table
+     */
+    String execute(String[] names, int[][] columns, int size, CharacterIndex index) {
+        int[][] filters = new int[filterColumns.length][];
+        for (int f = 0; f < filterColumns.length; f++) {
+            filters[f] = columns[index.getColumnId(filterColumns[f])];
+        }
+        int[] sortKeys = sortColumn == null ? null : columns[index.getColumnId(sortColumn)];
+
+        IntStream rows = IntStream.range(0, size);
+        if (size > PARALLEL_THRESHOLD) rows = rows.parallel();
+        int[] matches = rows.filter(row -> matches(filters, row)).toArray();
+
+        if (sortKeys != null) {
+            matches = limit >= 0 ? topK(matches, sortKeys, limit) : sortAll(matches, sortKeys);
+        } else if (limit >= 0 && matches.length > limit) {
+            matches = Arrays.copyOf(matches, limit);
+        }
+        return render(names, columns, matches, index);
+    }
+
+    /**
+     * Checks if the row passes all the filters.
+     * @param filters   the columns of the filters
+     * @param row       the row to check
+     * @return          true if the row passes all the filters, false otherwise
+     */
+    private boolean matches(int[][] filters, int row) {
+        for (int f = 0; f < filters.length; f++) {
+            int value = filters[f][row];
+            int bound = filterValues[f];
+            boolean passed = switch (filterOperators[f]) {
+                case EQ -> value == bound;
+                case NE -> value != bound;
+                case LT -> value < bound;
+                case LE -> value <= bound;
+                case GT -> value > bound;
+                default -> value >= bound;
+            };
+            if (!passed) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Packs the sort key and the row into a single long so that rows can be sorted as primitives. Rows with equal
+     * keys stay in the row order.
+     * @param key   the sort key
+     * @param row   the row
+     * @return      the packed value
+     */
+    private long pack(int key, int row) {
+        long k = descending ? -(long) key : key;
+        return (k << 32) | row;
+    }
+
+    /**
+     * Sorts all the matching rows by the sort column.
+     * @param matches   the matching rows
+     * @param keys      the sort column
+     * @return          the sorted rows
+     */
+    private int[] sortAll(int[] matches, int[] keys) {
+        long[] packed = new long[matches.length];
+        for (int i = 0; i < matches.length; i++) {
+            packed[i] = pack(keys[matches[i]], matches[i]);
+        }
+        if (packed.length > PARALLEL_THRESHOLD) Arrays.parallelSort(packed);
+        else Arrays.sort(packed);
+        int[] result = new int[packed.length];
+        for (int i = 0; i < packed.length; i++) {
+            result[i] = (int) packed[i];
+        }
+        return result;
+    }
+
+    /**
+     * Selects the k first matching rows in the sort order using a bounded max-heap.
+     * @param matches   the matching rows
+     * @param keys      the sort column
+     * @param k         the number of rows to select
+     * @return          the selected rows in the sort order
+     */
+    private int[] topK(int[] matches, int[] keys, int k) {
+        long[] heap = new long[Math.min(k, matches.length)];
+        int heapSize = 0;
+        for (int row : matches) {
+            long value = pack(keys[row], row);
+            if (heapSize < heap.length) {
+                heap[heapSize] = value;
+                siftUp(heap, heapSize++);
+            } else if (heap.length > 0 && value < heap[0]) {
+                heap[0] = value;
+                siftDown(heap, heapSize);
+            }
+        }
+        Arrays.sort(heap, 0, heapSize);
+        int[] result = new int[heapSize];
+        for (int i = 0; i < heapSize; i++) {
+            result[i] = (int) heap[i];
+        }
+        return result;
+    }
+
+    /**
+     * Restores the max-heap property after inserting to the given position.
+     * @param heap  the heap
+     * @param i     the position of the inserted element
+     */
+    private static void siftUp(long[] heap, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heap[parent] >= heap[i]) return;
+            long tmp = heap[parent];
+            heap[parent] = heap[i];
+            heap[i] = tmp;
+            i = parent;
+        }
+    }
+
+    /**
+     * Restores the max-heap property after replacing the root.
+     * @param heap  the heap
+     * @param size  the number of elements in the heap
+     */
+    private static void siftDown(long[] heap, int size) {
+        int i = 0;
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && heap[left] > heap[largest]) largest = left;
+            if (right < size && heap[right] > heap[largest]) largest = right;
+            if (largest == i) return;
+            long tmp = heap[largest];
+            heap[largest] = heap[i];
+            heap[i] = tmp;
+            i = largest;
+        }
+    }
+
+    /**
+     * Renders the selected rows together with all the columns mentioned in the query.
+     * @param names     the names of the indexed characters
+     * @param columns   the columns of the index
+     * @param rows      the rows to render
+     * @param index     the index, used to resolve column names
+     * @return          the rendered table
+     */
+    private String render(String[] names, int[][] columns, int[] rows, CharacterIndex index) {
+        ArrayList<Integer> shown = new ArrayList<>();
+        for (String column : filterColumns) {
+            int id = index.getColumnId(column);
+            if (!shown.contains(id)) shown.add(id);
+        }
+        if (sortColumn != null && !shown.contains(index.getColumnId(sortColumn)))
+            shown.add(index.getColumnId(sortColumn));
+        StringBuilder sb = new StringBuilder();
+        sb.append(rows.length).append(" character(s)\n");
+        for (int row : rows) {
+            sb.append(names[row]);
+            for (int id : shown) {
+                sb.append(' ').append(index.getColumnName(id)).append('=').append(columns[id][row]);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,161 @@
+package org.mff;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedOutputStream;
+
+/**
+ * Represents the JSON codecs shared by the whole application. The mapper is configured once, with the field
+ * visibility all the stored and sent JSON relies on, and the readers and writers of the characters and of the compain
+ * metadata are built from it up front. Readers and writers are immutable and thread safe, so the server's handlers,
+ * the database and the clients all use the same instances and never look up the serializers again.
+ * <p>
+ * The byte array and {@link ByteBuffer} paths read and write UTF-8 directly, without going through a String.
+ */
+public final class Codecs {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final ObjectReader characterReader;
+    private static final ObjectWriter characterWriter;
+    private static final ObjectReader metadataReader;
+    private static final ObjectWriter metadataWriter;
+
+    static {
+        mapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
+        Character.initStatic();
+        characterReader = mapper.readerFor(Character.class);
+        characterWriter = mapper.writerFor(Character.class);
+        TypeReference<HashMap<String, String>> metadata = new TypeReference<HashMap<String, String>>() {};
+        metadataReader = mapper.readerFor(metadata);
+        metadataWriter = mapper.writerFor(metadata);
+    }
+
+    private Codecs() {
+    }
+
+    /**
+     * Gets the shared mapper, for the tree model and the types without a codec of their own. It must not be
+     * reconfigured.
+     * @return  the shared mapper
+     */
+    public static ObjectMapper mapper() {
+        return mapper;
+    }
+
+    /**
+     * Reads the character from the UTF-8 JSON.
+     * @param json  the JSON of the character
+     * @return      the character
+     * @throws IOException
+     */
+    public static Character readCharacter(byte[] json) throws IOException {
+        return characterReader.readValue(json);
+    }
+
+    /**
+     * Reads the character from the JSON.
+     * @param json  the JSON of the character
+     * @return      the character
+     * @throws IOException
+     */
+    public static Character readCharacter(String json) throws IOException {
+        return characterReader.readValue(json);
+    }
+
+    /**
+     * Reads the character from the remaining UTF-8 JSON of the buffer, advancing its position. A heap buffer is
+     * parsed in place.
+     * @param json  the buffer holding the JSON of the character
+     * @return      the character
+     * @throws IOException
+     */
+    public static Character readCharacter(ByteBuffer json) throws IOException {
+        if (json.hasArray()) {
+            Character character = characterReader.readValue(json.array(), json.arrayOffset() + json.position(),
+                    json.remaining());
+            json.position(json.limit());
+            return character;
+        }
+        return characterReader.readValue(new ByteBufferBackedInputStream(json));
+    }
+
+    /**
+     * Reads the character from the tree, e.g. from a history event or an archive record.
+     * @param json  the tree of the character
+     * @return      the character
+     * @throws IOException
+     */
+    public static Character readCharacter(JsonNode json) throws IOException {
+        return characterReader.readValue(json);
+    }
+
+    /**
+     * Writes the character as UTF-8 JSON.
+     * @param character the character
+     * @return          the JSON of the character
+     * @throws IOException
+     */
+    public static byte[] writeCharacter(Character character) throws IOException {
+        return characterWriter.writeValueAsBytes(character);
+    }
+
+    /**
+     * Writes the character as JSON.
+     * @param character the character
+     * @return          the JSON of the character
+     * @throws IOException
+     */
+    public static String writeCharacterString(Character character) throws IOException {
+        return characterWriter.writeValueAsString(character);
+    }
+
+    /**
+     * Writes the character as UTF-8 JSON into the buffer from its position on.
+     * @param character the character
+     * @param buffer    the buffer to write to
+     * @throws IOException
+     * @throws java.nio.BufferOverflowException if the JSON does not fit into the buffer
+     */
+    public static void writeCharacter(Character character, ByteBuffer buffer) throws IOException {
+        characterWriter.writeValue(new ByteBufferBackedOutputStream(buffer), character);
+    }
+
+    /**
+     * Copies the character, e.g. to change a character which may be shared with other readers.
+     * @param character the character
+     * @return          the copy
+     * @throws IOException
+     */
+    public static Character copyCharacter(Character character) throws IOException {
+        return readCharacter(writeCharacter(character));
+    }
+
+    /**
+     * Reads the compain metadata, the map from players to their characters, from the UTF-8 JSON.
+     * @param json  the JSON of the metadata
+     * @return      the HashMap from players to their characters
+     * @throws IOException
+     */
+    public static HashMap<String, String> readMetadata(byte[] json) throws IOException {
+        return metadataReader.readValue(json);
+    }
+
+    /**
+     * Writes the compain metadata as UTF-8 JSON.
+     * @param metadata  the map from players to their characters
+     * @return          the JSON of the metadata
+     * @throws IOException
+     */
+    public static byte[] writeMetadata(Map<String, String> metadata) throws IOException {
+        return metadataWriter.writeValueAsBytes(metadata);
+    }
+}
@@ -0,0 +1,264 @@
+package org.mff;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Represents the cold tier of a compain: the characters nobody has touched for a long time, kept in compressed
+ * segments, Archive/&lt;compain&gt;/segment-000001.zip and so on, instead of one file each in the hot directory.
+ * Every archiving writes a new segment holding the moved characters as entries named like their hot files.
+ * <p>
+ * A character taken back to the hot tier stays in its segment as a dead entry; a segment is deleted when all its
+ * entries are dead. When the compain is opened the hot file of a character wins over its entries, so a crash
+ * between writing one tier and deleting the other never loses nor revives a character. Only the compain's writer
+ * changes the storage; the catalog of the archived names may be read from any thread.
+ */
+class ColdStorage {
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".zip";
+    private final Path directory;
+    private final ConcurrentHashMap<String, Segment> catalog = new ConcurrentHashMap<>();
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private int lastSegment;
+
+    ColdStorage(Path _directory) {
+        directory = _directory;
+    }
+
+    /**
+     * Represents a single segment and the number of its entries which are still archived.
+     */
+    private static class Segment {
+        private final Path path;
+        private ZipFile zip;
+        private int live;
+
+        Segment(Path _path) {
+            path = _path;
+        }
+
+        /**
+         * Reads the entry of the character.
+         * @param entryName the name of the entry
+         * @return          the JSON of the character, null if the segment has no such entry
+         * @throws IOException
+         */
+        synchronized String read(String entryName) throws IOException {
+            if (zip == null) zip = new ZipFile(path.toFile());
+            ZipEntry entry = zip.getEntry(entryName);
+            if (entry == null) return null;
+            return new String(zip.getInputStream(entry).readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        synchronized void close() throws IOException {
+            if (zip != null) zip.close();
+            zip = null;
+        }
+    }
+
+    /**
+     * Reads the catalogs of all the segments. The later segments win over the earlier ones and the hot tier wins
+     * over all of them.
+     * @param hot   decides whether the character is in the hot tier
+     * @throws IOException
+     */
+    void load(Predicate<String> hot) throws IOException {
+        close();
+        catalog.clear();
+        segments.clear();
+        lastSegment = 0;
+        if (!Files.isDirectory(directory)) return;
+        ArrayList<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(path -> isSegment(path.getFileName().toString()))
+                    .sorted()
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+        for (Path file : files) {
+            Segment segment = new Segment(file);
+            segments.add(segment);
+            String fileName = file.getFileName().toString();
+            lastSegment = Math.max(lastSegment,
+                    Integer.parseInt(fileName.substring(PREFIX.length(), fileName.length() - SUFFIX.length())));
+            try (ZipFile zip = new ZipFile(file.toFile())) {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    String name = Database.decodeName(entries.nextElement().getName());
+                    if (hot.test(name)) continue;
+                    Segment previous = catalog.put(name, segment);
+                    if (previous != null) previous.live--;
+                    segment.live++;
+                }
+            }
+        }
+        for (Segment segment : new ArrayList<>(segments)) {
+            if (segment.live == 0) delete(segment);
+        }
+    }
+
+    /**
+     * Decides whether the file is a segment.
+     * @param fileName  the name of the file
+     * @return          true if the file is a segment
+     */
+    private static boolean isSegment(String fileName) {
+        return fileName.startsWith(PREFIX) && fileName.endsWith(SUFFIX)
+                && fileName.substring(PREFIX.length(), fileName.length() - SUFFIX.length()).matches("[0-9]+");
+    }
+
+    /**
+     * Decides whether the character is archived.
+     * @param name  the name of the character
+     * @return      true if the character is in the cold tier
+     */
+    boolean contains(String name) {
+        return catalog.containsKey(name);
+    }
+
+    /**
+     * Gets the number of the archived characters.
+     * @return  the number of characters in the cold tier
+     */
+    int size() {
+        return catalog.size();
+    }
+
+    /**
+     * Writes the characters into a new segment. The segment is complete on the disk before the characters are
+     * listed as archived, the caller deletes their hot files afterwards.
+     * @param files the map from the names of the characters to their hot files
+     * @throws IOException
+     */
+    void archive(Map<String, Path> files) throws IOException {
+        if (files.isEmpty()) return;
+        Files.createDirectories(directory);
+        Path path = directory.resolve(String.format("%s%06d%s", PREFIX, lastSegment + 1, SUFFIX));
+        Path temporary = path.resolveSibling("." + path.getFileName() + ".tmp");
+        try (OutputStream file = Files.newOutputStream(temporary);
+             ZipOutputStream zip = new ZipOutputStream(file)) {
+            for (Map.Entry<String, Path> character : files.entrySet()) {
+                zip.putNextEntry(new ZipEntry(Database.encodeName(character.getKey())));
+                zip.write(Files.readAllBytes(character.getValue()));
+                zip.closeEntry();
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+        lastSegment++;
+        Segment segment = new Segment(path);
+        segments.add(segment);
+        for (String name : files.keySet()) {
+            Segment previous = catalog.put(name, segment);
+            if (previous != null) forget(previous);
+            segment.live++;
+        }
+    }
+
+    /**
+     * Reads the archived character.
+     * @param name  the name of the character
+     * @return      the JSON of the character, null if the character is not archived
+     * @throws IOException
+     */
+    String read(String name) throws IOException {
+        Segment segment = catalog.get(name);
+        if (segment == null) return null;
+        try {
+            return segment.read(Database.encodeName(name));
+        } catch (NoSuchFileException e) {
+            // the character has been taken back or archived again since the catalog was read
+            if (catalog.get(name) == segment) throw e;
+            return read(name);
+        }
+    }
+
+    /**
+     * Removes the character from the cold tier once its hot file has been written.
+     * @param name  the name of the character
+     * @throws IOException
+     */
+    void remove(String name) throws IOException {
+        Segment segment = catalog.remove(name);
+        if (segment != null) forget(segment);
+    }
+
+    /**
+     * Counts a dead entry of the segment and deletes the segment if it has no live entry left.
+     * @param segment   the segment
+     * @throws IOException
+     */
+    private void forget(Segment segment) throws IOException {
+        if (--segment.live == 0) delete(segment);
+    }
+
+    /**
+     * Closes and deletes the segment. No character of the catalog is read from it any more.
+     * @param segment   the segment
+     * @throws IOException
+     */
+    private void delete(Segment segment) throws IOException {
+        segment.close();
+        segments.remove(segment);
+        Files.deleteIfExists(segment.path);
+    }
+
+    /**
+     * Streams the JSON of all the archived characters. The stream reads the segments lazily.
+     * @return  the stream of the JSON of the characters
+     */
+    Stream<String> streamJson() {
+        return new ArrayList<>(catalog.keySet()).stream()
+                .map(name -> {
+                    try {
+                        return read(name);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .filter(json -> json != null);
+    }
+
+    /**
+     * Gets the names of the archived characters.
+     * @return  the names
+     */
+    ArrayList<String> getNames() {
+        return new ArrayList<>(catalog.keySet());
+    }
+
+    /**
+     * Deletes all the segments, e.g. when the compain is replaced by a snapshot holding all its characters.
+     * @throws IOException
+     */
+    void clear() throws IOException {
+        close();
+        catalog.clear();
+        segments.clear();
+        Database.deleteTree(directory);
+        lastSegment = 0;
+    }
+
+    /**
+     * Closes the segments. They are opened again by the next read.
+     * @throws IOException
+     */
+    void close() throws IOException {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+}
@@ -0,0 +1,463 @@
+package org.mff;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Represents the server side combat tracker. Every compain may run any number of named encounters at once, each
+ * guarded by its own monitor, so encounters never wait for each other. A request is one of:
+ * <pre>
+ *     start &lt;encounter&gt; [targets]        add &lt;encounter&gt; &lt;targets&gt;        remove &lt;encounter&gt; &lt;names&gt;
+ *     delay &lt;encounter&gt; &lt;name&gt; after &lt;name&gt;                        next &lt;encounter&gt;
+ *     damage &lt;encounter&gt; &lt;amount&gt; &lt;names&gt;  heal &lt;encounter&gt; &lt;amount&gt; &lt;names&gt;
+ *     show &lt;encounter&gt;                     wait &lt;encounter&gt; &lt;version&gt;      end &lt;encounter&gt;        list
+ * </pre>
+ * The targets are "me", "npcs", "all" or a comma separated list of names as in {@link RollEngine}, initiative is
+ * d20 plus the dexterity modifier from the {@link CharacterIndex}. Every change of an encounter raises its version;
+ * "wait" holds the request until the version is newer than the given one, so the participants get every turn change
+ * pushed to them as the response of their waiting request. The encounters of a compain end when the compain is
+ * closed for being idle.
+ */
+public class CombatEngine {
+    private static final long WAIT_MILLIS = Long.getLong("combat.waitSeconds", 30) * 1000;
+    private static final int MAX_COMBATANTS = Integer.getInteger("combat.maxCombatants", 1000);
+    private final ConcurrentHashMap<Database, ConcurrentHashMap<String, Encounter>> compains = new ConcurrentHashMap<>();
+    private final RollEngine rollEngine;
+
+    /**
+     * Represents the result of a request: the description of the encounter or of the change and the version of
+     * the encounter, -1 if the request did not concern a single encounter.
+     */
+    public static class Result {
+        public final String text;
+        public final long version;
+        public final boolean modified;
+
+        Result(String _text, long _version, boolean _modified) {
+            text = _text;
+            version = _version;
+            modified = _modified;
+        }
+    }
+
+    /**
+     * Represents a single combatant in the turn order. Combatants are ordered by their order value, highest first,
+     * which is the initiative at first and lies between the neighbours of the new place after a delay.
+     */
+    private static class Combatant implements Comparable<Combatant> {
+        private final String name;
+        private final int initiative;
+        private final double order;
+        private final long sequence;
+
+        Combatant(String _name, int _initiative, double _order, long _sequence) {
+            name = _name;
+            initiative = _initiative;
+            order = _order;
+            sequence = _sequence;
+        }
+
+        @Override
+        public int compareTo(Combatant other) {
+            int result = Double.compare(other.order, order);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Represents a running encounter. All the methods hold the monitor of the encounter.
+     */
+    private static class Encounter {
+        private final String name;
+        private final TreeSet<Combatant> order = new TreeSet<>();
+        private final HashMap<String, Combatant> combatants = new HashMap<>();
+        private Combatant current;
+        private int round = 1;
+        private long version;
+        private long sequence;
+        private boolean ended;
+
+        Encounter(String _name) {
+            name = _name;
+        }
+
+        /**
+         * Inserts the combatant with the rolled initiative, replacing its previous place if it is already in.
+         * The dexterity modifier breaks the ties of the initiative.
+         * @param character     the name of the character
+         * @param initiative    the total of the initiative roll
+         * @param dexterity     the dexterity modifier
+         */
+        void add(String character, int initiative, int dexterity) {
+            remove(character);
+            if (combatants.size() >= MAX_COMBATANTS)
+                throw new IllegalArgumentException("The encounter has " + MAX_COMBATANTS + " combatants already");
+            Combatant combatant = new Combatant(character, initiative, initiative + (dexterity + 64) / 128.0, sequence++);
+            order.add(combatant);
+            combatants.put(character, combatant);
+            if (current == null) current = order.first();
+        }
+
+        /**
+         * Removes the combatant. If it is the current one, the turn passes to the next combatant.
+         * @param character the name of the character
+         * @return          true if the character was in the encounter
+         */
+        boolean remove(String character) {
+            Combatant combatant = combatants.remove(character);
+            if (combatant == null) return false;
+            if (combatant == current) current = order.size() == 1 ? null : following(combatant);
+            order.remove(combatant);
+            return true;
+        }
+
+        /**
+         * Moves the combatant right after the other one in the turn order. A combatant delaying its own turn passes
+         * the turn to the next combatant.
+         * @param character the name of the delaying character
+         * @param after     the name of the character to act after
+         */
+        void delay(String character, String after) {
+            Combatant combatant = get(character);
+            Combatant target = get(after);
+            if (combatant == target) throw new IllegalArgumentException("Can't delay after oneself");
+            if (combatant == current) current = following(combatant);
+            order.remove(combatant);
+            Combatant next = order.higher(target);
+            double place = next == null ? target.order - 1 : (target.order + next.order) / 2;
+            Combatant delayed = new Combatant(character, combatant.initiative, place, sequence++);
+            order.add(delayed);
+            combatants.put(character, delayed);
+            if (current == null) current = delayed;
+        }
+
+        /**
+         * Gives the first turn of the first round to the combatant with the highest initiative.
+         */
+        void begin() {
+            current = order.isEmpty() ? null : order.first();
+            round = 1;
+        }
+
+        /**
+         * Passes the turn to the next combatant, starting a new round after the last one.
+         */
+        void next() {
+            if (current == null) throw new IllegalArgumentException("The encounter has no combatants");
+            Combatant next = order.higher(current);
+            if (next == null) {
+                next = order.first();
+                round++;
+            }
+            current = next;
+        }
+
+        /**
+         * Gets the combatant following the given one in the turn order, wrapping to the first.
+         * @param combatant the combatant
+         * @return          the following combatant
+         */
+        private Combatant following(Combatant combatant) {
+            Combatant next = order.higher(combatant);
+            if (next != null) return next;
+            round++;
+            return order.first();
+        }
+
+        /**
+         * Gets the combatant.
+         * @param character the name of the character
+         * @return          the combatant
+         * @throws IllegalArgumentException if the character is not in the encounter
+         */
+        Combatant get(String character) {
+            Combatant combatant = combatants.get(character);
+            if (combatant == null) throw new IllegalArgumentException(character + " is not in encounter " + name);
+            return combatant;
+        }
+
+        /**
+         * Records a change and wakes up the waiting participants.
+         */
+        void changed() {
+            version++;
+            notifyAll();
+        }
+
+        /**
+         * Describes the encounter: the round and the turn order with the current combatant marked.
+         * @param index the index to take the hit points from
+         * @param sb    the StringBuilder to append to
+         */
+        void describe(CharacterIndex index, StringBuilder sb) {
+            sb.append("Encounter ").append(name).append(", round ").append(round);
+            if (ended) sb.append(", ended");
+            sb.append('\n');
+            int hp = index.getColumnId("hp");
+            int maxHp = index.getColumnId("maxhp");
+            for (Combatant combatant : order) {
+                sb.append(combatant == current ? "> " : "  ").append(combatant.initiative).append(' ')
+                        .append(combatant.name);
+                if (index.contains(combatant.name)) {
+                    sb.append(" (hp ").append(index.getValue(combatant.name, hp)).append('/')
+                            .append(index.getValue(combatant.name, maxHp)).append(')');
+                }
+                sb.append('\n');
+            }
+        }
+    }
+
+    /**
+     * Creates the engine rolling the initiative with the given roll engine.
+     * @param _rollEngine   the roll engine
+     */
+    public CombatEngine(RollEngine _rollEngine) {
+        rollEngine = _rollEngine;
+    }
+
+    /**
+     * Decides whether the request only reads the encounters: "list", "show" and "wait". The others change an
+     * encounter or the characters, which a replication follower has to refuse, as the encounters of the leader
+     * are not replicated and would go their own way on the follower.
+     * @param request   the request
+     * @return          true if the request changes nothing
+     */
+    public static boolean isReadOnly(String request) {
+        if (request == null) return false;
+        String verb = request.trim().split("\\s+", 2)[0].toLowerCase();
+        return verb.equals("list") || verb.equals("show") || verb.equals("wait");
+    }
+
+    /**
+     * Runs the request against the encounters of the compain.
+     * @param database  the compain of the requesting player
+     * @param request   the request
+     * @param self      the name of the character picked by the requesting player, may be null
+     * @param author    the author of the changes of the characters
+     * @return          the result of the request
+     * @throws IOException
+     * @throws IllegalArgumentException if the request is malformed or can't be run
+     */
+    public Result execute(Database database, String request, String self, String author) throws IOException {
+        String[] words = request.trim().split("\\s+", 3);
+        String verb = words[0].toLowerCase();
+        ConcurrentHashMap<String, Encounter> encounters =
+                compains.computeIfAbsent(database, compain -> new ConcurrentHashMap<>());
+        if (verb.equals("list")) {
+            ArrayList<String> names = new ArrayList<>(encounters.keySet());
+            names.sort(null);
+            StringBuilder sb = new StringBuilder();
+            for (String name : names) {
+                sb.append(name).append('\n');
+            }
+            return new Result(sb.toString(), -1, true);
+        }
+        if (words.length < 2) throw new IllegalArgumentException("Expected " + verb + " <encounter>");
+        String name = words[1];
+        String argument = words.length > 2 ? words[2].trim() : "";
+        if (verb.equals("start")) {
+            if (encounters.containsKey(name)) throw new IllegalArgumentException("Encounter " + name + " is already running");
+            // the encounter is registered only once it is complete, so a failed start leaves nothing behind
+            Encounter encounter = new Encounter(name);
+            synchronized (encounter) {
+                if (!argument.isEmpty()) addAll(database, encounter, argument, self);
+                encounter.begin();
+                encounter.changed();
+                if (encounters.putIfAbsent(name, encounter) != null)
+                    throw new IllegalArgumentException("Encounter " + name + " is already running");
+                return describe(database, encounter);
+            }
+        }
+        Encounter encounter = encounters.get(name);
+        if (encounter == null) throw new IllegalArgumentException("No such encounter: " + name);
+        if (verb.equals("damage") || verb.equals("heal")) return applyHealth(database, encounter, verb, argument, author);
+        synchronized (encounter) {
+            switch (verb) {
+                case "add" -> addAll(database, encounter, argument.isEmpty() ? "me" : argument, self);
+                case "remove" -> {
+                    for (String character : names(argument, self)) {
+                        if (!encounter.remove(character))
+                            throw new IllegalArgumentException(character + " is not in encounter " + name);
+                    }
+                }
+                case "delay" -> {
+                    String[] parts = argument.split("\\s+after\\s+", 2);
+                    if (parts.length < 2) throw new IllegalArgumentException("Expected delay <encounter> <name> after <name>");
+                    encounter.delay(parts[0].trim(), parts[1].trim());
+                }
+                case "next" -> encounter.next();
+                case "show" -> {
+                    return describe(database, encounter);
+                }
+                case "wait" -> {
+                    return await(database, encounter, argument);
+                }
+                case "end" -> {
+                    encounter.ended = true;
+                    encounters.remove(name, encounter);
+                }
+                default -> throw new IllegalArgumentException("Unknown combat command: " + verb);
+            }
+            encounter.changed();
+            return describe(database, encounter);
+        }
+    }
+
+    /**
+     * Ends all the encounters of the closed compain and forgets them. The participants waiting for a change get
+     * the ended encounter.
+     * @param database  the closed compain
+     */
+    public void close(Database database) {
+        ConcurrentHashMap<String, Encounter> encounters = compains.remove(database);
+        if (encounters == null) return;
+        for (Encounter encounter : encounters.values()) {
+            synchronized (encounter) {
+                encounter.ended = true;
+                encounter.changed();
+            }
+        }
+    }
+
+    /**
+     * Rolls the initiative of the targets and adds them to the encounter. Holds the monitor of the encounter.
+     * @param database  the compain
+     * @param encounter the encounter
+     * @param targets   the targets
+     * @param self      the name of the character picked by the requesting player, may be null
+     * @throws IOException
+     */
+    private void addAll(Database database, Encounter encounter, String targets, String self) throws IOException {
+        CharacterIndex index = database.getIndex();
+        int dexterity = index.getColumnId("dexterity.mod");
+        switch (targets.toLowerCase()) {
+            case "all" -> index.forEachRow(dexterity, (character, mod) -> addOne(encounter, character, mod));
+            case "npcs" -> index.forEachRow(dexterity, (character, mod) -> {
+                if (!database.isAssigned(character)) addOne(encounter, character, mod);
+            });
+            default -> {
+                for (String character : names(targets, self)) {
+                    addOne(encounter, character, index.getValue(character, dexterity));
+                }
+            }
+        }
+    }
+
+    private void addOne(Encounter encounter, String character, int dexterity) {
+        encounter.add(character, rollEngine.rollD20() + dexterity, dexterity);
+    }
+
+    /**
+     * Splits the comma separated names, "me" stands for the picked character.
+     * @param names the names
+     * @param self  the name of the character picked by the requesting player, may be null
+     * @return      the names
+     */
+    private static ArrayList<String> names(String names, String self) {
+        ArrayList<String> result = new ArrayList<>();
+        for (String name : names.split("\\s*,\\s*")) {
+            if (name.isEmpty()) continue;
+            if (name.equalsIgnoreCase("me")) {
+                if (self == null) throw new IllegalArgumentException("You have not picked a character yet.");
+                name = self;
+            }
+            result.add(name);
+        }
+        if (result.isEmpty()) throw new IllegalArgumentException("Expected the names of the characters");
+        return result;
+    }
+
+    /**
+     * Applies the damage or the healing to the combatants. All the characters are read, changed and written as a single
+     * change of the compain's writer, so a concurrent SET can't come in between and the write is committed once.
+     * The encounter is not locked meanwhile.
+     * @param database  the compain
+     * @param encounter the encounter
+     * @param verb      "damage" or "heal"
+     * @param argument  the amount followed by the names
+     * @param author    the author of the changes
+     * @return          the description of the encounter
+     * @throws IOException
+     */
+    private Result applyHealth(Database database, Encounter encounter, String verb, String argument, String author)
+            throws IOException {
+        String[] parts = argument.split("\\s+", 2);
+        int amount;
+        try {
+            amount = Integer.parseInt(parts[0]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected " + verb + " <encounter> <amount> <names>");
+        }
+        if (amount < 0 || parts.length < 2) throw new IllegalArgumentException("Expected " + verb + " <encounter> <amount> <names>");
+        ArrayList<String> targets = names(parts[1], null);
+        synchronized (encounter) {
+            for (String character : targets) {
+                encounter.get(character);
+            }
+        }
+        database.acquireWorker();
+        try {
+            database.exclusive(() -> {
+                ArrayList<Character> changed = new ArrayList<>(targets.size());
+                for (String character : targets) {
+                    // the read character may be shared with other readers, so it is changed on a copy
+                    Character copy = Codecs.copyCharacter(database.readCharacter(character));
+                    if (verb.equals("damage")) copy.putDamage(amount);
+                    else copy.putHeal(amount);
+                    changed.add(copy);
+                }
+                database.writeCharacters(changed, author + " (" + verb + " in " + encounter.name + ")");
+                return null;
+            });
+        } finally {
+            database.releaseWorker();
+        }
+        synchronized (encounter) {
+            encounter.changed();
+            return describe(database, encounter);
+        }
+    }
+
+    /**
+     * Waits until the encounter changes after the given version or the wait times out. Holds the monitor of
+     * the encounter.
+     * @param database  the compain
+     * @param encounter the encounter
+     * @param argument  the version the participant has already seen
+     * @return          the description of the encounter, not modified if it has not changed in time
+     */
+    private Result await(Database database, Encounter encounter, String argument) {
+        long seen;
+        try {
+            seen = argument.isEmpty() ? -1 : Long.parseLong(argument);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected wait <encounter> <version>");
+        }
+        long deadline = System.nanoTime() + WAIT_MILLIS * 1_000_000;
+        while (encounter.version <= seen && !encounter.ended) {
+            long remaining = (deadline - System.nanoTime()) / 1_000_000;
+            if (remaining <= 0) return new Result("", encounter.version, false);
+            try {
+                encounter.wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new Result("", encounter.version, false);
+            }
+        }
+        return describe(database, encounter);
+    }
+
+    /**
+     * Describes the encounter. Holds the monitor of the encounter.
+     * @param database  the compain
+     * @param encounter the encounter
+     * @return          the description
+     */
+    private static Result describe(Database database, Encounter encounter) {
+        StringBuilder sb = new StringBuilder();
+        encounter.describe(database.getIndex(), sb);
+        return new Result(sb.toString(), encounter.version, true);
+    }
+}
@@ -0,0 +1,370 @@
+package org.mff;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Represents the export and the import of a whole compain as a newline-delimited JSON archive, optionally gzipped.
+ * The first line of the archive is the header, the second holds the compain metadata and every other line holds
+ * a single character:
+ * <pre>
+ *     {"format":"character-manager","version":1,"compain":"c1"}
+ *     {"metadata":{"bob":"Tester"}}
+ *     {"character":{...}}
+ * </pre>
+ * The export copies the stored JSON of the characters without parsing it. The import reads the archive in batches,
+ * parses and validates each batch in parallel on a fork-join pool while the previous batch is written through
+ * {@link Database}, so at most a few batches are held in memory whatever the size of the archive. The imported
+ * players are added to the players of the compain, a player whose character is already assigned to another player
+ * is skipped and reported.
+ */
+public class CompainArchive {
+    private static final String FORMAT = "character-manager";
+    private static final int VERSION = 1;
+    private static final int BATCH_SIZE = 1024;
+    private static final int REPORTED_ERRORS = 5;
+    private static final String AUTHOR = "import";
+    private final ObjectMapper mapper;
+    private final Database database;
+
+    /**
+     * Represents a parsed line of the archive.
+     */
+    private static class Record {
+        private final long line;
+        private Character character;
+        private Map<String, String> metadata;
+        private String error;
+
+        Record(long _line) {
+            line = _line;
+        }
+    }
+
+    /**
+     * Represents the result of an import.
+     */
+    public static class ImportResult {
+        private long characters;
+        private long players;
+        private long skipped;
+        private final ArrayList<String> errors = new ArrayList<>();
+        private final LinkedHashMap<String, String> conflicts = new LinkedHashMap<>();
+
+        public long getCharacters() {
+            return characters;
+        }
+
+        public long getPlayers() {
+            return players;
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Gets the players who were not assigned their characters, since the characters are assigned to other
+         * players.
+         * @return  the map from the players to their characters
+         */
+        public Map<String, String> getConflicts() {
+            return conflicts;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Imported ").append(characters).append(" characters and ").append(players).append(" players");
+            if (skipped > 0) sb.append(", skipped ").append(skipped).append(" invalid lines");
+            if (!conflicts.isEmpty())
+                sb.append(", skipped ").append(conflicts.size()).append(" players whose characters are taken");
+            for (String error : errors) {
+                sb.append('\n').append(error);
+            }
+            int reported = 0;
+            for (Map.Entry<String, String> conflict : conflicts.entrySet()) {
+                if (reported++ == REPORTED_ERRORS) break;
+                sb.append("\nplayer ").append(conflict.getKey()).append(": ").append(conflict.getValue())
+                        .append(" is assigned to another player");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Creates the archive of the compain.
+     * @param _database the compain to export or to import into
+     */
+    public CompainArchive(Database _database) {
+        database = _database;
+        mapper = Codecs.mapper();
+    }
+
+    /**
+     * Exports or imports a compain without running the server. Exits with 1 if the operation failed.
+     * @param args  the arguments: export|import &lt;compain&gt; &lt;file&gt;
+     */
+    public static void run(String[] args) {
+        if (args.length != 3) {
+            System.out.println("Usage: " + args[0] + " <compain> <file>");
+            System.exit(1);
+        }
+        try {
+            CompainArchive archive = new CompainArchive(Database.getInstance(args[1]));
+            if (args[0].equals("export")) {
+                System.out.println("Exported " + archive.exportTo(Paths.get(args[2])) + " characters");
+            } else {
+                System.out.println(archive.importFrom(Paths.get(args[2])));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println(args[0] + " failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Exports the compain to the file. The file is gzipped if its name ends with ".gz".
+     * @param file  the file to write to
+     * @return      the number of exported characters
+     * @throws IOException
+     */
+    public long exportTo(Path file) throws IOException {
+        try (OutputStream output = Files.newOutputStream(file)) {
+            if (!file.toString().endsWith(".gz")) return exportTo(output);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(output, 1 << 16)) {
+                return exportTo(gzip);
+            }
+        }
+    }
+
+    /**
+     * Exports the compain to the stream. Does not close the stream.
+     * @param output    the stream to write to
+     * @return          the number of exported characters
+     * @throws IOException
+     */
+    public long exportTo(OutputStream output) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 1 << 16);
+        Map<String, Object> header = new HashMap<>();
+        header.put("format", FORMAT);
+        header.put("version", VERSION);
+        header.put("compain", database.getCompain());
+        writer.write(mapper.writeValueAsString(header));
+        writer.write('\n');
+        writer.write(mapper.writeValueAsString(Map.of("metadata", database.ReadCompainMetadata())));
+        writer.write('\n');
+        long count = 0;
+        try (Stream<String> characters = database.streamCharacterJson()) {
+            Iterator<String> it = characters.iterator();
+            while (it.hasNext()) {
+                writer.write("{\"character\":");
+                writer.write(it.next().trim());
+                writer.write("}\n");
+                count++;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        writer.flush();
+        Log.info("Exported {} characters of compain {}", count, database.getCompain());
+        return count;
+    }
+
+    /**
+     * Imports the archive from the file into the compain. Gzipped archives are recognized by their content.
+     * @param file  the file to read from
+     * @return      the result of the import
+     * @throws IOException
+     * @throws IllegalArgumentException if the file is not an archive
+     */
+    public ImportResult importFrom(Path file) throws IOException {
+        try (InputStream input = Files.newInputStream(file)) {
+            return importFrom(input);
+        }
+    }
+
+    /**
+     * Imports the archive from the stream into the compain. Characters which already exist are replaced,
+     * the import is recorded in their history. Invalid lines are skipped and reported in the result.
+     * @param input the stream to read from
+     * @return      the result of the import
+     * @throws IOException
+     * @throws IllegalArgumentException if the stream is not an archive
+     */
+    public ImportResult importFrom(InputStream input) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(decompress(input), StandardCharsets.UTF_8), 1 << 16);
+        readHeader(reader.readLine());
+        ImportResult result = new ImportResult();
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            long line = 1;
+            List<String> batch = readBatch(reader);
+            Future<List<Record>> parsing = parseBatch(pool, batch, line + 1);
+            while (!batch.isEmpty()) {
+                line += batch.size();
+                batch = readBatch(reader);
+                Future<List<Record>> next = batch.isEmpty() ? null : parseBatch(pool, batch, line + 1);
+                apply(parsing.get(), result);
+                parsing = next;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Import failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        Log.info("Import into compain {}: {}", database.getCompain(), result);
+        return result;
+    }
+
+    /**
+     * Wraps the stream in a GZIPInputStream if it starts with the gzip magic number.
+     * @param input the stream to wrap
+     * @return      the stream of the decompressed archive
+     * @throws IOException
+     */
+    private static InputStream decompress(InputStream input) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(input, 1 << 16);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+        if (first == (GZIPInputStream.GZIP_MAGIC & 0xff) && second == (GZIPInputStream.GZIP_MAGIC >> 8))
+            return new GZIPInputStream(buffered, 1 << 16);
+        return buffered;
+    }
+
+    /**
+     * Checks the header line of the archive.
+     * @param line  the first line of the archive
+     * @throws IOException
+     * @throws IllegalArgumentException if the line is not a header of a supported archive
+     */
+    private void readHeader(String line) throws IOException {
+        JsonNode header;
+        try {
+            header = line == null ? null : mapper.readTree(line);
+        } catch (IOException e) {
+            header = null;
+        }
+        if (header == null || !FORMAT.equals(header.path("format").asText()))
+            throw new IllegalArgumentException("Not a compain archive");
+        if (header.path("version").asInt() != VERSION)
+            throw new IllegalArgumentException("Unsupported archive version " + header.path("version").asText());
+    }
+
+    /**
+     * Reads up to BATCH_SIZE lines.
+     * @param reader    the reader to read from
+     * @return          the lines, empty at the end of the archive
+     * @throws IOException
+     */
+    private static List<String> readBatch(BufferedReader reader) throws IOException {
+        ArrayList<String> batch = new ArrayList<>(BATCH_SIZE);
+        String line;
+        while (batch.size() < BATCH_SIZE && (line = reader.readLine()) != null) {
+            batch.add(line);
+        }
+        return batch;
+    }
+
+    /**
+     * Starts parsing the lines in parallel.
+     * @param pool  the pool to parse on
+     * @param batch the lines to parse
+     * @param first the number of the first line
+     * @return      the future list of the records in the order of the lines
+     */
+    private Future<List<Record>> parseBatch(ForkJoinPool pool, List<String> batch, long first) {
+        return pool.submit(() -> IntStream.range(0, batch.size())
+                .parallel()
+                .mapToObj(i -> parseLine(batch.get(i), first + i))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Parses and validates a single line.
+     * @param text  the line
+     * @param line  the number of the line
+     * @return      the record of the line
+     */
+    private Record parseLine(String text, long line) {
+        Record record = new Record(line);
+        if (text.isBlank()) return record;
+        try {
+            JsonNode node = mapper.readTree(text);
+            if (node.has("character")) {
+                Character character = Codecs.readCharacter(node.get("character"));
+                character.validate();
+                record.character = character;
+            } else if (node.has("metadata")) {
+                // the order of the archive decides which of two players of the same character gets it
+                record.metadata = mapper.convertValue(node.get("metadata"),
+                        new TypeReference<LinkedHashMap<String, String>>() {});
+            } else {
+                record.error = "unknown record";
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            record.error = e.getMessage();
+        }
+        return record;
+    }
+
+    /**
+     * Writes the valid records of the batch and counts the invalid ones.
+     * @param records   the records to write
+     * @param result    the result to update
+     * @throws IOException
+     */
+    private void apply(List<Record> records, ImportResult result) throws IOException {
+        ArrayList<Character> characters = new ArrayList<>(records.size());
+        for (Record record : records) {
+            if (record.error != null) {
+                result.skipped++;
+                if (result.errors.size() < REPORTED_ERRORS)
+                    result.errors.add("line " + record.line + ": " + record.error.lines().findFirst().orElse(""));
+            } else if (record.character != null) {
+                characters.add(record.character);
+            } else if (record.metadata != null) {
+                Map<String, String> conflicts = database.mergeCompainMetadata(record.metadata);
+                result.conflicts.putAll(conflicts);
+                result.players += record.metadata.size() - conflicts.size();
+            }
+        }
+        database.writeCharacters(characters, AUTHOR);
+        result.characters += characters.size();
+    }
+}
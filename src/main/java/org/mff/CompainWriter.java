@@ -0,0 +1,186 @@
+package org.mff;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Represents the single writer of a compain. All the changes of the compain are put into a bounded mailbox and
+ * applied one after another by a dedicated thread, so they never race and need no locks. The writer takes all the
+ * waiting changes at once, applies them in order and then commits the whole group with a single call of the commit
+ * action, e.g. a single write of the compain metadata for any number of picks. The callers get their results only
+ * after the commit. When the mailbox is full the callers wait.
+ */
+public class CompainWriter {
+    private static final int MAX_GROUP = 256;
+    private static final LongAdder groups = Metrics.counter("writer.groups");
+    private static final LongAdder mutations = Metrics.counter("writer.mutations");
+    private final ArrayBlockingQueue<Task<?>> mailbox;
+    private final Commit commit;
+    private final Thread thread;
+    private final Task<Void> stop = new Task<>(() -> null);
+    private volatile boolean stopped;
+
+    /**
+     * Represents a change applied by the writer.
+     * @param <T>   the type of the result
+     */
+    @FunctionalInterface
+    public interface Mutation<T> {
+        T apply() throws IOException;
+    }
+
+    /**
+     * Represents the action which makes the changes of a group durable and visible to the readers.
+     */
+    @FunctionalInterface
+    public interface Commit {
+        void commit() throws IOException;
+    }
+
+    /**
+     * Represents a change waiting in the mailbox together with the future of its result.
+     * @param <T>   the type of the result
+     */
+    private static class Task<T> {
+        private final Mutation<T> mutation;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private T result;
+        private Throwable error;
+
+        Task(Mutation<T> _mutation) {
+            mutation = _mutation;
+        }
+
+        void apply() {
+            try {
+                result = mutation.apply();
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+        }
+
+        void complete(Throwable commitError) {
+            if (error != null) future.completeExceptionally(error);
+            else if (commitError != null) future.completeExceptionally(commitError);
+            else future.complete(result);
+        }
+    }
+
+    /**
+     * Creates and starts the writer.
+     * @param name      the name of the writer's thread
+     * @param capacity  the capacity of the mailbox
+     * @param _commit   the action committing every group of changes
+     */
+    public CompainWriter(String name, int capacity, Commit _commit) {
+        mailbox = new ArrayBlockingQueue<>(capacity);
+        commit = _commit;
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets the number of the changes waiting in the mailbox.
+     * @return  the number of waiting changes
+     */
+    public int getQueued() {
+        return mailbox.size();
+    }
+
+    /**
+     * Puts the change into the mailbox, waiting if it is full.
+     * @param mutation  the change to apply
+     * @param <T>       the type of the result
+     * @return          the future of the result, completed after the change is committed
+     */
+    public <T> CompletableFuture<T> submit(Mutation<T> mutation) {
+        if (stopped) throw new IllegalStateException("The writer is stopped");
+        Task<T> task = new Task<>(mutation);
+        try {
+            mailbox.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.future.completeExceptionally(e);
+        }
+        return task.future;
+    }
+
+    /**
+     * Applies the change and waits until it is committed. A change applied from the writer's own thread, i.e.
+     * from another change, is applied right away as a part of the current group.
+     * @param mutation  the change to apply
+     * @param <T>       the type of the result
+     * @return          the result of the change
+     * @throws IOException if the change or the commit failed
+     * @throws IllegalArgumentException if the change rejected its arguments
+     */
+    public <T> T call(Mutation<T> mutation) throws IOException {
+        if (Thread.currentThread() == thread) return mutation.apply();
+        try {
+            return submit(mutation).join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Stops the writer after the changes already in the mailbox are committed. The writer is told to stop by a task
+     * put behind them, it is not interrupted, since an interrupt would close the file channel of a change in progress
+     * and fail the changes after it.
+     */
+    public synchronized void stop() {
+        try {
+            if (!stopped) {
+                stopped = true;
+                mailbox.put(stop);
+            }
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes the groups of changes from the mailbox, applies and commits them until the task stopping the writer is
+     * taken and the changes submitted while it was being stopped are committed too.
+     */
+    private void run() {
+        ArrayList<Task<?>> group = new ArrayList<>(MAX_GROUP);
+        boolean stopping = false;
+        while (true) {
+            try {
+                Task<?> first = stopping ? mailbox.poll() : mailbox.take();
+                if (first == null) return;
+                group.add(first);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            mailbox.drainTo(group, MAX_GROUP - 1);
+            if (group.remove(stop)) stopping = true;
+            if (group.isEmpty()) continue;
+            for (Task<?> task : group) {
+                task.apply();
+            }
+            Throwable commitError = null;
+            try {
+                commit.commit();
+            } catch (IOException | RuntimeException e) {
+                Log.error("Unable to commit {} changes", group.size(), e);
+                commitError = e;
+            }
+            for (Task<?> task : group) {
+                task.complete(commitError);
+            }
+            groups.increment();
+            mutations.add(group.size());
+            group.clear();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package org.mff;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Represents the optional compression of the messages of a connection. The client asks for it with a HELLO message
+ * naming the codec and the id of its dictionary, e.g. "deflate 3f2a91c0", before any other message, and the server
+ * answers HELLO "deflate" if it has the same dictionary and "none" otherwise. From then on both sides send every
+ * payload of at least -Dcompression.threshold characters (512 by default) as a {@link Deflated} object, which
+ * the other side's {@link Input} turns back into a message, so the rest of the code only sees plain messages.
+ * <p>
+ * Every payload is deflated on its own with a preset dictionary made of a typical character's JSON and sheet, so
+ * even a single sheet compresses well: its field, stat, save and skill names are already in the dictionary.
+ * -Dcompression.level sets the Deflate level, -Dcompression.enabled=false makes the server refuse compression.
+ * <p>
+ * A deflated payload is only accepted once compression has been negotiated on the connection and only if it declares
+ * at most -Dcompression.maxFrameBytes (16 MiB by default) and inflates to exactly the declared length; anything else
+ * is a protocol error which ends the connection before any buffer is allocated.
+ */
+public class Compression {
+    public static final String CODEC = "deflate";
+    static final int THRESHOLD = Integer.getInteger("compression.threshold", 512);
+    private static final int LEVEL = Integer.getInteger("compression.level", Deflater.BEST_SPEED);
+    private static final boolean ENABLED = !"false".equals(System.getProperty("compression.enabled"));
+    private static final int MAX_FRAME_BYTES = Integer.getInteger("compression.maxFrameBytes", 16 << 20);
+    private static final byte[] DICTIONARY = buildDictionary();
+    private static final String DICTIONARY_ID = dictionaryId(DICTIONARY);
+    private static final LongAdder rawBytes = Metrics.counter("compression.bytes.raw");
+    private static final LongAdder compressedBytes = Metrics.counter("compression.bytes.compressed");
+
+    private Compression() {
+    }
+
+    /**
+     * Represents a message whose payload is deflated.
+     */
+    public static final class Deflated implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final MessageType type;
+        private final long version;
+        private final int length;
+        private final byte[] data;
+
+        Deflated(MessageType _type, long _version, int _length, byte[] _data) {
+            type = _type;
+            version = _version;
+            length = _length;
+            data = _data;
+        }
+    }
+
+    /**
+     * Represents the output stream of messages which deflates the large payloads once compression is enabled.
+     */
+    public static class Output extends ObjectOutputStream {
+        private final int level;
+        private Deflater deflater;
+        private byte[] buffer = new byte[4096];
+
+        public Output(OutputStream out) throws IOException {
+            this(out, LEVEL);
+        }
+
+        /**
+         * Creates the stream deflating with the given level.
+         * @param out       the stream to write to
+         * @param _level    the Deflate level, 1 to 9
+         * @throws IOException
+         */
+        public Output(OutputStream out, int _level) throws IOException {
+            super(out);
+            level = _level;
+        }
+
+        /**
+         * Starts deflating the large payloads of the messages written from now on.
+         */
+        public void enable() {
+            if (deflater != null) return;
+            deflater = new Deflater(level, true);
+            enableReplaceObject(true);
+        }
+
+        /**
+         * Checks whether the stream deflates the large payloads.
+         * @return  true if the compression is enabled
+         */
+        public boolean isEnabled() {
+            return deflater != null;
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) {
+            if (deflater == null || !(obj instanceof Message)) return obj;
+            Message message = (Message) obj;
+            if (message.payload == null || message.payload.length() < THRESHOLD) return obj;
+            byte[] raw = message.payload.getBytes(StandardCharsets.UTF_8);
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(raw);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (length >= raw.length) return obj;
+            rawBytes.add(raw.length);
+            compressedBytes.add(length);
+            return new Deflated(message.type, message.version, raw.length, Arrays.copyOf(buffer, length));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (deflater != null) deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Represents the input stream of messages which inflates the deflated payloads.
+     */
+    public static class Input extends ObjectInputStream {
+        private boolean enabled;
+        private Inflater inflater;
+
+        public Input(InputStream in) throws IOException {
+            super(in);
+            enableResolveObject(true);
+            // the deflated data is allocated by the stream itself, before resolveObject sees it
+            setObjectInputFilter(ObjectInputFilter.Config.createFilter("maxarray=" + MAX_FRAME_BYTES));
+        }
+
+        /**
+         * Starts accepting the deflated payloads, once the peers have agreed on the compression.
+         */
+        public void enable() {
+            enabled = true;
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) throws IOException {
+            if (!(obj instanceof Deflated)) return obj;
+            Deflated deflated = (Deflated) obj;
+            if (!enabled) throw new StreamCorruptedException("Compressed message without negotiated compression");
+            if (deflated.type == null || deflated.data == null || deflated.length <= 0
+                    || deflated.length > MAX_FRAME_BYTES)
+                throw new StreamCorruptedException("Invalid compressed message of " + deflated.length + " bytes");
+            if (inflater == null) inflater = new Inflater(true);
+            inflater.reset();
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(deflated.data);
+            byte[] raw = new byte[deflated.length];
+            int length = 0;
+            try {
+                while (length < raw.length) {
+                    int inflated = inflater.inflate(raw, length, raw.length - length);
+                    if (inflated == 0 && (inflater.finished() || inflater.needsInput())) break;
+                    length += inflated;
+                }
+                if (length != raw.length) throw new StreamCorruptedException("Truncated compressed message");
+                // the end of the stream may only be seen by one more call
+                if (!inflater.finished() && (inflater.inflate(new byte[1]) > 0 || !inflater.finished()))
+                    throw new StreamCorruptedException("Compressed message longer than its declared " + raw.length + " bytes");
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted compressed message", e);
+            }
+            return new Message(deflated.type, new String(raw, StandardCharsets.UTF_8), deflated.version);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (inflater != null) inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Gets the payload of the HELLO message asking for compression.
+     * @return  the codec and the id of the dictionary
+     */
+    public static String hello() {
+        return CODEC + " " + DICTIONARY_ID;
+    }
+
+    /**
+     * Decides whether the server agrees to the compression the client asked for.
+     * @param hello the payload of the client's HELLO message
+     * @return      true if the compression is enabled and the client has the same dictionary
+     */
+    public static boolean accepts(String hello) {
+        return ENABLED && hello().equals(hello.trim());
+    }
+
+    /**
+     * Asks the server for compression and enables it on both streams if the server agrees. Has to be called
+     * before any other message is sent.
+     * @param out   the output stream to the server
+     * @param in    the input stream from the server
+     * @return      true if the server agreed
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static boolean negotiate(Output out, Input in) throws IOException, ClassNotFoundException {
+        out.writeObject(new Message(MessageType.HELLO, hello()));
+        out.flush();
+        Message response = (Message) in.readObject();
+        if (response.type != MessageType.HELLO || !response.payload.equals(CODEC)) return false;
+        out.enable();
+        in.enable();
+        return true;
+    }
+
+    /**
+     * Gets the preset dictionary.
+     * @return  a copy of the dictionary
+     */
+    public static byte[] getDictionary() {
+        return DICTIONARY.clone();
+    }
+
+    /**
+     * Builds the preset dictionary from the JSON and the sheet of a typical character. Deflate finds the strings
+     * closest to the end of the dictionary the cheapest, so the sheets, sent with every VIEW, come last.
+     * @return  the dictionary
+     */
+    private static byte[] buildDictionary() {
+        Character character = new Character();
+        character.setName("Character");
+        try {
+            return (Codecs.writeCharacterString(character) + "\n" + character).getBytes(StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to build the compression dictionary", e);
+        }
+    }
+
+    /**
+     * Computes the id of the dictionary, so that the peers can tell whether they have the same one.
+     * @param dictionary    the dictionary
+     * @return              the CRC32 of the dictionary as 8 hexadecimal digits
+     */
+    private static String dictionaryId(byte[] dictionary) {
+        CRC32 crc = new CRC32();
+        crc.update(dictionary);
+        return String.format("%08x", crc.getValue());
+    }
+}
@@ -2,73 +2,434 @@ package org.mff;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
 
-import com.fasterxml.jackson.annotation.PropertyAccessor;
-import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 /**
  * An interface with the persistent data of the application.
+ * <p>
+ * The file of a character is named by percent-encoding its name, so that every name maps to a distinct valid file
+ * name, and is kept in one of 256 subdirectories chosen by the hash of the name, e.g. "Bob Smith" is stored in
+ * Data/&lt;compain&gt;/3f/Bob%20Smith and its history in History/&lt;compain&gt;/3f/Bob%20Smith. Compains stored
+ * in an older layout are migrated when they are opened.
+ * <p>
+ * All the changes of the compain are applied by its {@link CompainWriter}, so they are ordered without locks
+ * and the metadata is written once per group of changes. Readers never wait for the writer: files are replaced
+ * atomically and the metadata is read from the snapshot published after every group.
+ * <p>
+ * Every open compain is a separate instance with its own writer, index, caches and share of the workers, so many
+ * compains can be served by a single process without slowing each other down. Compains are opened lazily by
+ * {@link #acquire(String)} and closed by {@link #closeIdle(long)} once no session has used them for a while.
+ * <p>
+ * The writers publish the committed changes to the {@link ReplicationLeader} if the server is one; a follower applies
+ * them with {@link #applyReplica(String, JsonNode, JsonNode)} and {@link #replaceWith(Path)}.
+ * <p>
+ * Characters nobody has read nor written for -Darchive.idleDays are moved by {@link #archiveIdle(long)} from the hot
+ * directory to the compressed segments of the compain's {@link ColdStorage} under Archive/&lt;compain&gt;. They leave
+ * the index and the caches and are taken back to the hot directory by the first read or write.
  */
 public class Database {
 
-    private static Database instance;
-    private static String compain;
-    private static Path compainPath;
+    private static final ConcurrentHashMap<String, Database> compains = new ConcurrentHashMap<>();
     private static Path metaDataPath;
-    private static Path compainMetaDataPath;
     private static final String relativePathToData = "Data";
     private static final String relativePathToMetaData = "MetaData";
+    private static final String relativePathToHistory = "History";
+    private static final String relativePathToArchive = "Archive";
+    private static final int snapshotInterval = Integer.getInteger("history.snapshotInterval", 16);
     private static final String metaDataFileName = "meta";
-    private static Path dataPath;
+    private static final String layoutFileName = ".layout";
+    private static final String layoutVersion = "3";
+    private static final int maxCachedPaths = Integer.getInteger("compain.cachedPaths", 1 << 16);
+    private static final int workerPermits = Integer.getInteger("compain.workers",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private static final Pattern compainName = Pattern.compile("[A-Za-z0-9_-]+");
+    private static final char[] hexDigits = "0123456789ABCDEF".toCharArray();
+    private static final LongAdder reads = Metrics.counter("database.reads");
+    private static final LongAdder coalescedReads = Metrics.counter("database.reads.coalesced");
+    private static final LongAdder writes = Metrics.counter("database.writes");
+    private static final LongAdder opened = Metrics.counter("compains.opened");
+    private static final LongAdder closed = Metrics.counter("compains.closed");
+    private static final LongAdder archived = Metrics.counter("database.archived");
+    private static final LongAdder restored = Metrics.counter("database.restored");
+    private static final int writerCapacity = Integer.getInteger("writer.mailbox", 1024);
     private static Path userDirectory;
-    private static ObjectMapper mapper;
+    private static final ObjectMapper mapper = Codecs.mapper();
+    private final String compain;
+    private final Path compainPath;
+    private final Path compainMetaDataPath;
+    private final Path compainHistoryPath;
+    private final ConcurrentHashMap<String, Path> characterPaths = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Path> historyPaths = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Character>> inFlightReads = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> lastAccess = new ConcurrentHashMap<>();
+    private final Semaphore workers = new Semaphore(workerPermits);
+    private final CharacterHistory history;
+    private final ColdStorage cold;
+    private volatile CompainWriter writer;
+    private HashMap<String, String> workingMetadata;
+    private boolean metadataDirty;
+    // the changes of the current group of the writer, published to the followers once the group is committed
+    private final ArrayList<Runnable> unpublished = new ArrayList<>();
+    private volatile Map<String, String> metadataSnapshot = Map.of();
+    private volatile Set<String> assignedSnapshot = Set.of();
+    private CharacterIndex index;
+    private int sessions;
+    private long idleSince;
+
+    static {
+        Metrics.gauge("compains.open", compains::size);
+        Metrics.gauge("writer.queued", Database::getQueuedChanges);
+        Metrics.gauge("database.cold", Database::getArchivedCount);
+    }
 
     private Database(String _compain) {
-        userDirectory = Paths.get("").toAbsolutePath();
-        dataPath = Paths.get(userDirectory.toString(), relativePathToData);
-        metaDataPath = Paths.get(userDirectory.toString(), relativePathToMetaData);
-        mapper = new ObjectMapper();
-        mapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
+        compain = _compain;
+        compainPath = Paths.get(userDirectory.toString(), relativePathToData, compain);
+        compainMetaDataPath = Paths.get(metaDataPath.toString(), compain, metaDataFileName);
+        compainHistoryPath = Paths.get(userDirectory.toString(), relativePathToHistory, compain);
+        history = new CharacterHistory(mapper, snapshotInterval);
+        cold = new ColdStorage(Paths.get(userDirectory.toString(), relativePathToArchive, compain));
+        idleSince = System.nanoTime();
+    }
+
+    /**
+     * Gets the open compain, opening it if it is not open. The data is kept under the working directory unless
+     * another directory was given before.
+     * @param _compain  The name of compain
+     * @return          the database of the compain
+     * @throws IOException
+     * @throws IllegalArgumentException if the name is not a valid name of a compain
+     */
+    public static Database getInstance(String _compain) throws IOException {
+        return getInstance(_compain, Paths.get(""));
+    }
+
+    /**
+     * Gets the open compain keeping its data under the given directory, opening it if it is not open.
+     * @param _compain  The name of compain
+     * @param _root     the directory to keep the data in, ignored if a compain has already been opened
+     * @return          the database of the compain
+     * @throws IOException
+     * @throws IllegalArgumentException if the name is not a valid name of a compain
+     */
+    public static Database getInstance(String _compain, Path _root) throws IOException {
+        Database database = register(_compain, _root, false);
+        database.ensureOpen();
+        return database;
+    }
+
+    /**
+     * Gets the compain for a new session, opening it if it is not open. The compain stays open at least until
+     * the session is released. Opening a compain does not hold up the sessions of the other compains.
+     * @param _compain  The name of compain
+     * @return          the database of the compain
+     * @throws IOException
+     * @throws IllegalArgumentException if the name is not a valid name of a compain
+     */
+    public static Database acquire(String _compain) throws IOException {
+        Database database = register(_compain, Paths.get(""), true);
+        try {
+            database.ensureOpen();
+        } catch (IOException | RuntimeException e) {
+            database.release();
+            throw e;
+        }
+        return database;
     }
 
     /**
-     * Creates the instance of the database if the is none.
+     * Gets the registered compain, registering it if there is none.
      * @param _compain  The name of compain
-     * @return          the instance of the database
+     * @param _root     the directory to keep the data in, ignored if a compain has already been registered
+     * @param session   true to count a new session of the compain
+     * @return          the database of the compain, not necessarily open
+     */
+    private static synchronized Database register(String _compain, Path _root, boolean session) {
+        checkName(_compain);
+        if (userDirectory == null) setRoot(_root);
+        Database database = compains.computeIfAbsent(_compain, Database::new);
+        if (session) database.sessions++;
+        return database;
+    }
+
+    /**
+     * Checks that the name is a valid name of a compain, i.e. a non-empty sequence of letters, digits, '-' and '_'.
+     * @param _compain  the name to check
+     * @throws IllegalArgumentException if the name is not valid
+     */
+    static void checkName(String _compain) {
+        if (_compain == null || !compainName.matcher(_compain).matches())
+            throw new IllegalArgumentException("Invalid compain name: " + _compain);
+    }
+
+    /**
+     * Sets the directory all the compains are kept in.
+     * @param _root the directory
      */
-    public static synchronized Database getInstance(String _compain) throws IOException {
-        if (instance == null) {
-            instance = new Database(_compain);
+    private static void setRoot(Path _root) {
+        userDirectory = _root.toAbsolutePath();
+        metaDataPath = Paths.get(userDirectory.toString(), relativePathToMetaData);
+    }
+
+    /**
+     * Ends a session of the compain acquired by {@link #acquire(String)}.
+     */
+    public void release() {
+        synchronized (Database.class) {
+            if (--sessions == 0) idleSince = System.nanoTime();
+        }
+    }
+
+    /**
+     * Closes the compains which have had no session for at least the given time. Their writers commit the changes
+     * which are still waiting and the compains are opened again by the next session, as new instances.
+     * @param idleMillis    the time without sessions after which the compain is closed
+     * @return              the closed compains
+     */
+    public static synchronized ArrayList<Database> closeIdle(long idleMillis) {
+        long now = System.nanoTime();
+        ArrayList<Database> closed = new ArrayList<>();
+        Iterator<Database> it = compains.values().iterator();
+        while (it.hasNext()) {
+            Database database = it.next();
+            if (database.sessions > 0 || now - database.idleSince < idleMillis * 1_000_000) continue;
+            it.remove();
+            database.close();
+            closed.add(database);
+        }
+        return closed;
+    }
+
+    /**
+     * Gets the names of the open compains.
+     * @return  the sorted names
+     */
+    public static ArrayList<String> getOpenCompains() {
+        ArrayList<String> names = new ArrayList<>(compains.keySet());
+        names.sort(null);
+        return names;
+    }
+
+    private static long getQueuedChanges() {
+        long queued = 0;
+        for (Database database : compains.values()) {
+            CompainWriter current = database.writer;
+            if (current != null) queued += current.getQueued();
         }
-        setCompain(_compain);
-        return instance;
+        return queued;
+    }
+
+    private static long getArchivedCount() {
+        long count = 0;
+        for (Database database : compains.values()) {
+            count += database.cold.size();
+        }
+        return count;
     }
 
     /**
-     * Sets the compain of for the database.
+     * Waits for one of the compain's workers. Every compain lets only its share of the requests run at once,
+     * so a busy compain can't take the disk and the processors from the others.
+     */
+    public void acquireWorker() {
+        workers.acquireUninterruptibly();
+    }
+
+    /**
+     * Returns the worker taken by {@link #acquireWorker()}.
+     */
+    public void releaseWorker() {
+        workers.release();
+    }
+
+    /**
+     * Opens the compain unless it is already open: creates its directories, migrates its layout, builds its index,
+     * reads the catalog of its archived characters and its metadata and starts its writer.
      * @throws IOException
-     * @param _compain  the name of the compain to set
      */
-    private static void setCompain(String _compain) throws IOException {
-        compain = _compain;
-        compainPath = Paths.get(userDirectory.toString(), relativePathToData, compain);
-        Path compainMetaDataDir = Paths.get(metaDataPath.toString(), compain);
-        compainMetaDataPath = Paths.get(metaDataPath.toString(), compain, metaDataFileName);
+    private synchronized void ensureOpen() throws IOException {
+        if (writer != null) return;
         if (!Files.isDirectory(compainPath)) {
             Files.createDirectories(compainPath);
         }
-        if (!Files.isDirectory(compainMetaDataDir)) {
-            Files.createDirectories(compainMetaDataDir);
+        if (!Files.isDirectory(compainMetaDataPath.getParent())) {
+            Files.createDirectories(compainMetaDataPath.getParent());
+        }
+        migrateLayout();
+        buildIndex();
+        cold.load(index::contains);
+        workingMetadata = readMetadataFile();
+        publishMetadata();
+        metadataDirty = false;
+        writer = new CompainWriter("writer-" + compain, writerCapacity, this::commit);
+        opened.increment();
+        Log.info("Opened compain {} with {} characters, {} archived", compain, index.size(), cold.size());
+    }
+
+    /**
+     * Closes the compain after its writer commits the waiting changes.
+     */
+    private synchronized void close() {
+        if (writer == null) return;
+        writer.stop();
+        try {
+            cold.close();
+        } catch (IOException e) {
+            Log.warn("Unable to close the archive of compain {}", compain, e);
+        }
+        closed.increment();
+        Log.info("Closed idle compain {}", compain);
+    }
+
+    /**
+     * Commits a group of changes applied by the writer. Writes the metadata if it has changed and publishes
+     * its new snapshot, then publishes the group's changes to the replication followers. A group whose commit fails
+     * is not replicated. Runs on the writer's thread.
+     * @throws IOException
+     */
+    private void commit() throws IOException {
+        boolean metadataWritten = metadataDirty;
+        if (metadataDirty) {
+            Events.DatabaseEvent event = Events.beginDatabase("writeMetadata", null);
+            byte[] json;
+            try {
+                json = Codecs.writeMetadata(workingMetadata);
+                replaceFile(compainMetaDataPath, json);
+            } catch (IOException | RuntimeException e) {
+                // the followers only get what the leader has committed
+                unpublished.clear();
+                throw e;
+            }
+            publishMetadata();
+            metadataDirty = false;
+            Events.commit(event, json.length);
+        }
+        ReplicationLeader leader = ReplicationLeader.current();
+        if (leader != null) {
+            for (Runnable publication : unpublished) {
+                publication.run();
+            }
+            if (metadataWritten) leader.publishMetadata(compain, metadataSnapshot);
+        }
+        unpublished.clear();
+    }
+
+    /**
+     * Replaces the content of the file atomically, so that readers see either the old or the new content.
+     * @param path      the file to replace
+     * @param content   the new content
+     * @throws IOException
+     */
+    private static void replaceFile(Path path, byte[] content) throws IOException {
+        Path temporary = path.resolveSibling("." + path.getFileName() + ".tmp");
+        Files.write(temporary, content);
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Moves the characters of the compain and their histories to the current layout. In the flat layout the file
+     * was named by the name without spaces, the name is taken from the file itself, and characters whose names
+     * differed only in spaces shared a single file, so only the last written of them is left. In the hashed layout
+     * of version 2 the names reserved by Windows and the names ending with '.' were not encoded, those characters
+     * move to their new file names.
+     * @throws IOException
+     */
+    private void migrateLayout() throws IOException {
+        Path layoutPath = compainPath.resolve(layoutFileName);
+        if (Files.exists(layoutPath) && Files.readString(layoutPath).equals(layoutVersion)) return;
+        ArrayList<Path> files;
+        try (Stream<Path> walk = Files.walk(compainPath, 2)) {
+            files = walk
+                    .filter(Files::isRegularFile)
+                    .filter(path -> !path.getFileName().toString().startsWith("."))
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+        int moved = 0;
+        for (Path file : files) {
+            boolean flat = file.getParent().equals(compainPath);
+            String name = flat
+                    ? mapper.readTree(file.toFile()).path("name").asText(null)
+                    : decodeName(file.getFileName().toString());
+            if (name == null) {
+                Log.warn("Not migrating {}, it is not a character", file);
+                continue;
+            }
+            Path characterPath = getPathToCharacter(name);
+            if (characterPath.equals(file)) continue;
+            Files.createDirectories(characterPath.getParent());
+            Files.move(file, characterPath, StandardCopyOption.REPLACE_EXISTING);
+            Path oldHistory = compainHistoryPath.resolve(compainPath.relativize(file).toString());
+            Path historyPath = getPathToHistory(name);
+            if (Files.isDirectory(oldHistory) && !Files.exists(historyPath)) {
+                Files.createDirectories(historyPath.getParent());
+                Files.move(oldHistory, historyPath);
+            }
+            moved++;
         }
+        Files.writeString(layoutPath, layoutVersion);
+        if (moved > 0) Log.info("Migrated {} characters of compain {} to the hashed layout", moved, compain);
+    }
+
+    /**
+     * Builds the index of all the characters of the compain. The characters are read in parallel.
+     * @throws IOException
+     */
+    private void buildIndex() throws IOException {
+        CharacterIndex newIndex = new CharacterIndex();
+        try {
+            getExistingCharacters().parallelStream().forEach(name -> {
+                try {
+                    newIndex.update(readCharacter(name));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        index = newIndex;
+    }
+
+    /**
+     * Gets the name of the compain.
+     * @return  the name of the compain
+     */
+    public String getCompain() {
+        return compain;
+    }
+
+    /**
+     * Gets the index of the characters of the compain.
+     * @return  the index of the characters
+     */
+    public CharacterIndex getIndex() {
+        return index;
     }
 
     /**
@@ -76,33 +437,442 @@ public class Database {
      * @throws IOException
      * @param character the character to write
      */
-    public static synchronized void writeCharacter(Character character) throws IOException {
+    public void writeCharacter(Character character) throws IOException {
+        writeCharacter(character, null);
+    }
+
+    /**
+     * Writes the character to the appropriate file and appends the change to the character's history.
+     * Waits until the compain's writer commits the change.
+     * @throws IOException
+     * @param character the character to write
+     * @param author    the author of the change, may be null
+     * @return          the new version of the character
+     */
+    public long writeCharacter(Character character, String author) throws IOException {
+        return writer.call(() -> applyWrite(character, author));
+    }
+
+    /**
+     * Writes the character and its history. Runs on the writer's thread.
+     * @param character the character to write
+     * @param author    the author of the change, may be null
+     * @return          the new version of the character
+     * @throws IOException
+     */
+    private long applyWrite(Character character, String author) throws IOException {
+        restore(character.getName());
+        Events.DatabaseEvent event = Events.beginDatabase("writeCharacter", character.getName());
         Path characterPath = getPathToCharacter(character.getName());
-        mapper.writeValue(new File(characterPath.toUri()), character);
+        Path historyPath = getPathToHistory(character.getName());
+        if (!Files.isDirectory(characterPath.getParent())) Files.createDirectories(characterPath.getParent());
+        // characters written before the history existed start it with their full state
+        JsonNode before = Files.exists(characterPath) && history.getVersion(historyPath) > 0
+                ? mapper.readTree(characterPath.toFile())
+                : null;
+        Events.SerializationEvent serialization = Events.beginSerialization("serialize", Character.class);
+        JsonNode after = mapper.valueToTree(character);
+        byte[] json = mapper.writeValueAsBytes(after);
+        Events.commit(serialization, json.length);
+        // a VIEW which sees the new version must find the new file, or it would cache the old sheet under it
+        replaceFile(characterPath, json);
+        ObjectNode change = history.append(historyPath, before, after, author);
+        // reads which started before the write must not be joined by the reads which start after it
+        inFlightReads.remove(character.getName());
+        lastAccess.put(character.getName(), System.currentTimeMillis());
+        writes.increment();
+        index.update(character);
+        ReplicationLeader leader = ReplicationLeader.current();
+        if (leader != null) unpublished.add(() -> leader.publishCharacter(compain, character.getName(), change, after));
+        Events.commit(event, json.length);
+        return change.get("version").asLong();
+    }
+
+    /**
+     * Writes all the characters one after another as a single change of the writer.
+     * @param characters    the characters to write
+     * @param author        the author of the changes, may be null
+     * @throws IOException
+     */
+    public void writeCharacters(List<Character> characters, String author) throws IOException {
+        writer.call(() -> {
+            for (Character character : characters) {
+                applyWrite(character, author);
+            }
+            return null;
+        });
     }
 
     /**
-     * Reads the character form the file.
+     * Assigns the character to the player, creating the character if it does not exist. The check and
+     * the assignment are a single change of the writer, so two players can never get the same character.
+     * @param player    the name of the player
+     * @param name      the name of the character
+     * @throws IOException
+     * @throws IllegalArgumentException if the character is already assigned to the player or to another one
+     */
+    public void pickCharacter(String player, String name) throws IOException {
+        writer.call(() -> {
+            if (name.equals(workingMetadata.get(player)))
+                throw new IllegalArgumentException("You are already assigned to this character");
+            if (workingMetadata.containsValue(name))
+                throw new IllegalArgumentException("Can't pick this character. It is assigned to other player");
+            restore(name);
+            if (!Files.exists(getPathToCharacter(name))) {
+                Character character = new Character();
+                character.setName(name);
+                applyWrite(character, player);
+            }
+            workingMetadata.put(player, name);
+            metadataDirty = true;
+            return null;
+        });
+    }
+
+    /**
+     * Streams the stored JSON of all the characters of the compain, the archived ones included, without parsing it.
+     * The stream reads the files lazily and has to be closed.
+     * @return  the stream of the JSON of the characters
+     * @throws IOException
+     */
+    public Stream<String> streamCharacterJson() throws IOException {
+        Stream<String> hot = Files.walk(compainPath, 2)
+                .filter(Files::isRegularFile)
+                .filter(path -> !path.getFileName().toString().startsWith("."))
+                .map(path -> {
+                    try {
+                        return Files.readString(path);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+        return Stream.concat(hot, cold.streamJson());
+    }
+
+    /**
+     * Reads the character form the file. Concurrent reads of the same character share a single read of the file:
+     * the first caller reads it and the others wait for its result. The returned character may therefore be shared
+     * with other callers and must not be modified.
      * @param name  the name of the character to read
      * @throws IOException
      * @return      the character
      */
-    public static Character readCharacter(String name) throws IOException {
+    public Character readCharacter(String name) throws IOException {
+        CompletableFuture<Character> read = new CompletableFuture<>();
+        CompletableFuture<Character> inFlight = inFlightReads.putIfAbsent(name, read);
+        if (inFlight != null) {
+            coalescedReads.increment();
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof IOException) throw new IOException(e.getCause().getMessage(), e.getCause());
+                throw e;
+            }
+        }
+        try {
+            Character character = loadCharacter(name);
+            read.complete(character);
+            return character;
+        } catch (IOException | RuntimeException e) {
+            read.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightReads.remove(name, read);
+        }
+    }
+
+    /**
+     * Reads and parses the file of the character. An archived character is taken back to the hot tier first.
+     * @param name  the name of the character to read
+     * @throws IOException
+     * @return      the character
+     */
+    private Character loadCharacter(String name) throws IOException {
+        reads.increment();
+        Events.DatabaseEvent event = Events.beginDatabase("readCharacter", name);
         Path characterPath = getPathToCharacter(name);
-        String characterJson = Files.readAllLines(characterPath).get(0);
-        Character character = mapper.readValue(characterJson, Character.class);
-        Character.initStatic();
+        byte[] characterJson;
+        try {
+            characterJson = Files.readAllBytes(characterPath);
+        } catch (NoSuchFileException e) {
+            // the catalog lists the character before its hot file is deleted, so an archived character is never missed
+            if (!cold.contains(name)) throw e;
+            writer.call(() -> restore(name));
+            characterJson = Files.readAllBytes(characterPath);
+        }
+        lastAccess.put(name, System.currentTimeMillis());
+        Events.SerializationEvent serialization = Events.beginSerialization("deserialize", Character.class);
+        Character character = Codecs.readCharacter(characterJson);
+        Events.commit(serialization, characterJson.length);
+        Events.commit(event, characterJson.length);
         return character;
     }
 
+    /**
+     * Takes the archived character back to the hot tier: writes its file, indexes it and removes it from the cold
+     * tier. Runs on the writer's thread.
+     * @param name  the name of the character
+     * @return      true if the character was archived
+     * @throws IOException
+     */
+    private boolean restore(String name) throws IOException {
+        if (!cold.contains(name)) return false;
+        Events.DatabaseEvent event = Events.beginDatabase("restoreCharacter", name);
+        String json = cold.read(name);
+        Path characterPath = getPathToCharacter(name);
+        if (!Files.isDirectory(characterPath.getParent())) Files.createDirectories(characterPath.getParent());
+        byte[] content = json.getBytes(StandardCharsets.UTF_8);
+        replaceFile(characterPath, content);
+        cold.remove(name);
+        Character character = Codecs.readCharacter(content);
+        index.update(character);
+        lastAccess.put(name, System.currentTimeMillis());
+        restored.increment();
+        Events.commit(event, content.length);
+        Log.info("Restored archived character {} of compain {}", name, compain);
+        return true;
+    }
+
+    /**
+     * Archives the characters of all the open compains which have not been read nor written for the given time.
+     * @param idleMillis    the time without access after which the character is archived
+     * @return              the number of archived characters
+     */
+    public static int archiveIdle(long idleMillis) {
+        int count = 0;
+        for (Database database : compains.values()) {
+            CompainWriter current = database.writer;
+            if (current == null) continue;
+            try {
+                count += current.call(() -> database.archive(idleMillis));
+            } catch (IOException | RuntimeException e) {
+                Log.warn("Unable to archive the characters of compain {}", database.compain, e);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Moves the characters which have not been read nor written for the given time into a new segment of the cold
+     * tier and deletes their hot files. Characters assigned to players are never archived. A character not accessed
+     * since the compain was opened counts as accessed when its file was last written. Runs on the writer's thread.
+     * @param idleMillis    the time without access after which the character is archived
+     * @return              the number of archived characters
+     * @throws IOException
+     */
+    private int archive(long idleMillis) throws IOException {
+        long limit = System.currentTimeMillis() - idleMillis;
+        HashMap<String, Path> files = new HashMap<>();
+        for (String name : getExistingCharacters()) {
+            if (workingMetadata.containsValue(name)) continue;
+            Path characterPath = getPathToCharacter(name);
+            Long accessed = lastAccess.get(name);
+            if (accessed == null) accessed = Files.getLastModifiedTime(characterPath).toMillis();
+            if (accessed < limit) files.put(name, characterPath);
+        }
+        if (files.isEmpty()) return 0;
+        Events.DatabaseEvent event = Events.beginDatabase("archiveCharacters", null);
+        cold.archive(files);
+        for (Map.Entry<String, Path> file : files.entrySet()) {
+            String name = file.getKey();
+            Files.deleteIfExists(file.getValue());
+            index.remove(name);
+            inFlightReads.remove(name);
+            lastAccess.remove(name);
+            characterPaths.remove(name);
+            historyPaths.remove(name);
+        }
+        archived.add(files.size());
+        Events.commit(event, files.size());
+        Log.info("Archived {} idle characters of compain {}", files.size(), compain);
+        return files.size();
+    }
+
+    /**
+     * Calls the visitor with the hot file and the JSON of every archived character, e.g. to send them as ordinary
+     * files in a replication snapshot. Should run on the writer's thread, so the cold tier does not change meanwhile.
+     * @param visitor   the visitor to call
+     * @return          the number of visited characters
+     * @throws IOException
+     */
+    public long forEachArchived(ArchivedVisitor visitor) throws IOException {
+        long count = 0;
+        for (String name : cold.getNames()) {
+            String json = cold.read(name);
+            if (json == null) continue;
+            visitor.visit(compainPath.resolve(getRelativePath(name)), json);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Decides whether the character is in the cold tier.
+     * @param name  the name of the character
+     * @return      true if the character is archived
+     */
+    public boolean isArchived(String name) {
+        return cold.contains(name);
+    }
+
+    /**
+     * Gets the latest version of the character.
+     * @param name  the name of the character
+     * @return      the latest version, 0 if the character has no history
+     * @throws IOException
+     */
+    public long getCharacterVersion(String name) throws IOException {
+        return history.getVersion(getPathToHistory(name));
+    }
+
+    /**
+     * Reads the character as it was at the given version.
+     * @param name      the name of the character
+     * @param version   the version to read
+     * @return          the character at the given version
+     * @throws IOException
+     * @throws IllegalArgumentException if there is no such version
+     */
+    public Character readCharacterVersion(String name, long version) throws IOException {
+        return Codecs.readCharacter(history.readVersion(getPathToHistory(name), version));
+    }
+
+    /**
+     * Describes the latest changes of the character, newest first.
+     * @param name  the name of the character
+     * @param count the maximal number of changes to describe
+     * @return      the ArrayList of descriptions
+     * @throws IOException
+     */
+    public ArrayList<String> getCharacterHistory(String name, int count) throws IOException {
+        return history.describe(getPathToHistory(name), count);
+    }
+
+    /**
+     * Replays the history of every character in the hot tier and compares the latest version with the character's
+     * file. Each character is checked as a change of the writer, so no write can come in between. Characters without
+     * history are skipped.
+     * @return  the names of the characters whose history does not end in the state of their file
+     * @throws IOException
+     */
+    public ArrayList<String> verifyHistory() throws IOException {
+        ArrayList<String> mismatched = new ArrayList<>();
+        for (String name : getExistingCharacters()) {
+            boolean matches = writer.call(() -> {
+                JsonNode replayed = history.readLatest(getPathToHistory(name));
+                Path characterPath = getPathToCharacter(name);
+                return replayed == null || !Files.exists(characterPath)
+                        || replayed.equals(mapper.readTree(characterPath.toFile()));
+            });
+            if (!matches) {
+                Log.warn("The history of {} in compain {} does not match its file", name, compain);
+                mismatched.add(name);
+            }
+        }
+        return mismatched;
+    }
+
+    /**
+     * Gets the path to the history directory of the character.
+     * @param name the name of the character to get the path to
+     * @return
+     */
+    private Path getPathToHistory(String name) {
+        Path path = historyPaths.get(name);
+        if (path != null) return path;
+        path = compainHistoryPath.resolve(getRelativePath(name));
+        if (historyPaths.size() >= maxCachedPaths) historyPaths.clear();
+        historyPaths.put(name, path);
+        return path;
+    }
+
     /**
      * Gets the path to the character.
      * @param name the name of the character to get the path to
      * @return
      */
-    private static Path getPathToCharacter(String name) {
-        Path characterPath = Paths.get(compainPath.toString(), name.replaceAll(" ", ""));
-        return characterPath;
+    private Path getPathToCharacter(String name) {
+        Path path = characterPaths.get(name);
+        if (path != null) return path;
+        path = compainPath.resolve(getRelativePath(name));
+        if (characterPaths.size() >= maxCachedPaths) characterPaths.clear();
+        characterPaths.put(name, path);
+        return path;
+    }
+
+    /**
+     * Gets the path of the character relative to the compain's directory: the subdirectory chosen by the hash
+     * of the name followed by the encoded name.
+     * @param name  the name of the character
+     * @return      the relative path
+     */
+    private static String getRelativePath(String name) {
+        String fileName = encodeName(name);
+        int hash = fileName.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        hash ^= hash >>> 16;
+        return Integer.toHexString(0x100 | (hash & 0xff)).substring(1) + '/' + fileName;
+    }
+
+    /**
+     * Encodes the name as a file name. Letters, digits, '-', '_' and '.' neither at the start nor at the end are
+     * kept, every other byte of the UTF-8 encoding is written as '%' followed by two hexadecimal digits. The first
+     * letter of a name reserved by Windows for a device, such as "CON" or "com1.txt", is encoded as well.
+     * @param name  the name to encode
+     * @return      the file name
+     */
+    static String encodeName(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder(bytes.length + 8);
+        boolean reserved = isDeviceName(bytes);
+        for (int i = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xff;
+            boolean plain = (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                    || b == '-' || b == '_' || (b == '.' && i > 0 && i < bytes.length - 1);
+            if (plain && !(reserved && i == 0)) {
+                sb.append((char) b);
+            } else {
+                sb.append('%').append(hexDigits[b >>> 4]).append(hexDigits[b & 0xf]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decides whether the name, up to its first '.', is one of the names Windows reserves for devices: CON, PRN,
+     * AUX, NUL, COM1 to COM9 and LPT1 to LPT9 in any case.
+     * @param bytes the UTF-8 encoding of the name
+     * @return      true if the name is reserved
+     */
+    private static boolean isDeviceName(byte[] bytes) {
+        int length = 0;
+        while (length < bytes.length && bytes[length] != '.') length++;
+        if (length != 3 && length != 4) return false;
+        String stem = new String(bytes, 0, 3, StandardCharsets.US_ASCII).toUpperCase();
+        if (length == 3) return stem.equals("CON") || stem.equals("PRN") || stem.equals("AUX") || stem.equals("NUL");
+        return (stem.equals("COM") || stem.equals("LPT")) && bytes[3] >= '1' && bytes[3] <= '9';
+    }
+
+    /**
+     * Decodes the file name back to the name of the character.
+     * @param fileName  the file name made by {@link #encodeName(String)}
+     * @return          the name of the character
+     */
+    static String decodeName(String fileName) {
+        if (fileName.indexOf('%') < 0) return fileName;
+        byte[] bytes = new byte[fileName.length()];
+        int length = 0;
+        for (int i = 0; i < fileName.length(); i++) {
+            char c = fileName.charAt(i);
+            if (c == '%' && i + 2 < fileName.length()) {
+                bytes[length++] = (byte) Integer.parseInt(fileName, i + 1, i + 3, 16);
+                i += 2;
+            } else {
+                bytes[length++] = (byte) c;
+            }
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
     }
 
     /**
@@ -112,7 +882,9 @@ public class Database {
      */
     public static ArrayList<String> getExistingCompains() throws IOException {
         ArrayList<String> result = null;
-        try (Stream<Path> walk = Files.walk(dataPath)) {
+        Path dataPath = getRoot().resolve(relativePathToData);
+        if (!Files.isDirectory(dataPath)) return new ArrayList<>();
+        try (Stream<Path> walk = Files.list(dataPath)) {
             result = new ArrayList<String>(
                     walk
                             .filter(Files::isDirectory)
@@ -126,18 +898,20 @@ public class Database {
         return result;
     }
     /**
-     * Gets the ArrayList of the character names in the current compain.
+     * Gets the ArrayList of the character names in the hot tier of the compain, the archived characters are left out.
      * @return  the ArrayList of character names
      * @throws IOException
      */
-    public static ArrayList<String> getExistingCharacters() throws IOException {
+    public ArrayList<String> getExistingCharacters() throws IOException {
         ArrayList<String> result = null;
-        try (Stream<Path> walk = Files.walk(compainPath)) {
+        try (Stream<Path> walk = Files.walk(compainPath, 2)) {
             result = new ArrayList<String>(
                     walk
                             .filter(Files::isRegularFile)
                             .map(Path::getFileName)
                             .map(Path::toString)
+                            .filter(fileName -> !fileName.startsWith("."))
+                            .map(Database::decodeName)
                             .collect(Collectors.toList()));
 
         } catch (Exception e) {
@@ -147,18 +921,45 @@ public class Database {
     }
 
     /**
-     * Gets the HashMap from players to their characters.
+     * Publishes the snapshot of the working metadata and of the characters assigned to players to the readers.
+     */
+    private void publishMetadata() {
+        metadataSnapshot = Map.copyOf(workingMetadata);
+        assignedSnapshot = Set.copyOf(workingMetadata.values());
+    }
+
+    /**
+     * Decides whether the character is assigned to a player as of the last committed change.
+     * @param name  the name of the character
+     * @return      true if a player plays the character
+     */
+    public boolean isAssigned(String name) {
+        return assignedSnapshot.contains(name);
+    }
+
+    /**
+     * Gets the HashMap from players to their characters as of the last committed change. The map is a copy of
+     * the published snapshot, so reading it never touches the disk.
      * @return  the HashMap from players to their characters
      * @throws JsonParseException
      * @throws JsonMappingException
      * @throws IOException
      */
-    @SuppressWarnings("unchecked")
-    public static HashMap<String, String> ReadCompainMetadata() throws JsonParseException, JsonMappingException, IOException {
+    public HashMap<String, String> ReadCompainMetadata() throws JsonParseException, JsonMappingException, IOException {
+        return new HashMap<>(metadataSnapshot);
+    }
+
+    /**
+     * Reads the compain's metadata from its file.
+     * @return  the HashMap from players to their characters
+     * @throws IOException
+     */
+    private HashMap<String, String> readMetadataFile() throws IOException {
         if (!Files.exists(compainMetaDataPath)) return new HashMap<>();
-        String metaJson = Files.readAllLines(compainMetaDataPath).get(0);
-        HashMap<String, String> map = new HashMap<>();
-        map = mapper.readValue(metaJson, map.getClass());
+        Events.DatabaseEvent event = Events.beginDatabase("readMetadata", null);
+        byte[] metaJson = Files.readAllBytes(compainMetaDataPath);
+        HashMap<String, String> map = Codecs.readMetadata(metaJson);
+        Events.commit(event, metaJson.length);
         return map;
     }
 
@@ -169,7 +970,166 @@ public class Database {
      * @throws JsonMappingException
      * @throws IOException
      */
-    public static void writeCompainMetadata(HashMap<String, String> map) throws JsonParseException, JsonMappingException, IOException {
-        mapper.writeValue(new File(compainMetaDataPath.toUri()), map);
+    public void writeCompainMetadata(HashMap<String, String> map) throws JsonParseException, JsonMappingException, IOException {
+        HashMap<String, String> copy = new HashMap<>(map);
+        writer.call(() -> {
+            workingMetadata = copy;
+            metadataDirty = true;
+            return null;
+        });
+    }
+
+    /**
+     * Adds the players and their characters to the compain's metadata, replacing the characters of the players
+     * which are already there. A character is never assigned to two players: a player whose character is already
+     * assigned to another player, also by an earlier entry of the map, is skipped.
+     * @param players   the map from players to their characters
+     * @return          the skipped players and their characters
+     * @throws IOException
+     */
+    public LinkedHashMap<String, String> mergeCompainMetadata(Map<String, String> players) throws IOException {
+        return writer.call(() -> {
+            HashMap<String, String> holders = new HashMap<>();
+            for (Map.Entry<String, String> entry : workingMetadata.entrySet()) {
+                holders.put(entry.getValue(), entry.getKey());
+            }
+            LinkedHashMap<String, String> conflicts = new LinkedHashMap<>();
+            for (Map.Entry<String, String> entry : players.entrySet()) {
+                String player = entry.getKey();
+                String character = entry.getValue();
+                String holder = holders.get(character);
+                if (holder != null && !holder.equals(player)) {
+                    conflicts.put(player, character);
+                    continue;
+                }
+                String previous = workingMetadata.put(player, character);
+                if (previous != null) holders.remove(previous);
+                holders.put(character, player);
+                metadataDirty = true;
+            }
+            return conflicts;
+        });
+    }
+
+    /**
+     * Gets the directory all the compains are kept in.
+     * @return  the root directory
+     */
+    public static synchronized Path getRoot() {
+        if (userDirectory == null) setRoot(Paths.get(""));
+        return userDirectory;
+    }
+
+    /**
+     * Gets the directories holding the data of the compain: its characters, their histories and its metadata.
+     * @return  the directories
+     */
+    public Path[] getDirectories() {
+        return new Path[] {compainPath, compainHistoryPath, compainMetaDataPath.getParent()};
+    }
+
+    /**
+     * Runs the action on the compain's writer, so that no change of the compain is applied while it runs.
+     * @param action    the action to run
+     * @param <T>       the type of the result
+     * @return          the result of the action
+     * @throws IOException
+     */
+    public <T> T exclusive(CompainWriter.Mutation<T> action) throws IOException {
+        return writer.call(action);
+    }
+
+    /**
+     * Applies a change of a character replicated from the leader. The leader's history event is appended as it is,
+     * so both copies have the same versions. Changes already contained in the last snapshot are skipped.
+     * @param name      the name of the character
+     * @param change    the history event of the change
+     * @param after     the state of the character after the change
+     * @throws IOException
+     * @throws IllegalStateException if a change is missing, the follower then needs a new snapshot
+     */
+    public void applyReplica(String name, JsonNode change, JsonNode after) throws IOException {
+        writer.call(() -> {
+            restore(name);
+            Path characterPath = getPathToCharacter(name);
+            Path historyPath = getPathToHistory(name);
+            if (change.path("version").asLong() <= history.getVersion(historyPath)) return null;
+            if (!Files.isDirectory(characterPath.getParent())) Files.createDirectories(characterPath.getParent());
+            // a reader which sees the new version must find the new file
+            replaceFile(characterPath, mapper.writeValueAsBytes(after));
+            history.replay(historyPath, change, after);
+            inFlightReads.remove(name);
+            index.update(Codecs.readCharacter(after));
+            return null;
+        });
+    }
+
+    /**
+     * Replaces the compain's metadata by the metadata replicated from the leader.
+     * @param players   the map from players to their characters
+     * @throws IOException
+     */
+    public void applyReplicaMetadata(Map<String, String> players) throws IOException {
+        HashMap<String, String> copy = new HashMap<>(players);
+        writer.call(() -> {
+            workingMetadata = copy;
+            metadataDirty = true;
+            return null;
+        });
+    }
+
+    /**
+     * Replaces all the data of the compain by the snapshot received from the leader and reloads the compain.
+     * The snapshot mirrors the layout under the root, e.g. staging/Data/c1/3f/Bob%20Smith. Every directory is
+     * swapped by renames, so the readers miss the files only for a moment.
+     * @param staging   the directory holding the snapshot
+     * @throws IOException
+     */
+    public void replaceWith(Path staging) throws IOException {
+        writer.call(() -> {
+            for (Path directory : getDirectories()) {
+                Path staged = staging.resolve(userDirectory.relativize(directory));
+                Path old = directory.resolveSibling("." + directory.getFileName() + ".old");
+                deleteTree(old);
+                if (Files.exists(directory)) Files.move(directory, old);
+                Files.createDirectories(directory.getParent());
+                if (Files.isDirectory(staged)) Files.move(staged, directory);
+                else Files.createDirectories(directory);
+                deleteTree(old);
+            }
+            characterPaths.clear();
+            historyPaths.clear();
+            history.forget();
+            lastAccess.clear();
+            // the snapshot holds the archived characters of the leader as hot files
+            cold.clear();
+            buildIndex();
+            workingMetadata = readMetadataFile();
+            publishMetadata();
+            metadataDirty = false;
+            return null;
+        });
+    }
+
+    /**
+     * Deletes the directory with all its content if it exists.
+     * @param directory the directory to delete
+     * @throws IOException
+     */
+    static void deleteTree(Path directory) throws IOException {
+        if (!Files.exists(directory)) return;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Represents a visitor of the archived characters.
+     */
+    @FunctionalInterface
+    public interface ArchivedVisitor {
+        void visit(Path file, String json) throws IOException;
     }
 }
@@ -0,0 +1,152 @@
+package org.mff;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Holds the Java Flight Recorder events of the server. The events are only committed while a recording is running,
+ * otherwise creating and timing them costs next to nothing; the request events, one per request of every client, are
+ * not even created then. Recordings are started and dumped with {@link Admin}
+ * or with the usual -XX:StartFlightRecording option.
+ */
+public class Events {
+    private static final String CATEGORY = "Character manager";
+    private static final RequestEvent requestProbe = new RequestEvent();
+
+    private Events() {
+    }
+
+    /**
+     * Represents the handling of a single request of a client, from reading the request to sending the response.
+     */
+    @Name("org.mff.Request")
+    @Label("Request")
+    @Description("Handling of a single client request")
+    @Category({CATEGORY, "Server"})
+    @StackTrace(false)
+    public static class RequestEvent extends Event {
+        @Label("Message Type")
+        public String messageType;
+
+        @Label("Client")
+        public String client;
+
+        @Label("Character")
+        public String character;
+
+        @Label("Connection")
+        public String connection;
+
+        @Label("Compain")
+        public String compain;
+    }
+
+    /**
+     * Represents a read or a write of the persistent data.
+     */
+    @Name("org.mff.Database")
+    @Label("Database Operation")
+    @Description("Read or write of a character or of the compain metadata")
+    @Category({CATEGORY, "Database"})
+    @StackTrace(false)
+    public static class DatabaseEvent extends Event {
+        @Label("Operation")
+        public String operation;
+
+        @Label("Character")
+        public String character;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    /**
+     * Represents a conversion of an object from or to JSON.
+     */
+    @Name("org.mff.Serialization")
+    @Label("Serialization")
+    @Description("Conversion of a character or a message from or to JSON")
+    @Category({CATEGORY, "Serialization"})
+    @StackTrace(false)
+    public static class SerializationEvent extends Event {
+        @Label("Operation")
+        public String operation;
+
+        @Label("Type")
+        public String type;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    /**
+     * Starts timing a request of a client if a recording takes the request events.
+     * @return  the started event, null if the request events are not recorded
+     */
+    static RequestEvent beginRequest() {
+        if (!requestProbe.isEnabled()) return null;
+        RequestEvent event = new RequestEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Starts timing a database operation.
+     * @param operation the name of the operation
+     * @param character the character the operation works with, may be null
+     * @return          the started event
+     */
+    static DatabaseEvent beginDatabase(String operation, String character) {
+        DatabaseEvent event = new DatabaseEvent();
+        event.operation = operation;
+        event.character = character;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Stops timing the database operation and commits it if it is recorded.
+     * @param event the event to commit
+     * @param bytes the number of bytes read or written
+     */
+    static void commit(DatabaseEvent event, long bytes) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Starts timing a conversion from or to JSON.
+     * @param operation "serialize" or "deserialize"
+     * @param type      the class being converted
+     * @return          the started event
+     */
+    static SerializationEvent beginSerialization(String operation, Class<?> type) {
+        SerializationEvent event = new SerializationEvent();
+        event.operation = operation;
+        event.type = type.getSimpleName();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Stops timing the conversion and commits it if it is recorded.
+     * @param event the event to commit
+     * @param bytes the length of the JSON
+     */
+    static void commit(SerializationEvent event, long bytes) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package org.mff;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Represents the headless load generator. Opens a number of simulated players against a running server, drives
+ * them with a configurable mix of AUTH, LIST, PICK, VIEW and SET requests and reports throughput, latency
+ * percentiles and error counts per message type.
+ * <p>
+ * In the closed loop mode (the default) every player sends the next request after the previous response and
+ * the think time. In the open loop mode (--rate) requests arrive at a fixed rate regardless of the responses and
+ * the latency is measured from the time the request was supposed to be sent, so queueing in the generator
+ * counts as latency. With --compains the players are spread over the given compains of the server.
+ */
+public class LoadGenerator {
+    private static final MessageType[] OPERATIONS = {
+            MessageType.AUTH, MessageType.LIST, MessageType.PICK, MessageType.VIEW, MessageType.SET};
+    private String host = "127.0.0.1";
+    private int port = 6666;
+    private int clients = 10;
+    private long durationMillis = 30_000;
+    private long rampMillis = 0;
+    private long thinkMillis = 100;
+    private double rate = 0;
+    private String[] compains = {};
+    private boolean compress;
+    private final EnumMap<MessageType, Integer> mix = new EnumMap<>(MessageType.class);
+    private final AtomicLong connectErrors = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private volatile boolean stopped;
+
+    /**
+     * Parses the arguments and runs the load generator.
+     * @param args  the arguments: load [--host h] [--port p] [--clients n] [--duration s] [--ramp s] [--think ms]
+     *              [--rate requests/s] [--mix auth=5,list=5,pick=5,view=70,set=15] [--compains c1,c2] [--compress]
+     */
+    public static void run(String[] args) {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println("Usage: load [--host h] [--port p] [--clients n] [--duration s] [--ramp s] "
+                    + "[--think ms] [--rate requests/s] [--mix auth=5,list=5,pick=5,view=70,set=15] "
+                    + "[--compains c1,c2] [--compress]");
+            return;
+        }
+        try {
+            generator.generate();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Parses the command line arguments.
+     * @param args  the arguments, the first one being "load"
+     * @throws IllegalArgumentException if the arguments are malformed
+     */
+    private void parseArguments(String[] args) {
+        mix.put(MessageType.AUTH, 5);
+        mix.put(MessageType.LIST, 5);
+        mix.put(MessageType.PICK, 5);
+        mix.put(MessageType.VIEW, 70);
+        mix.put(MessageType.SET, 15);
+        for (int i = 1; i < args.length; i += 2) {
+            if (args[i].equals("--compress")) {
+                compress = true;
+                i--;
+                continue;
+            }
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value of " + args[i]);
+            String value = args[i + 1];
+            try {
+                switch (args[i]) {
+                    case "--host" -> host = value;
+                    case "--port" -> port = Integer.parseInt(value);
+                    case "--clients" -> clients = Integer.parseInt(value);
+                    case "--duration" -> durationMillis = (long) (Double.parseDouble(value) * 1000);
+                    case "--ramp" -> rampMillis = (long) (Double.parseDouble(value) * 1000);
+                    case "--think" -> thinkMillis = Long.parseLong(value);
+                    case "--rate" -> rate = Double.parseDouble(value);
+                    case "--mix" -> parseMix(value);
+                    case "--compains" -> compains = value.split(",");
+                    default -> throw new IllegalArgumentException("Unknown argument: " + args[i]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value of " + args[i] + ": " + value);
+            }
+        }
+        if (clients < 1) throw new IllegalArgumentException("At least one client is needed");
+    }
+
+    /**
+     * Parses the request mix in the form "view=70,set=30". Types which are not mentioned are not sent.
+     * @param value the mix to parse
+     */
+    private void parseMix(String value) {
+        mix.clear();
+        for (String part : value.split(",")) {
+            String[] pair = part.split("=");
+            if (pair.length != 2) throw new IllegalArgumentException("Invalid mix entry: " + part);
+            MessageType type = MessageType.valueOf(pair[0].trim().toUpperCase());
+            boolean supported = false;
+            for (MessageType operation : OPERATIONS) {
+                supported |= operation == type;
+            }
+            if (!supported) throw new IllegalArgumentException("Unsupported request type: " + type);
+            mix.put(type, Integer.parseInt(pair[1].trim()));
+        }
+    }
+
+    /**
+     * Starts the simulated players, waits for the end of the run and prints the report.
+     * @throws InterruptedException
+     */
+    private void generate() throws InterruptedException {
+        BlockingQueue<Long> arrivals = rate > 0 ? new LinkedBlockingQueue<>() : null;
+        ArrayList<SimulatedPlayer> players = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            SimulatedPlayer player = new SimulatedPlayer(i, start + rampMillis * 1_000_000 * i / clients, arrivals);
+            players.add(player);
+            player.start();
+        }
+        long end = start + durationMillis * 1_000_000;
+        if (arrivals != null) {
+            long interval = (long) (1_000_000_000 / rate);
+            for (long next = start; next < end; next += interval) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                arrivals.add(next);
+            }
+        } else {
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, end - System.nanoTime()));
+        }
+        stopped = true;
+        for (SimulatedPlayer player : players) {
+            player.interrupt();
+            player.join();
+        }
+        report(players, (System.nanoTime() - start) / 1e9, arrivals == null ? 0 : arrivals.size());
+    }
+
+    /**
+     * Merges the statistics of all the players and prints the report.
+     * @param players   the players
+     * @param seconds   the duration of the run
+     * @param backlog   the number of open loop requests which were never sent
+     */
+    private void report(ArrayList<SimulatedPlayer> players, double seconds, int backlog) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d clients, %.1f s%s%n", clients, seconds,
+                rate > 0 ? String.format(", open loop at %.1f requests/s", rate) : ", closed loop"));
+        sb.append(String.format("%-6s %9s %9s %9s %9s %9s %9s %9s %7s%n",
+                "type", "count", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "errors"));
+        Histogram total = new Histogram();
+        long totalErrors = 0;
+        for (MessageType type : OPERATIONS) {
+            Histogram histogram = new Histogram();
+            long errors = 0;
+            for (SimulatedPlayer player : players) {
+                histogram.add(player.latencies.get(type));
+                errors += player.errors.get(type)[0];
+            }
+            if (histogram.count() == 0 && errors == 0) continue;
+            total.add(histogram);
+            totalErrors += errors;
+            appendRow(sb, type.toString(), histogram, errors, seconds);
+        }
+        appendRow(sb, "total", total, totalErrors, seconds);
+        sb.append("connection errors: ").append(connectErrors.get()).append('\n');
+        sb.append("throttled (RETRY_LATER): ").append(throttled.get()).append('\n');
+        if (backlog > 0) sb.append("requests never sent: ").append(backlog).append('\n');
+        System.out.print(sb);
+    }
+
+    /**
+     * Appends a single row of the report.
+     * @param sb        the StringBuilder to append to
+     * @param label     the label of the row
+     * @param histogram the latencies
+     * @param errors    the number of errors
+     * @param seconds   the duration of the run
+     */
+    private static void appendRow(StringBuilder sb, String label, Histogram histogram, long errors, double seconds) {
+        sb.append(String.format("%-6s %9d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %7d%n",
+                label, histogram.count(), histogram.count() / seconds,
+                histogram.percentile(50) / 1000.0, histogram.percentile(90) / 1000.0,
+                histogram.percentile(99) / 1000.0, histogram.percentile(99.9) / 1000.0,
+                histogram.max() / 1000.0, errors));
+    }
+
+    /**
+     * Represents a single simulated player with its own connection.
+     */
+    private class SimulatedPlayer extends Thread {
+        private final int id;
+        private final long startAt;
+        private final BlockingQueue<Long> arrivals;
+        private final SplittableRandom random;
+        private final EnumMap<MessageType, Histogram> latencies = new EnumMap<>(MessageType.class);
+        private final EnumMap<MessageType, long[]> errors = new EnumMap<>(MessageType.class);
+        private Compression.Output out;
+        private Compression.Input in;
+        private int picks;
+
+        SimulatedPlayer(int _id, long _startAt, BlockingQueue<Long> _arrivals) {
+            super("load-" + _id);
+            id = _id;
+            startAt = _startAt;
+            arrivals = _arrivals;
+            random = new SplittableRandom(_id);
+            for (MessageType type : OPERATIONS) {
+                latencies.put(type, new Histogram());
+                errors.put(type, new long[1]);
+            }
+        }
+
+        /**
+         * Connects, authenticates, picks a character and sends requests until the run is stopped.
+         */
+        public void run() {
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.max(0, startAt - System.nanoTime()));
+            } catch (InterruptedException e) {
+                return;
+            }
+            try (Socket socket = new Socket(host, port)) {
+                // a request is written in several small writes, with Nagle each would wait for a delayed ACK
+                socket.setTcpNoDelay(true);
+                out = new Compression.Output(socket.getOutputStream());
+                in = new Compression.Input(socket.getInputStream());
+                if (compress) Compression.negotiate(out, in);
+                execute(MessageType.AUTH);
+                execute(MessageType.PICK);
+                while (!stopped) {
+                    long intended;
+                    if (arrivals != null) {
+                        intended = arrivals.take();
+                    } else {
+                        TimeUnit.MILLISECONDS.sleep(thinkMillis / 2 + random.nextLong(thinkMillis + 1));
+                        intended = System.nanoTime();
+                    }
+                    MessageType type = nextOperation();
+                    boolean ok = execute(type);
+                    if (ok) latencies.get(type).record((System.nanoTime() - intended) / 1000);
+                }
+                out.writeObject(new Message(MessageType.CLOSE, ""));
+            } catch (InterruptedException e) {
+                // the run is over
+            } catch (IOException | ClassNotFoundException e) {
+                if (!stopped) connectErrors.incrementAndGet();
+            }
+        }
+
+        /**
+         * Draws the next request type according to the mix.
+         * @return  the request type
+         */
+        private MessageType nextOperation() {
+            int totalWeight = 0;
+            for (int weight : mix.values()) {
+                totalWeight += weight;
+            }
+            int draw = random.nextInt(Math.max(1, totalWeight));
+            for (Map.Entry<MessageType, Integer> entry : mix.entrySet()) {
+                draw -= entry.getValue();
+                if (draw < 0) return entry.getKey();
+            }
+            return MessageType.VIEW;
+        }
+
+        /**
+         * Executes a single request with the whole exchange it needs.
+         * @param type  the type of the request
+         * @return      true if the request succeeded, false if the server answered with an ERROR
+         * @throws IOException
+         * @throws ClassNotFoundException
+         */
+        private boolean execute(MessageType type) throws IOException, ClassNotFoundException {
+            boolean ok = switch (type) {
+                case AUTH -> request(new Message(MessageType.AUTH, "load-player-" + id
+                        + (compains.length == 0 ? "" : "@" + compains[id % compains.length])));
+                case LIST -> request(new Message(MessageType.LIST, ""));
+                case PICK -> request(new Message(MessageType.PICK, "Load " + id + (picks++ % 2 == 0 ? "a" : "b")));
+                case VIEW -> request(new Message(MessageType.VIEW, ""));
+                default -> set();
+            };
+            if (!ok) errors.get(type)[0]++;
+            return ok;
+        }
+
+        /**
+         * Sends the message and reads the response, with all its chunks if it is streamed. RETRY_LATER responses are
+         * counted as errors and as throttled requests.
+         * @param message   the message to send
+         * @return          true if the response is neither ERROR nor RETRY_LATER
+         * @throws IOException
+         * @throws ClassNotFoundException
+         */
+        private boolean request(Message message) throws IOException, ClassNotFoundException {
+            out.writeObject(message);
+            out.reset();
+            Message response;
+            do {
+                response = (Message) in.readObject();
+            } while (response.type == MessageType.CHUNK);
+            if (response.type == MessageType.RETRY_LATER) throttled.incrementAndGet();
+            return response.type != MessageType.ERROR && response.type != MessageType.RETRY_LATER;
+        }
+
+        /**
+         * Runs the SET exchange: gets the character, changes its current health and sends it back.
+         * @return  true if the exchange succeeded
+         * @throws IOException
+         * @throws ClassNotFoundException
+         */
+        private boolean set() throws IOException, ClassNotFoundException {
+            if (!request(new Message(MessageType.SET, ""))) return false;
+            Character character = Codecs.readCharacter(((Message) in.readObject()).payload);
+            character.setCurrentHP(random.nextInt(character.getMaxHP() + 1));
+            out.writeObject(new Message(MessageType.OK, ""));
+            out.writeObject(new Message(MessageType.MESSAGE, Codecs.writeCharacterString(character)));
+            out.reset();
+            return true;
+        }
+    }
+
+    /**
+     * Represents a log-linear histogram of latencies in microseconds. Values below 128 are counted exactly, larger
+     * values are counted with 64 buckets per power of two, so the relative error is below 2%.
+     */
+    static class Histogram {
+        private static final int LINEAR = 128;
+        private static final int SUB_BUCKETS = 64;
+        private final long[] counts = new long[LINEAR + (64 - 7) * SUB_BUCKETS];
+        private long count;
+        private long max;
+
+        /**
+         * Records a single value.
+         * @param value the value to record
+         */
+        void record(long value) {
+            if (value < 0) value = 0;
+            counts[bucket(value)]++;
+            count++;
+            max = Math.max(max, value);
+        }
+
+        /**
+         * Adds all the values of the other histogram.
+         * @param other the histogram to add
+         */
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        long count() {
+            return count;
+        }
+
+        long max() {
+            return max;
+        }
+
+        /**
+         * Gets the value below which the given percentage of the recorded values lie.
+         * @param percent   the percentage
+         * @return          the value
+         */
+        long percentile(double percent) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(percent / 100 * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(value(i), max);
+            }
+            return max;
+        }
+
+        private static int bucket(long value) {
+            if (value < LINEAR) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - 6;
+            return LINEAR + (exponent - 7) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+        }
+
+        private static long value(int bucket) {
+            if (bucket < LINEAR) return bucket;
+            int exponent = (bucket - LINEAR) / SUB_BUCKETS + 7;
+            long mantissa = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+            return ((mantissa + 1) << (exponent - 6)) - 1;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package org.mff;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Represents the asynchronous server log. Logging threads only copy the message format and its arguments into
+ * a preallocated ring buffer; formatting and writing happen on a single background thread, so a slow terminal or
+ * log file never blocks a client handler. When the buffer is full new entries are dropped and the number of dropped
+ * entries is reported later. A statement below the configured level costs a single comparison.
+ * <p>
+ * The level is set with -Dlog.level (DEBUG, INFO, WARN, ERROR or OFF, INFO by default), the output with
+ * -Dlog.file (the standard output by default) and the capacity of the buffer with -Dlog.capacity.
+ * Messages use "{}" as the placeholder of the arguments. An error given last is printed with its stack trace, unless
+ * a placeholder is left for it, which then takes only its description.
+ * <p>
+ * The background thread parks while the buffer is empty and is unparked by the next published entry, so an idle
+ * server does not wake it up.
+ */
+public class Log {
+    /**
+     * Represents the severity of the log entry.
+     */
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR,
+        OFF
+    }
+
+    private static final int capacity = Integer.highestOneBit(Math.max(2, Integer.getInteger("log.capacity", 8192)));
+    private static final Entry[] entries = new Entry[capacity];
+    private static final AtomicLong tail = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final ThreadLocal<String> correlation = new ThreadLocal<>();
+    private static volatile int threshold = Level.valueOf(System.getProperty("log.level", "INFO").toUpperCase()).ordinal();
+    private static volatile long head;
+    private static volatile boolean sleeping;
+    private static final Thread writerThread;
+    private static Writer shared;
+
+    static {
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = new Entry();
+            entries[i].sequence = i - capacity;
+        }
+        writerThread = new Thread(Log::drainLoop, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    /**
+     * Represents a single slot of the ring buffer. A slot is published by writing its sequence last.
+     */
+    private static class Entry {
+        private volatile long sequence;
+        private long time;
+        private Level level;
+        private String correlation;
+        private String thread;
+        private String format;
+        private int count;
+        private Object arg1;
+        private Object arg2;
+        private Object arg3;
+        private Throwable error;
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Checks if the entries of the given level are logged.
+     * @param level the level to check
+     * @return      true if the entries are logged, false otherwise
+     */
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    /**
+     * Sets the level below which the entries are discarded.
+     * @param level the new level
+     */
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    /**
+     * Sets the correlation id of the current thread. It is attached to all the entries logged by the thread
+     * until it is changed.
+     * @param id    the correlation id, null to clear it
+     */
+    public static void setCorrelation(String id) {
+        correlation.set(id);
+    }
+
+    /**
+     * Gets the number of the entries dropped because the buffer was full.
+     * @return  the number of dropped entries
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    public static void debug(String format) {
+        if (Level.DEBUG.ordinal() >= threshold) log(Level.DEBUG, format, 0, null, null, null, null);
+    }
+
+    public static void debug(String format, Object arg1) {
+        if (Level.DEBUG.ordinal() >= threshold) log(Level.DEBUG, format, 1, arg1, null, null, null);
+    }
+
+    public static void debug(String format, Object arg1, Object arg2) {
+        if (Level.DEBUG.ordinal() >= threshold) log(Level.DEBUG, format, 2, arg1, arg2, null, null);
+    }
+
+    public static void debug(String format, Object arg1, Object arg2, Object arg3) {
+        if (Level.DEBUG.ordinal() >= threshold) log(Level.DEBUG, format, 3, arg1, arg2, arg3, null);
+    }
+
+    public static void info(String format) {
+        if (Level.INFO.ordinal() >= threshold) log(Level.INFO, format, 0, null, null, null, null);
+    }
+
+    public static void info(String format, Object arg1) {
+        if (Level.INFO.ordinal() >= threshold) log(Level.INFO, format, 1, arg1, null, null, null);
+    }
+
+    public static void info(String format, Object arg1, Object arg2) {
+        if (Level.INFO.ordinal() >= threshold) log(Level.INFO, format, 2, arg1, arg2, null, null);
+    }
+
+    public static void info(String format, Object arg1, Object arg2, Object arg3) {
+        if (Level.INFO.ordinal() >= threshold) log(Level.INFO, format, 3, arg1, arg2, arg3, null);
+    }
+
+    public static void warn(String format) {
+        if (Level.WARN.ordinal() >= threshold) log(Level.WARN, format, 0, null, null, null, null);
+    }
+
+    public static void warn(String format, Object arg1) {
+        if (Level.WARN.ordinal() >= threshold) log(Level.WARN, format, 1, arg1, null, null, null);
+    }
+
+    public static void warn(String format, Object arg1, Object arg2) {
+        if (Level.WARN.ordinal() >= threshold) log(Level.WARN, format, 2, arg1, arg2, null, null);
+    }
+
+    public static void warn(String format, Object arg1, Object arg2, Object arg3) {
+        if (Level.WARN.ordinal() >= threshold) log(Level.WARN, format, 3, arg1, arg2, arg3, null);
+    }
+
+    public static void warn(String format, Throwable error) {
+        if (Level.WARN.ordinal() >= threshold) log(Level.WARN, format, 0, null, null, null, error);
+    }
+
+    public static void warn(String format, Object arg1, Throwable error) {
+        if (Level.WARN.ordinal() >= threshold) log(Level.WARN, format, 1, arg1, null, null, error);
+    }
+
+    public static void warn(String format, Object arg1, Object arg2, Throwable error) {
+        if (Level.WARN.ordinal() >= threshold) log(Level.WARN, format, 2, arg1, arg2, null, error);
+    }
+
+    public static void error(String format, Throwable error) {
+        if (Level.ERROR.ordinal() >= threshold) log(Level.ERROR, format, 0, null, null, null, error);
+    }
+
+    public static void error(String format, Object arg1, Throwable error) {
+        if (Level.ERROR.ordinal() >= threshold) log(Level.ERROR, format, 1, arg1, null, null, error);
+    }
+
+    public static void error(String format, Object arg1, Object arg2, Throwable error) {
+        if (Level.ERROR.ordinal() >= threshold) log(Level.ERROR, format, 2, arg1, arg2, null, error);
+    }
+
+    /**
+     * Claims a slot of the ring buffer and publishes the entry. Drops the entry if the buffer is full.
+     * @param level     the level of the entry
+     * @param format    the message with "{}" placeholders
+     * @param count     the number of the arguments given
+     * @param arg1      the first argument, may be null
+     * @param arg2      the second argument, may be null
+     * @param arg3      the third argument, may be null
+     * @param error     the error to print with its stack trace, may be null
+     */
+    private static void log(Level level, String format, int count, Object arg1, Object arg2, Object arg3,
+                            Throwable error) {
+        long sequence;
+        do {
+            sequence = tail.get();
+            if (sequence - head >= capacity) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        Entry entry = entries[(int) (sequence & (capacity - 1))];
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.correlation = correlation.get();
+        entry.thread = Thread.currentThread().getName();
+        entry.format = format;
+        entry.count = count;
+        entry.arg1 = arg1;
+        entry.arg2 = arg2;
+        entry.arg3 = arg3;
+        entry.error = error;
+        entry.sequence = sequence;
+        if (sleeping) LockSupport.unpark(writerThread);
+    }
+
+    /**
+     * Writes the published entries in order until the end of the program.
+     */
+    private static void drainLoop() {
+        Writer writer = openWriter();
+        StringBuilder sb = new StringBuilder();
+        long reportedDrops = 0;
+        while (true) {
+            try {
+                int written = drain(writer, sb);
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    writer.write(Instant.now() + " WARN  [log] dropped " + (drops - reportedDrops)
+                            + " log entries, the buffer is full\n");
+                    reportedDrops = drops;
+                }
+                if (written == 0) {
+                    writer.flush();
+                    // a producer publishing after the flag is set sees it and unparks the thread; the timeout only
+                    // bounds the delay of the report of the dropped entries
+                    sleeping = true;
+                    if (entries[(int) (head & (capacity - 1))].sequence != head)
+                        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+                    sleeping = false;
+                }
+            } catch (IOException e) {
+                // there is nowhere left to report the failure of the log itself
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    /**
+     * Writes all the entries published so far.
+     * @param writer    the writer to write to
+     * @param sb        the StringBuilder to format the entries in
+     * @return          the number of written entries
+     * @throws IOException
+     */
+    private static synchronized int drain(Writer writer, StringBuilder sb) throws IOException {
+        int written = 0;
+        while (true) {
+            long sequence = head;
+            Entry entry = entries[(int) (sequence & (capacity - 1))];
+            if (entry.sequence != sequence) return written;
+            sb.setLength(0);
+            format(entry, sb);
+            entry.format = null;
+            entry.arg1 = null;
+            entry.arg2 = null;
+            entry.arg3 = null;
+            entry.error = null;
+            entry.correlation = null;
+            head = sequence + 1;
+            writer.append(sb);
+            written++;
+        }
+    }
+
+    /**
+     * Formats the entry as "time LEVEL [correlation] message".
+     * @param entry the entry to format
+     * @param sb    the StringBuilder to append to
+     */
+    private static void format(Entry entry, StringBuilder sb) {
+        sb.append(Instant.ofEpochMilli(entry.time)).append(' ');
+        sb.append(entry.level);
+        for (int i = entry.level.name().length(); i < 6; i++) {
+            sb.append(' ');
+        }
+        sb.append('[').append(entry.correlation != null ? entry.correlation : entry.thread).append("] ");
+        Object[] args = {entry.arg1, entry.arg2, entry.arg3};
+        Throwable error = entry.error;
+        int arg = 0;
+        String format = entry.format;
+        int from = 0;
+        int at;
+        while ((at = format.indexOf("{}", from)) >= 0 && arg < args.length) {
+            if (arg == entry.count && error != null) {
+                // a placeholder left for the error takes its description instead of the stack trace
+                sb.append(format, from, at).append(error);
+                error = null;
+                arg = args.length;
+            } else {
+                sb.append(format, from, at).append(args[arg++]);
+            }
+            from = at + 2;
+        }
+        sb.append(format, from, format.length()).append('\n');
+        if (error != null) {
+            StringWriter trace = new StringWriter();
+            error.printStackTrace(new PrintWriter(trace));
+            sb.append(trace);
+        }
+    }
+
+    /**
+     * Writes everything published so far. Called at the end of the program.
+     */
+    private static void flush() {
+        try {
+            Writer writer = openWriter();
+            drain(writer, new StringBuilder());
+            writer.flush();
+        } catch (IOException e) {
+            // the program is ending, the remaining entries are lost
+        }
+    }
+
+    /**
+     * Opens the output of the log once.
+     * @return  the writer of the log
+     */
+    private static synchronized Writer openWriter() {
+        if (shared != null) return shared;
+        String file = System.getProperty("log.file");
+        try {
+            shared = file == null
+                    ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                    : Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            shared = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        }
+        return shared;
+    }
+}
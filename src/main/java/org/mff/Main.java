@@ -6,13 +6,25 @@ public class Main {
 	public static void main(String[] args) {
 		if (args.length > 0) {
 			switch (args[0]) {
-				case "server" -> Server.run(args);
+				case "server" -> {
+					try {
+						Startup.configure(args);
+					} catch (IllegalArgumentException e) {
+						System.out.println(e.getMessage());
+						return;
+					}
+					Server.run(args);
+				}
 				case "client" -> PlayerClient.run(args);
+				case "load" -> LoadGenerator.run(args);
+				case "export", "import" -> CompainArchive.run(args);
 					default -> System.out.println("Unknown argument: " + args[0]);
 			}
 		} else {
 			System.out.println("No arguments provided.");
 			System.out.println("Use 'server' to run the server or 'client' to run the client");
+			System.out.println("Use 'load' to run simulated players against a running server");
+			System.out.println("Use 'export <compain> <file>' or 'import <compain> <file>' to move a whole compain");
 		}
 	}
 }
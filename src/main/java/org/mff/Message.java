@@ -1,14 +1,27 @@
 package org.mff;
 import java.io.Serializable;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 /**
  * Represents the message. Used to communicate between server and client.
  */
 public class Message implements Serializable{
     public MessageType type;
     public String payload;
+    /**
+     * The version of the character the payload was made from, -1 if the payload is not a character.
+     */
+    public long version;
     public Message(MessageType _type, String _payload) {
+        this(_type, _payload, -1);
+    }
+    @JsonCreator
+    public Message(@JsonProperty("type") MessageType _type, @JsonProperty("payload") String _payload,
+                   @JsonProperty("version") long _version) {
         type = _type;
         payload = _payload;
+        version = _version;
     }
 }
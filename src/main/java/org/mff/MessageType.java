@@ -12,5 +12,18 @@ public enum MessageType{
     LIST,
     VIEW,
     CLOSE,
-    DISCARD;
+    DISCARD,
+    QUERY,
+    ROLL,
+    HISTORY,
+    REVERT,
+    NOT_MODIFIED,
+    ADMIN,
+    REPLICATE,
+    HELLO,
+    CHUNK,
+    RETRY_LATER,
+    COMBAT,
+    PING,
+    PONG;
 }
@@ -0,0 +1,64 @@
+package org.mff;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Represents the registry of the server's metrics. Counters are LongAdders, so counting from many client handlers
+ * at once does not contend; the classes which count keep the counter they got instead of looking it up on every
+ * increment. Gauges are read only when the metrics are listed. The metrics are listed with "admin stats".
+ */
+public class Metrics {
+    private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Gets the counter of the given name, creating it if there is none.
+     * @param name  the name of the counter, e.g. "database.reads"
+     * @return      the counter
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Registers the gauge of the given name, replacing the previous one.
+     * @param name  the name of the gauge
+     * @param gauge the supplier of the current value
+     */
+    public static void gauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Gets the current values of all the counters and gauges.
+     * @return  the map from the names of the metrics to their values, sorted by name
+     */
+    public static TreeMap<String, Long> snapshot() {
+        TreeMap<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        return values;
+    }
+
+    /**
+     * Describes the current values of all the metrics, one "name value" per line.
+     * @return  the description
+     */
+    public static String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> value : snapshot().entrySet()) {
+            sb.append(value.getKey()).append(' ').append(value.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+}
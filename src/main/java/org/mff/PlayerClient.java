@@ -1,42 +1,53 @@
 package org.mff;
+import java.io.BufferedReader;
 import java.io.Console;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStreamReader;
 import java.net.Socket;
+import java.util.HashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.fasterxml.jackson.annotation.PropertyAccessor;
-import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
-import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
 /**
- * Represents player client. Governs the client server communication.
+ * Represents player client. Governs the client server communication. While the player thinks about the next command
+ * or types at a prompt, a background thread sends a PING every -Dclient.heartbeatSeconds (60 by default), so the server
+ * does not evict the idle session. The server does not evict a session in the middle of a set, however long the editing
+ * takes.
  */
 public class PlayerClient {
+    private static final long heartbeatMillis = Long.getLong("client.heartbeatSeconds", 60) * 1000;
     private Socket clientSocket;
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
-    private Console console;
+    private Compression.Input in;
+    private Compression.Output out;
+    private final BufferedReader console;
     private String playerName;
-    private ObjectMapper mapper;
+    private String cachedSheet;
+    private long cachedVersion = -1;
+    private final HashMap<String, Long> encounterVersions = new HashMap<>();
+    private boolean compress;
+    private final Object exchange = new Object();
+
+    /**
+     * Creates the client reading the commands of the player from the given console.
+     * @param _console  the console
+     */
+    PlayerClient(BufferedReader _console) {
+        console = _console;
+    }
 
     /**
-     * Starts the connection with the server.
+     * Starts the connection with the server and asks it for compression if the client was run with "--compress".
      * @param ip    IP to connect to
      * @param port  port to connect to
      */
     public void startConnection(String ip, int port) {
-        mapper = new ObjectMapper();
-        mapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
         try {
             clientSocket = new Socket(ip, port);
-            out = new ObjectOutputStream(clientSocket.getOutputStream());
-            in = new ObjectInputStream(clientSocket.getInputStream());
+            out = new Compression.Output(clientSocket.getOutputStream());
+            in = new Compression.Input(clientSocket.getInputStream());
+            if (compress && !Compression.negotiate(out, in)) System.out.println("The server refused compression.");
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Unexpected response to HELLO", e);
         } catch (IOException e) {
             System.out.println("Did't manage to connect to host.");
             System.out.println("Trying again...");
@@ -51,28 +62,24 @@ public class PlayerClient {
     }
 
     /**
-     * Starts the client and tries to connect to 127.0.0.1:6666.
+     * Starts the client and tries to connect to 127.0.0.1:6666. Runs the {@link BatchClient} instead if the arguments
+     * contain "--batch". "--compress" asks the server to compress the large payloads.
      * @param args
      */
     public static void run(String[] args) {
-        PlayerClient client = new PlayerClient();
-        client.console = System.console();
-        Pattern exitPattern = Pattern.compile("(exit)|(quit)|(q)", Pattern.CASE_INSENSITIVE);
-        Matcher exitMatcher;
+        Console console = System.console();
+        PlayerClient client = new PlayerClient(new BufferedReader(
+                console != null ? console.reader() : new InputStreamReader(System.in)));
+        for (String arg : args) {
+            if (arg.equals("--batch")) {
+                BatchClient.run(args);
+                return;
+            }
+            if (arg.equals("--compress")) client.compress = true;
+        }
         client.startConnection("127.0.0.1", 6666);
         try {
-            client.authenticate();
-            client.printHelp();
-            while (true) {
-                String input = client.console.readLine().toLowerCase();
-                exitMatcher = exitPattern.matcher(input);
-                if (exitMatcher.matches()) {
-                    client.out.writeObject(new Message(MessageType.CLOSE, ""));
-                    client.stopConnection();
-                    return;
-                }
-                client.processMessage(input);
-            }
+            client.play();
         } catch (Exception e) {
             e.printStackTrace(System.err);
             System.out.println("An unexpected error occurred. Exiting.");
@@ -80,6 +87,69 @@ public class PlayerClient {
         }
     }
 
+    /**
+     * Authenticates the player and processes the commands from the console until the player exits. The console is
+     * read without holding the connection, so the heartbeats go on while the player types.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    void play() throws IOException, ClassNotFoundException {
+        Pattern exitPattern = Pattern.compile("(exit)|(quit)|(q)", Pattern.CASE_INSENSITIVE);
+        authenticate();
+        printHelp();
+        startHeartbeat();
+        while (true) {
+            String input = console.readLine();
+            if (input == null || exitPattern.matcher(input).matches()) {
+                synchronized (exchange) {
+                    out.writeObject(new Message(MessageType.CLOSE, ""));
+                    stopConnection();
+                }
+                return;
+            }
+            processMessage(input.toLowerCase());
+        }
+    }
+
+    /**
+     * Sends the request and reads the response. The connection is held only meanwhile, so a heartbeat can't come
+     * in between.
+     * @param message   the request to send
+     * @return          the response
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private Message request(Message message) throws IOException, ClassNotFoundException {
+        synchronized (exchange) {
+            out.writeObject(message);
+            return (Message) in.readObject();
+        }
+    }
+
+    /**
+     * Starts the daemon thread sending the heartbeats. A heartbeat is sent whenever no request is waiting for its
+     * response, also while the player types at a prompt. Only set, which waits for the player in the middle of its
+     * exchange, holds it back.
+     */
+    private void startHeartbeat() {
+        if (heartbeatMillis <= 0) return;
+        Thread heartbeat = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(heartbeatMillis);
+                    synchronized (exchange) {
+                        out.writeObject(new Message(MessageType.PING, ""));
+                        in.readObject();
+                    }
+                } catch (InterruptedException | IOException | ClassNotFoundException e) {
+                    return;
+                }
+            }
+        }, "heartbeat");
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+    }
+
     /**
      * Processes the clients input.
      * @param input the input to process
@@ -93,19 +163,37 @@ public class PlayerClient {
             case "pick" -> processPick();
             case "view" -> processView();
             case "set" -> processSet();
+            case "query" -> processQuery();
+            case "roll" -> processRoll();
+            case "combat" -> processCombat();
+            case "history" -> processHistory();
+            case "revert" -> processRevert();
+            case "admin" -> processAdmin();
             case "help" -> printHelp();
             default -> System.out.println("Unknown command");
         }
     }
 
     /**
-     * Processes the set command. Sends the SET request, gets the character from the server and
+     * Processes the set command. The server waits for the edited character meanwhile, so the whole exchange holds
+     * the connection.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void processSet() throws IOException, ClassNotFoundException {
+        synchronized (exchange) {
+            editCharacter();
+        }
+    }
+
+    /**
+     * Runs the SET exchange. Sends the SET request, gets the character from the server and
      * continuously processes the commands to set fields of the character. Sends the potentially changed character
      * back to the server.
      * @throws IOException
      * @throws ClassNotFoundException
      */
-    private void processSet() throws IOException, ClassNotFoundException {
+    private void editCharacter() throws IOException, ClassNotFoundException {
         out.writeObject(new Message(MessageType.SET, ""));
         Message response = (Message) in.readObject();
         Character character;
@@ -194,7 +282,7 @@ public class PlayerClient {
                 }
                 case "done" -> {
                     out.writeObject(new Message(MessageType.OK, ""));
-                    out.writeObject(new Message(MessageType.MESSAGE, mapper.writeValueAsString(character)));
+                    out.writeObject(new Message(MessageType.MESSAGE, Codecs.writeCharacterString(character)));
                     break outer;
                 }
                 case "undo" -> {
@@ -208,40 +296,155 @@ public class PlayerClient {
     }
 
     /**
-     * Processes the View command. Sends VIEW request and handles the response.
+     * Processes the View command. Sends VIEW request with the version of the cached sheet and handles the response.
+     * Prints the cached sheet if the server answers that the character has not changed.
      * @throws IOException
      * @throws ClassNotFoundException
      */
     private void processView() throws IOException, ClassNotFoundException {
-        Message response;
-        out.writeObject(new Message(MessageType.VIEW, ""));
-        response = (Message) in.readObject();
+        Message response = request(new Message(MessageType.VIEW,
+                cachedVersion >= 0 ? Long.toString(cachedVersion) : ""));
+        if (handleIfError(response))
+            return;
+        if (response.type != MessageType.NOT_MODIFIED) {
+            cachedSheet = response.payload;
+            cachedVersion = response.version;
+        }
+        System.out.println(cachedSheet);
+    }
+
+    /**
+     * Forgets the cached character sheet. Called whenever the picked character may change.
+     */
+    private void clearCache() {
+        cachedSheet = null;
+        cachedVersion = -1;
+    }
+
+    /**
+     * Processes the Query command. Reads the query, sends QUERY request and handles the response.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void processQuery() throws IOException, ClassNotFoundException {
+        System.out.println("Enter query, for example: where passive.perception >= 15 sort dexterity.save desc top 5");
+        String query = console.readLine();
+        Message response = request(new Message(MessageType.QUERY, query));
         if (handleIfError(response))
             return;
         System.out.println(response.payload);
     }
 
     /**
-     * Processes the Pick command. Sends LIST request, handles the response, sends the Message with the picked character.
-     * Handles the response.
+     * Processes the Roll command. Reads the rolls, sends ROLL request and handles the response.
      * @throws IOException
      * @throws ClassNotFoundException
      */
-    public void processPick() throws IOException, ClassNotFoundException {
-        Message response;
-        out.writeObject(new Message(MessageType.LIST, ""));
-        response = (Message) in.readObject();
+    private void processRoll() throws IOException, ClassNotFoundException {
+        System.out.println("Enter rolls separated by ';', for example: skill perception; save dexterity for npcs; dice 2d6+3");
+        String rolls = console.readLine();
+        Message response = request(new Message(MessageType.ROLL, rolls));
         if (handleIfError(response))
             return;
         System.out.println(response.payload);
-        System.out.println(
-                "Enter the name of one of the characters above to choose them or a new name, to create a new character.");
-        String name = console.readLine();
-        out.writeObject(new Message(MessageType.PICK, name));
-        response = (Message) in.readObject();
+    }
+
+    /**
+     * Processes the Combat command. Reads the combat command and sends COMBAT request. "wait &lt;encounter&gt;" without
+     * a version waits for a change after the last version of the encounter seen by this client.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void processCombat() throws IOException, ClassNotFoundException {
+        System.out.println("Enter combat command, for example: start goblins npcs; add goblins me; next goblins; "
+                + "damage goblins 7 Goblin; wait goblins; end goblins");
+        String command = console.readLine().trim();
+        String[] words = command.split("\\s+");
+        if (words.length == 2 && words[0].equalsIgnoreCase("wait"))
+            command += " " + encounterVersions.getOrDefault(words[1], -1L);
+        Message response = request(new Message(MessageType.COMBAT, command));
+        if (handleIfError(response))
+            return;
+        if (words.length > 1 && response.version >= 0) encounterVersions.put(words[1], response.version);
+        if (response.type == MessageType.NOT_MODIFIED) {
+            System.out.println("Nothing has changed yet.");
+            return;
+        }
+        System.out.println(response.payload);
+    }
+
+    /**
+     * Processes the History command. Reads the version, sends HISTORY request and handles the response.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void processHistory() throws IOException, ClassNotFoundException {
+        System.out.println("Enter the version to view or nothing to list the latest changes");
+        String version = console.readLine();
+        Message response = request(new Message(MessageType.HISTORY, version));
+        if (handleIfError(response))
+            return;
+        System.out.println(response.payload);
+    }
+
+    /**
+     * Processes the Revert command. Reads the version, sends REVERT request and handles the response.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void processRevert() throws IOException, ClassNotFoundException {
+        System.out.println("Enter the version to revert to");
+        String version = console.readLine();
+        Message response = request(new Message(MessageType.REVERT, version));
+        if (handleIfError(response))
+            return;
+        System.out.println(response.payload);
+    }
+
+    /**
+     * Processes the Admin command. Reads the command, sends ADMIN request and handles the response.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private void processAdmin() throws IOException, ClassNotFoundException {
+        System.out.println("Enter the admin command, for example: jfr start, jfr dump server.jfr, jfr stop");
+        String command = console.readLine();
+        Message response = request(new Message(MessageType.ADMIN, command));
+        if (handleIfError(response))
+            return;
+        System.out.println(response.payload);
+    }
+
+    /**
+     * Processes the Pick command. Sends LIST requests, printing the characters page by page, sends the Message with
+     * the picked character. Handles the response.
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public void processPick() throws IOException, ClassNotFoundException {
+        Message response;
+        String cursor = "";
+        String name;
+        do {
+            synchronized (exchange) {
+                out.writeObject(new Message(MessageType.LIST, cursor.isEmpty() ? "" : "after " + cursor));
+                while ((response = (Message) in.readObject()).type == MessageType.CHUNK) {
+                    System.out.print(response.payload);
+                }
+            }
+            if (handleIfError(response))
+                return;
+            cursor = response.payload;
+            System.out.println(
+                    "Enter the name of one of the characters above to choose them or a new name, to create a new character.");
+            if (!cursor.isEmpty()) System.out.println("Press enter to list more characters.");
+            name = console.readLine();
+        } while (name.isEmpty() && !cursor.isEmpty());
+        response = request(new Message(MessageType.PICK, name));
         if (handleIfError(response))
             return;
         if (response.type == MessageType.OK) {
+            clearCache();
             System.out.println("You have been assigned a character " + name);
         }
     }
@@ -252,11 +455,10 @@ public class PlayerClient {
      * @throws ClassNotFoundException
      */
     private void authenticate() throws IOException, ClassNotFoundException {
-        System.out.println("Enter your player name...");
+        System.out.println("Enter your player name, add @compain to play another than the default compain...");
         playerName = console.readLine();
-        Message response;
-        out.writeObject(new Message(MessageType.AUTH, playerName));
-        response = (Message) in.readObject();
+        clearCache();
+        Message response = request(new Message(MessageType.AUTH, playerName));
         if (handleIfError(response))
             return;
         else if (response.type == MessageType.OK) {
@@ -288,20 +490,30 @@ public class PlayerClient {
         sb.append("pick - pick a character\n");
         sb.append("view - view a character sheet\n");
         sb.append("set - set a value in a character sheet\n");
+        sb.append("query - filter and sort all the characters of the compain\n");
+        sb.append("roll - roll checks, saves or dice on the server\n");
+        sb.append("combat - track the initiative and hit points of an encounter\n");
+        sb.append("history - list the changes of a character or view an older version\n");
+        sb.append("revert - revert a character to an older version\n");
+        sb.append("admin - run an admin command on the server, only from localhost\n");
         sb.append("help - print this message\n");
         System.out.println(sb.toString());
     }
 
     /**
-     * Checks if the message is of ERROR type. If so, handles the error.
+     * Checks if the message is of ERROR or RETRY_LATER type. If so, handles the error.
      * @param m message to handle
-     * @return  true if the message is and ERROR, false otherwise
+     * @return  true if the message is and ERROR or RETRY_LATER, false otherwise
      */
     private boolean handleIfError(Message m) {
         if (m.type == MessageType.ERROR) {
             System.out.println("An error occurred: " + m.payload);
             return true;
         }
+        if (m.type == MessageType.RETRY_LATER) {
+            System.out.println("The server is busy, try again in " + m.payload + " ms.");
+            return true;
+        }
         return false;
     }
 
@@ -309,13 +521,9 @@ public class PlayerClient {
      * Reads the character from the json string.
      * @param json  the string to read a character from
      * @return
-     * @throws JsonParseException
-     * @throws JsonMappingException
      * @throws IOException
      */
-    private Character readCharacter(String json) throws JsonParseException, JsonMappingException, IOException {
-        Character character = mapper.readValue(json, Character.class);
-        Character.initStatic();
-        return character;
+    private Character readCharacter(String json) throws IOException {
+        return Codecs.readCharacter(json);
     }
 }
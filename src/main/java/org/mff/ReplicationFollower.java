@@ -0,0 +1,240 @@
+package org.mff;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Represents the follower side of the replication. Connects to the leader's replication port, replaces its copy of
+ * every compain by the leader's snapshot and then applies the streamed changes through the compains' writers, so its
+ * clients read the same characters, versions and players as the leader's. While following, the server refuses the
+ * requests which change the compains. When the connection is lost the follower keeps serving the last state it has
+ * and reconnects every second; the new connection starts with new snapshots. The follower proves itself to the leader
+ * with -Dreplication.secret, see {@link ReplicationLeader}.
+ * <p>
+ * The lag is published as the "replication.lag.changes" and "replication.lag.millis" gauges: the number of changes
+ * the leader announced and the follower has not applied yet and the time since the follower last had everything
+ * the leader had. The time is measured with the leader's clock, so across machines it includes their clock skew.
+ * "admin promote" stops following and makes the server the leader.
+ */
+public class ReplicationFollower extends Thread {
+    private static final long RECONNECT_MILLIS = 1000;
+    private static volatile ReplicationFollower current;
+    private final String host;
+    private final int port;
+    private final ObjectMapper mapper = Codecs.mapper();
+    private final HashMap<String, Long> snapshots = new HashMap<>();
+    private volatile boolean stopped;
+    private volatile Socket socket;
+    private volatile long applied;
+    private volatile long announced;
+    private volatile long caughtUpAt = System.currentTimeMillis();
+
+    static {
+        Metrics.gauge("replication.lag.changes", () -> {
+            ReplicationFollower follower = current;
+            return follower == null ? 0 : Math.max(0, follower.announced - follower.applied);
+        });
+        Metrics.gauge("replication.lag.millis", () -> {
+            ReplicationFollower follower = current;
+            return follower == null ? 0 : Math.max(0, System.currentTimeMillis() - follower.caughtUpAt);
+        });
+        Metrics.gauge("replication.applied", () -> {
+            ReplicationFollower follower = current;
+            return follower == null ? 0 : follower.applied;
+        });
+    }
+
+    private ReplicationFollower(String _host, int _port) {
+        super("replication-follower");
+        host = _host;
+        port = _port;
+        setDaemon(true);
+    }
+
+    /**
+     * Starts following the leader.
+     * @param leader    the leader's replication address, host:port
+     * @return          the follower
+     * @throws IllegalArgumentException if the address is malformed
+     */
+    public static synchronized ReplicationFollower start(String leader) {
+        if (current != null) throw new IllegalArgumentException("The server already follows " + current.getLeader());
+        int colon = leader.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("The leader must be given as host:port");
+        ReplicationFollower follower;
+        try {
+            follower = new ReplicationFollower(leader.substring(0, colon), Integer.parseInt(leader.substring(colon + 1)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid port of the leader: " + leader);
+        }
+        current = follower;
+        follower.start();
+        return follower;
+    }
+
+    /**
+     * Stops following the leader.
+     * @return  the number of the last applied change, 0 if the server was not following
+     */
+    public static synchronized long stopFollowing() {
+        ReplicationFollower follower = current;
+        if (follower == null) return 0;
+        current = null;
+        follower.stopped = true;
+        follower.interrupt();
+        Socket connection = follower.socket;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                Log.warn("Unable to close the connection to the leader: {}", e);
+            }
+        }
+        try {
+            follower.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.info("Stopped following {} at change {}", follower.getLeader(), follower.applied);
+        return follower.applied;
+    }
+
+    /**
+     * Gets the running follower.
+     * @return  the follower, null if the server is not following a leader
+     */
+    public static ReplicationFollower current() {
+        return current;
+    }
+
+    /**
+     * Gets the address of the leader.
+     * @return  host:port of the leader
+     */
+    public String getLeader() {
+        return host + ":" + port;
+    }
+
+    /**
+     * Describes the state of the follower.
+     * @return  the description
+     */
+    public String describe() {
+        return "follower of " + getLeader() + (socket == null ? " (disconnected)" : "") + ", applied change "
+                + applied + " of " + announced + ", lag " + Math.max(0, System.currentTimeMillis() - caughtUpAt) + " ms";
+    }
+
+    /**
+     * Connects to the leader and applies its stream until the follower is stopped.
+     */
+    @Override
+    public void run() {
+        while (!stopped) {
+            try (Socket connection = new Socket()) {
+                connection.connect(new InetSocketAddress(host, port));
+                socket = connection;
+                Log.info("Following the leader {}", getLeader());
+                snapshots.clear();
+                ObjectOutputStream out = new ObjectOutputStream(connection.getOutputStream());
+                String secret = ReplicationLeader.secret();
+                out.writeObject(new Message(MessageType.REPLICATE, secret == null ? "" : secret));
+                out.flush();
+                ObjectInputStream in = new ObjectInputStream(connection.getInputStream());
+                while (!stopped) {
+                    apply((Message) in.readObject());
+                }
+            } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                if (!stopped) Log.warn("Replication from {} interrupted: {}", getLeader(), e);
+            } finally {
+                socket = null;
+            }
+            try {
+                if (!stopped) Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies a single record of the stream.
+     * @param message   the message holding the record
+     * @throws IOException
+     */
+    private void apply(Message message) throws IOException {
+        JsonNode record = mapper.readTree(message.payload);
+        String op = record.path("op").asText();
+        String compain = record.path("compain").asText(null);
+        switch (op) {
+            case "snapshot" -> Database.deleteTree(staging(compain));
+            case "file" -> {
+                Path staging = staging(compain);
+                Path file = staging.resolve(record.path("path").asText()).normalize();
+                if (!file.startsWith(staging)) throw new IllegalStateException("Invalid path in the snapshot: " + file);
+                Files.createDirectories(file.getParent());
+                Files.writeString(file, record.path("content").asText());
+            }
+            case "snapshot-end" -> {
+                Database database = Database.acquire(compain);
+                try {
+                    database.replaceWith(staging(compain));
+                } finally {
+                    database.release();
+                }
+                Database.deleteTree(staging(compain));
+                long lsn = record.path("lsn").asLong();
+                snapshots.put(compain, lsn);
+                applied = Math.max(applied, lsn);
+                announced = Math.max(announced, lsn);
+                Log.info("Applied the snapshot of compain {} at change {}", compain, lsn);
+            }
+            case "character", "metadata" -> {
+                long lsn = record.path("lsn").asLong();
+                // the snapshot sent after the change was queued already contains it
+                if (lsn > snapshots.getOrDefault(compain, 0L)) {
+                    Database database = Database.acquire(compain);
+                    try {
+                        if (op.equals("character")) {
+                            database.applyReplica(record.path("name").asText(), record.get("event"), record.get("character"));
+                        } else {
+                            Map<String, String> players = mapper.convertValue(record.get("players"),
+                                    new TypeReference<HashMap<String, String>>() {});
+                            database.applyReplicaMetadata(players);
+                        }
+                    } finally {
+                        database.release();
+                    }
+                }
+                applied = lsn;
+                announced = Math.max(announced, lsn);
+                caughtUpAt = record.path("time").asLong();
+            }
+            case "heartbeat" -> {
+                long lsn = record.path("lsn").asLong();
+                announced = Math.max(announced, lsn);
+                if (applied >= lsn) caughtUpAt = record.path("time").asLong();
+            }
+            default -> Log.warn("Unknown replication record {}", op);
+        }
+    }
+
+    /**
+     * Gets the directory the snapshot of the compain is received into.
+     * @param compain   the name of the compain
+     * @return          the directory
+     */
+    private static Path staging(String compain) {
+        Database.checkName(compain);
+        return Database.getRoot().resolve(".replica").resolve(compain);
+    }
+}
@@ -0,0 +1,421 @@
+package org.mff;
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Represents the leader side of the replication. Accepts followers on its own port (-Dreplication.port), sends every
+ * new follower a snapshot of all the compains and then streams the changes committed by the compains' writers.
+ * <p>
+ * The stream is a sequence of REPLICATE messages whose payload is a JSON record and whose version is the record's
+ * sequence number. The records are:
+ * <pre>
+ *     {"op":"snapshot","compain":"c1"}                       the files of the compain follow
+ *     {"op":"file","path":"Data/c1/3f/Bob%20Smith","content":...}
+ *     {"op":"snapshot-end","compain":"c1","lsn":41}           the snapshot holds the changes up to 41
+ *     {"op":"character","compain":"c1","name":..,"event":..,"character":..,"lsn":42,"time":..}
+ *     {"op":"metadata","compain":"c1","players":{..},"lsn":43,"time":..}
+ *     {"op":"heartbeat","lsn":43,"time":..}                   sent when there is nothing else to send
+ * </pre>
+ * The snapshot of a compain is copied on the compain's writer, so it holds exactly the changes numbered up to its
+ * "lsn", and sent from the copy after the writer is released, so a slow follower never holds up the writes. Every
+ * follower has a bounded queue of -Dreplication.queue changes; while it receives the snapshots and catches up after
+ * them the bound is -Dreplication.snapshotQueue instead. A follower which falls so far behind that its queue is full
+ * is disconnected and gets a new snapshot when it reconnects.
+ * <p>
+ * The port is bound to -Dreplication.bind, the loopback address by default. A follower starts the connection with
+ * a REPLICATE message holding the shared secret -Dreplication.secret, which the leader checks if it has one set.
+ */
+public class ReplicationLeader {
+    private static final int QUEUE_CAPACITY = Integer.getInteger("replication.queue", 65536);
+    private static final int SNAPSHOT_QUEUE_CAPACITY = Math.max(QUEUE_CAPACITY,
+            Integer.getInteger("replication.snapshotQueue", QUEUE_CAPACITY * 4));
+    private static final int HANDSHAKE_MILLIS = 10000;
+    static final long HEARTBEAT_MILLIS = Long.getLong("replication.heartbeatMillis", 500);
+    private static final AtomicLong sequence = new AtomicLong();
+    private static volatile ReplicationLeader current;
+    private final ServerSocket serverSocket;
+    private final CopyOnWriteArrayList<FollowerSession> followers = new CopyOnWriteArrayList<>();
+    private final ObjectMapper mapper = Codecs.mapper();
+
+    static {
+        Metrics.gauge("replication.lsn", sequence::get);
+        Metrics.gauge("replication.followers", () -> {
+            ReplicationLeader leader = current;
+            return leader == null ? 0 : leader.followers.size();
+        });
+    }
+
+    private ReplicationLeader(ServerSocket _serverSocket) {
+        serverSocket = _serverSocket;
+    }
+
+    /**
+     * Starts accepting followers on the port.
+     * @param port      the port to accept followers on
+     * @param firstLsn  the number of the last change already applied, e.g. by a promoted follower
+     * @return          the leader
+     * @throws IOException
+     */
+    public static synchronized ReplicationLeader start(int port, long firstLsn) throws IOException {
+        if (current != null) throw new IllegalArgumentException("The replication leader is already running");
+        InetAddress bind = InetAddress.getByName(System.getProperty("replication.bind", "127.0.0.1"));
+        ReplicationLeader leader = new ReplicationLeader(new ServerSocket(port, 50, bind));
+        sequence.set(firstLsn);
+        Thread acceptor = new Thread(leader::accept, "replication-leader");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        current = leader;
+        Log.info("Replication leader accepting followers on {}:{} from change {}", bind.getHostAddress(), port, firstLsn);
+        if (!bind.isLoopbackAddress() && secret() == null)
+            Log.warn("The replication port is open to other machines without -Dreplication.secret");
+        return leader;
+    }
+
+    /**
+     * Gets the shared secret of the replication.
+     * @return  the secret, null if none is set
+     */
+    static String secret() {
+        String secret = System.getProperty("replication.secret");
+        return secret == null || secret.isEmpty() ? null : secret;
+    }
+
+    /**
+     * Stops accepting followers and disconnects the connected ones.
+     */
+    public static synchronized void stop() {
+        ReplicationLeader leader = current;
+        if (leader == null) return;
+        current = null;
+        try {
+            leader.serverSocket.close();
+        } catch (IOException e) {
+            Log.warn("Unable to close the replication port: {}", e);
+        }
+        for (FollowerSession follower : leader.followers) {
+            follower.close();
+        }
+        Log.info("Replication leader stopped");
+    }
+
+    /**
+     * Gets the running leader.
+     * @return  the leader, null if the server is not a replication leader
+     */
+    public static ReplicationLeader current() {
+        return current;
+    }
+
+    /**
+     * Gets the port the leader accepts followers on.
+     * @return  the port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Gets the number of the last published change.
+     * @return  the number of the last change
+     */
+    public static long getLsn() {
+        return sequence.get();
+    }
+
+    /**
+     * Describes the state of the leader.
+     * @return  the description
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("leader on port ").append(getPort()).append(", change ").append(sequence.get())
+                .append(", ").append(followers.size()).append(" follower(s)");
+        for (FollowerSession follower : followers) {
+            sb.append("\n  ").append(follower.socket.getRemoteSocketAddress())
+                    .append(" queued ").append(follower.queue.size());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Publishes the change of the character. Runs on the writer of the compain.
+     * @param compain   the name of the compain
+     * @param name      the name of the character
+     * @param event     the history event of the change
+     * @param character the state of the character after the change
+     */
+    void publishCharacter(String compain, String name, JsonNode event, JsonNode character) {
+        long lsn = sequence.incrementAndGet();
+        if (followers.isEmpty()) return;
+        ObjectNode record = mapper.createObjectNode();
+        record.put("op", "character");
+        record.put("compain", compain);
+        record.put("name", name);
+        record.set("event", event);
+        record.set("character", character);
+        publish(record, lsn);
+    }
+
+    /**
+     * Publishes the committed metadata of the compain. Runs on the writer of the compain.
+     * @param compain   the name of the compain
+     * @param players   the map from players to their characters
+     */
+    void publishMetadata(String compain, Map<String, String> players) {
+        long lsn = sequence.incrementAndGet();
+        if (followers.isEmpty()) return;
+        ObjectNode record = mapper.createObjectNode();
+        record.put("op", "metadata");
+        record.put("compain", compain);
+        record.set("players", mapper.valueToTree(players));
+        publish(record, lsn);
+    }
+
+    /**
+     * Queues the record for all the followers, disconnecting the followers whose queues are full.
+     * @param record    the record to publish
+     * @param lsn       the number of the record
+     */
+    private void publish(ObjectNode record, long lsn) {
+        record.put("lsn", lsn);
+        record.put("time", System.currentTimeMillis());
+        Message message;
+        try {
+            message = new Message(MessageType.REPLICATE, mapper.writeValueAsString(record), lsn);
+        } catch (JsonProcessingException e) {
+            Log.error("Unable to serialize change {}", lsn, e);
+            return;
+        }
+        for (FollowerSession follower : followers) {
+            int limit = follower.catchingUp ? SNAPSHOT_QUEUE_CAPACITY : QUEUE_CAPACITY;
+            if (follower.queue.size() >= limit || !follower.queue.offer(message)) {
+                Log.warn("Follower {} fell {} changes behind, disconnecting it", follower.socket.getRemoteSocketAddress(),
+                        limit);
+                follower.close();
+            }
+        }
+    }
+
+    /**
+     * Accepts the followers until the leader is stopped.
+     */
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                FollowerSession follower = new FollowerSession(socket);
+                // the follower receives every change published from now on, the snapshots cover the earlier ones
+                followers.add(follower);
+                follower.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) Log.warn("Unable to accept a follower: {}", e);
+            }
+        }
+    }
+
+    /**
+     * Represents a connected follower. Checks its secret, sends the snapshots and then the queued changes.
+     */
+    private class FollowerSession extends Thread {
+        private final Socket socket;
+        private final LinkedBlockingQueue<Message> queue = new LinkedBlockingQueue<>(SNAPSHOT_QUEUE_CAPACITY);
+        // the changes made while the snapshots are sent wait in the queue until they are sent too
+        private volatile boolean catchingUp = true;
+        private volatile boolean closed;
+
+        FollowerSession(Socket _socket) {
+            super("replication-" + _socket.getRemoteSocketAddress());
+            socket = _socket;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Log.info("Follower {} connected", socket.getRemoteSocketAddress());
+            try (ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream())) {
+                if (!authenticate()) return;
+                for (String compain : Database.getExistingCompains()) {
+                    sendSnapshot(out, compain);
+                }
+                ArrayList<Message> batch = new ArrayList<>();
+                while (!closed) {
+                    if (catchingUp && queue.size() < QUEUE_CAPACITY) catchingUp = false;
+                    Message message = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (message == null) {
+                        ObjectNode heartbeat = mapper.createObjectNode();
+                        heartbeat.put("op", "heartbeat");
+                        heartbeat.put("lsn", sequence.get());
+                        heartbeat.put("time", System.currentTimeMillis());
+                        message = new Message(MessageType.REPLICATE, mapper.writeValueAsString(heartbeat), -1);
+                    }
+                    batch.add(message);
+                    queue.drainTo(batch, 255);
+                    for (Message queued : batch) {
+                        out.writeObject(queued);
+                    }
+                    out.flush();
+                    // the stream must not keep every sent message in its handle table
+                    out.reset();
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                if (!closed) Log.warn("Follower {} lost: {}", socket.getRemoteSocketAddress(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Reads the follower's first message and checks the shared secret, if the leader has one.
+         * @return  true if the follower may replicate
+         * @throws IOException
+         */
+        private boolean authenticate() throws IOException {
+            socket.setSoTimeout(HANDSHAKE_MILLIS);
+            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+            // nothing but the message is expected from a peer which has not proven anything yet
+            in.setObjectInputFilter(ObjectInputFilter.Config.createFilter(
+                    "maxbytes=65536;org.mff.Message;org.mff.MessageType;java.lang.Enum;!*"));
+            Message hello;
+            try {
+                hello = (Message) in.readObject();
+            } catch (ClassNotFoundException | ClassCastException | InvalidClassException e) {
+                throw new IOException("Invalid replication handshake", e);
+            }
+            socket.setSoTimeout(0);
+            String secret = secret();
+            if (hello.type != MessageType.REPLICATE || secret != null && (hello.payload == null
+                    || !MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                            hello.payload.getBytes(StandardCharsets.UTF_8)))) {
+                Log.warn("Follower {} refused, wrong replication secret", socket.getRemoteSocketAddress());
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Sends the snapshot of the compain. The files are copied on the compain's writer, so the copy holds exactly
+         * the changes up to the snapshot's number, and sent from the copy once the writer is free again.
+         * @param out       the stream to the follower
+         * @param compain   the name of the compain
+         * @throws IOException
+         */
+        private void sendSnapshot(ObjectOutputStream out, String compain) throws IOException {
+            Database database;
+            try {
+                database = Database.acquire(compain);
+            } catch (IllegalArgumentException e) {
+                Log.warn("Not replicating {}: {}", compain, e);
+                return;
+            }
+            Path root = Database.getRoot();
+            Path copy = root.resolve(".snapshot").resolve(compain + "-" + getId());
+            try {
+                Database.deleteTree(copy);
+                long lsn = database.exclusive(() -> {
+                    long taken = sequence.get();
+                    for (Path directory : database.getDirectories()) {
+                        if (!Files.isDirectory(directory)) continue;
+                        try (Stream<Path> walk = Files.walk(directory)) {
+                            for (Path file : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator) {
+                                if (file.getFileName().toString().endsWith(".tmp")) continue;
+                                Path target = copy.resolve(root.relativize(file).toString());
+                                Files.createDirectories(target.getParent());
+                                Files.copy(file, target);
+                            }
+                        }
+                    }
+                    // the follower gets the archived characters as hot files and archives them on its own
+                    database.forEachArchived((file, json) -> {
+                        Path target = copy.resolve(root.relativize(file).toString());
+                        Files.createDirectories(target.getParent());
+                        Files.writeString(target, json);
+                    });
+                    return taken;
+                });
+                out.writeObject(record("snapshot", compain, null, null));
+                long files = 0;
+                if (Files.isDirectory(copy)) {
+                    try (Stream<Path> walk = Files.walk(copy)) {
+                        for (Path file : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator) {
+                            String path = copy.relativize(file).toString().replace(File.separatorChar, '/');
+                            out.writeObject(record("file", compain, path, Files.readString(file)));
+                            out.reset();
+                            files++;
+                        }
+                    }
+                }
+                ObjectNode end = mapper.createObjectNode();
+                end.put("op", "snapshot-end");
+                end.put("compain", compain);
+                end.put("lsn", lsn);
+                out.writeObject(new Message(MessageType.REPLICATE, mapper.writeValueAsString(end), lsn));
+                out.flush();
+                Log.info("Sent the snapshot of compain {} ({} files) to {}", compain, files, socket.getRemoteSocketAddress());
+            } finally {
+                database.release();
+                Database.deleteTree(copy);
+            }
+        }
+
+        /**
+         * Makes the message of a snapshot record.
+         * @param op        the kind of the record
+         * @param compain   the name of the compain
+         * @param path      the path of the file relative to the root, null if the record is not a file
+         * @param content   the content of the file, null if the record is not a file
+         * @return          the message
+         * @throws JsonProcessingException
+         */
+        private Message record(String op, String compain, String path, String content) throws JsonProcessingException {
+            ObjectNode record = mapper.createObjectNode();
+            record.put("op", op);
+            record.put("compain", compain);
+            if (path != null) {
+                record.put("path", path);
+                record.put("content", content);
+            }
+            return new Message(MessageType.REPLICATE, mapper.writeValueAsString(record), -1);
+        }
+
+        /**
+         * Disconnects the follower.
+         */
+        void close() {
+            if (closed) return;
+            closed = true;
+            followers.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.warn("Unable to close the follower's connection: {}", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package org.mff;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Represents the server side dice rolling engine. Resolves skill checks, saving throws, ability checks and raw dice
+ * expressions using the modifiers stored in the {@link CharacterIndex}. A request consists of at most 20 rolls
+ * separated by ';', for example:
+ * <pre>
+ *     save dexterity for npcs; skill perception; dice 2d6+3
+ * </pre>
+ * Every roll is made for the picked character unless a target is given with "for": "me", "npcs" (characters which
+ * are not assigned to any player), "all" or a comma separated list of character names. A request starting with
+ * "seed &lt;n&gt;;" is rolled deterministically from the given seed, otherwise every thread rolls with its own
+ * generator split from the root generator of the engine.
+ * <p>
+ * A request is compiled once and the compiled request is kept for its text, so a repeated request, such as a group
+ * save every round of an encounter, is rolled without allocating: the modifiers are read from the index and the
+ * results appended to the caller's StringBuilder. Only a seeded request allocates its generator.
+ */
+public class RollEngine {
+    private static final int MAX_ROLLS = 20;
+    private static final int MAX_COMPILED = 1024;
+    private final SplittableRandom root;
+    private final ThreadLocal<SplittableRandom> random;
+    private final ThreadLocal<GroupCheck> groupChecks = ThreadLocal.withInitial(GroupCheck::new);
+    private final ConcurrentHashMap<String, Request> compiled = new ConcurrentHashMap<>();
+
+    /**
+     * Represents the targets of a check.
+     */
+    private enum Targets {
+        ME, ALL, NPCS, NAMED
+    }
+
+    /**
+     * Represents a compiled request: the seed if it has one and its rolls.
+     */
+    private static class Request {
+        private final boolean seeded;
+        private final long seed;
+        private final Roll[] rolls;
+
+        Request(boolean _seeded, long _seed, Roll[] _rolls) {
+            seeded = _seeded;
+            seed = _seed;
+            rolls = _rolls;
+        }
+    }
+
+    /**
+     * Represents a compiled roll: a dice expression, or a check of the given column for the targets.
+     */
+    private static class Roll {
+        private final String label;
+        private final DiceExpression dice;
+        private final int column;
+        private final Targets targets;
+        private final String[] names;
+
+        Roll(String _label, DiceExpression _dice, int _column, Targets _targets, String[] _names) {
+            label = _label;
+            dice = _dice;
+            column = _column;
+            targets = _targets;
+            names = _names;
+        }
+    }
+
+    /**
+     * Represents the check rolled for every row of the index, reused by its thread for every group check.
+     */
+    private static class GroupCheck implements CharacterIndex.RowVisitor {
+        private Database database;
+        private boolean npcs;
+        private String label;
+        private SplittableRandom rng;
+        private StringBuilder sb;
+
+        @Override
+        public void visit(String name, int mod) {
+            if (npcs && database.isAssigned(name)) return;
+            appendCheck(sb, name, label, rng.nextInt(1, 21), mod);
+        }
+    }
+
+    /**
+     * Creates the engine with a random root seed.
+     */
+    public RollEngine() {
+        this(new SplittableRandom());
+    }
+
+    /**
+     * Creates the engine with the given root seed. Each thread gets its own generator split from the root.
+     * @param seed  the root seed
+     */
+    public RollEngine(long seed) {
+        this(new SplittableRandom(seed));
+    }
+
+    private RollEngine(SplittableRandom _root) {
+        root = _root;
+        random = ThreadLocal.withInitial(this::split);
+    }
+
+    /**
+     * Splits a new generator from the root generator.
+     * @return  the new generator
+     */
+    private synchronized SplittableRandom split() {
+        return root.split();
+    }
+
+    /**
+     * Resolves all the rolls of the request and appends the results to the given StringBuilder, one line per roll.
+     * @param database  the compain of the requesting player
+     * @param request   the request to resolve
+     * @param self      the name of the character picked by the requesting player, may be null
+     * @param sb        the StringBuilder to append to
+     * @throws IOException
+     * @throws IllegalArgumentException if the request is malformed
+     */
+    public void roll(Database database, String request, String self, StringBuilder sb) throws IOException {
+        Request compiledRequest = compile(request, database.getIndex());
+        SplittableRandom rng = compiledRequest.seeded ? new SplittableRandom(compiledRequest.seed) : random.get();
+        for (Roll roll : compiledRequest.rolls) {
+            if (roll.dice != null) {
+                sb.append(roll.label).append(": ").append(roll.dice.roll(rng)).append('\n');
+            } else {
+                rollCheck(database, roll, self, rng, sb);
+            }
+        }
+    }
+
+    /**
+     * Rolls a single d20 with the generator of the calling thread, e.g. for the initiative of {@link CombatEngine}.
+     * @return  the natural roll
+     */
+    public int rollD20() {
+        return random.get().nextInt(1, 21);
+    }
+
+    /**
+     * Gets the compiled request, compiling it if its text has not been seen yet. The compiled requests are
+     * forgotten all at once when there are too many of them.
+     * @param request   the text of the request
+     * @param index     the index to resolve the columns in, the columns are the same in every index
+     * @return          the compiled request
+     * @throws IllegalArgumentException if the request is malformed
+     */
+    private Request compile(String request, CharacterIndex index) {
+        Request compiledRequest = compiled.get(request);
+        if (compiledRequest != null) return compiledRequest;
+        compiledRequest = parse(request, index);
+        if (compiled.size() >= MAX_COMPILED) compiled.clear();
+        compiled.put(request, compiledRequest);
+        return compiledRequest;
+    }
+
+    /**
+     * Parses the request.
+     * @param request   the text of the request
+     * @param index     the index to resolve the columns in
+     * @return          the compiled request
+     * @throws IllegalArgumentException if the request is malformed
+     */
+    private static Request parse(String request, CharacterIndex index) {
+        String[] parts = request.trim().split("\\s*;\\s*");
+        boolean seeded = false;
+        long seed = 0;
+        int first = 0;
+        if (parts.length > 0 && parts[0].toLowerCase().startsWith("seed ")) {
+            seeded = true;
+            seed = parseLong(parts[0].substring(5).trim());
+            first = 1;
+        }
+        ArrayList<Roll> rolls = new ArrayList<>();
+        for (int i = first; i < parts.length; i++) {
+            if (parts[i].isEmpty()) continue;
+            if (rolls.size() == MAX_ROLLS)
+                throw new IllegalArgumentException("At most " + MAX_ROLLS + " rolls may be made at once");
+            rolls.add(parseRoll(parts[i], index));
+        }
+        return new Request(seeded, seed, rolls.toArray(new Roll[0]));
+    }
+
+    /**
+     * Parses a single roll.
+     * @param roll  the text of the roll
+     * @param index the index to resolve the columns in
+     * @return      the compiled roll
+     * @throws IllegalArgumentException if the roll is malformed
+     */
+    private static Roll parseRoll(String roll, CharacterIndex index) {
+        String targets = "me";
+        int forAt = roll.toLowerCase().indexOf(" for ");
+        if (forAt >= 0) {
+            targets = roll.substring(forAt + 5).trim();
+            roll = roll.substring(0, forAt).trim();
+        }
+        int space = roll.indexOf(' ');
+        if (space < 0) throw new IllegalArgumentException("Expected <kind> <what>, got: " + roll);
+        String kind = roll.substring(0, space).toLowerCase();
+        String what = roll.substring(space + 1).trim().toLowerCase();
+        return switch (kind) {
+            case "dice" -> new Roll(what, DiceExpression.parse(what), -1, Targets.ME, null);
+            case "skill" -> check(what, index.getColumnId(CharacterIndex.columnName(what)), targets);
+            case "save" -> check(what + " save", index.getColumnId(what + ".save"), targets);
+            case "check" -> check(what + " check", index.getColumnId(what + ".mod"), targets);
+            default -> throw new IllegalArgumentException("Unknown roll: " + kind);
+        };
+    }
+
+    /**
+     * Creates the roll of a check.
+     * @param label     the label of the check
+     * @param column    the column of the modifier
+     * @param targets   the targets of the check
+     * @return          the compiled roll
+     */
+    private static Roll check(String label, int column, String targets) {
+        return switch (targets.toLowerCase()) {
+            case "me" -> new Roll(label, null, column, Targets.ME, null);
+            case "all" -> new Roll(label, null, column, Targets.ALL, null);
+            case "npcs" -> new Roll(label, null, column, Targets.NPCS, null);
+            default -> new Roll(label, null, column, Targets.NAMED, targets.split("\\s*,\\s*"));
+        };
+    }
+
+    /**
+     * Rolls d20 plus the modifier from the column of the check for every target.
+     * @param database  the compain to take the modifiers and the players from
+     * @param roll      the check
+     * @param self      the name of the character picked by the requesting player, may be null
+     * @param rng       the generator to use
+     * @param sb        the StringBuilder to append to
+     * @throws IOException
+     */
+    private void rollCheck(Database database, Roll roll, String self, SplittableRandom rng, StringBuilder sb)
+            throws IOException {
+        CharacterIndex index = database.getIndex();
+        switch (roll.targets) {
+            case ME -> {
+                if (self == null) throw new IllegalArgumentException("You have not picked a character yet.");
+                appendCheck(sb, self, roll.label, rng.nextInt(1, 21), index.getValue(self, roll.column));
+            }
+            case ALL, NPCS -> {
+                GroupCheck check = groupChecks.get();
+                check.database = database;
+                check.npcs = roll.targets == Targets.NPCS;
+                check.label = roll.label;
+                check.rng = rng;
+                check.sb = sb;
+                try {
+                    index.forEachRow(roll.column, check);
+                } finally {
+                    check.database = null;
+                    check.rng = null;
+                    check.sb = null;
+                }
+            }
+            case NAMED -> {
+                for (String name : roll.names) {
+                    appendCheck(sb, name, roll.label, rng.nextInt(1, 21), index.getValue(name, roll.column));
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the result of a single d20 roll.
+     * @param sb        the StringBuilder to append to
+     * @param name      the name of the character
+     * @param label     the label of the roll
+     * @param natural   the natural roll of the d20
+     * @param mod       the modifier
+     */
+    private static void appendCheck(StringBuilder sb, String name, String label, int natural, int mod) {
+        sb.append(name).append(' ').append(label).append(": ").append(natural + mod)
+                .append(" (d20 ").append(natural).append(mod >= 0 ? " +" : " ").append(mod).append(")\n");
+    }
+
+    /**
+     * Parses the long value.
+     * @param token the token to parse
+     * @return      the parsed value
+     */
+    private static long parseLong(String token) {
+        try {
+            return Long.parseLong(token);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a number, got: " + token);
+        }
+    }
+
+    /**
+     * Represents a compiled dice expression such as "2d6+1d4-1". Terms are kept in primitive arrays so that
+     * rolling does not allocate. The number of terms, dice, sides and the constants are limited, so neither
+     * the roll nor its total can run away.
+     */
+    public static class DiceExpression {
+        private static final int MAX_TERMS = 20;
+        private static final int MAX_DICE = 1000;
+        private static final int MAX_SIDES = 1000;
+        private static final int MAX_CONSTANT = 100_000;
+        private final int[] counts;
+        private final int[] sides;
+        private final int constant;
+
+        private DiceExpression(int[] _counts, int[] _sides, int _constant) {
+            counts = _counts;
+            sides = _sides;
+            constant = _constant;
+        }
+
+        /**
+         * Parses the dice expression.
+         * @param text  the text of the expression
+         * @return      the compiled expression
+         * @throws IllegalArgumentException if the expression is malformed
+         */
+        public static DiceExpression parse(String text) {
+            ArrayList<int[]> dice = new ArrayList<>();
+            int constant = 0;
+            String expression = text.replace(" ", "");
+            if (expression.isEmpty()) throw new IllegalArgumentException("Empty dice expression");
+            int terms = 0;
+            for (String term : expression.replace("-", "+-").split("\\+")) {
+                if (term.isEmpty()) continue;
+                if (++terms > MAX_TERMS)
+                    throw new IllegalArgumentException("At most " + MAX_TERMS + " terms may be rolled at once");
+                int sign = term.startsWith("-") ? -1 : 1;
+                String body = sign < 0 ? term.substring(1) : term;
+                int d = body.indexOf('d');
+                try {
+                    if (d < 0) {
+                        int value = Integer.parseInt(body);
+                        if (value < 0 || value > MAX_CONSTANT)
+                            throw new IllegalArgumentException("Invalid constant: " + term);
+                        constant += sign * value;
+                        continue;
+                    }
+                    int count = d == 0 ? 1 : Integer.parseInt(body.substring(0, d));
+                    int side = Integer.parseInt(body.substring(d + 1));
+                    if (count < 1 || count > MAX_DICE || side < 1 || side > MAX_SIDES)
+                        throw new IllegalArgumentException("Invalid dice: " + term);
+                    dice.add(new int[] {sign * count, side});
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid dice expression: " + text);
+                }
+            }
+            int[] counts = new int[dice.size()];
+            int[] sides = new int[dice.size()];
+            for (int i = 0; i < dice.size(); i++) {
+                counts[i] = dice.get(i)[0];
+                sides[i] = dice.get(i)[1];
+            }
+            return new DiceExpression(counts, sides, constant);
+        }
+
+        /**
+         * Rolls the expression.
+         * @param rng   the generator to use
+         * @return      the total of the roll
+         */
+        public int roll(SplittableRandom rng) {
+            int total = constant;
+            for (int i = 0; i < counts.length; i++) {
+                int count = Math.abs(counts[i]);
+                int sum = 0;
+                for (int j = 0; j < count; j++) {
+                    sum += rng.nextInt(1, sides[i] + 1);
+                }
+                total += counts[i] < 0 ? -sum : sum;
+            }
+            return total;
+        }
+    }
+}
@@ -1,61 +1,180 @@
 package org.mff;
-import java.io.Console;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.HashMap;
-
-import com.fasterxml.jackson.annotation.PropertyAccessor;
-import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Represents the server. Governs the allocation of new threads for the clients as well as server client communication.
+ * <p>
+ * A single server hosts any number of compains. The client chooses the compain when it authenticates, as
+ * "player@compain"; a plain "player" gets the default compain of the server. Compains are opened by their first
+ * session and closed after -Dcompain.idleSeconds (300 by default) without sessions.
+ * A connection which sends nothing, not even a PING, for -Dsession.idleSeconds (300 by default, 0 waits forever) is
+ * evicted: its thread ends and its socket and compain session are released. The timeout does not run while a SET
+ * waits for the edited character.
+ * Characters untouched for -Darchive.idleDays (30 by default) are archived, see {@link Database#archiveIdle(long)}.
+ * <p>
+ * With -Dreplication.port the server is a replication leader streaming its changes to the followers, with
+ * -Dreplication.leader=host:port it is a read-only follower of the leader, see {@link ReplicationLeader} and
+ * {@link ReplicationFollower}. The client port is 6666 unless -Dserver.port is set.
  */
 public class Server {
     private ServerSocket serverSocket;
-    private Console console;
     private boolean stopped;
+    private static RollEngine rollEngine;
+    private static CombatEngine combatEngine;
+    private static String defaultCompain;
+    private static final long idleMillis = Long.getLong("compain.idleSeconds", 300) * 1000;
+    private static final long archiveMillis = Long.getLong("archive.idleDays", 30) * 24 * 3600 * 1000;
+    private static final long archiveCheckMillis = Long.getLong("archive.checkMinutes", 60) * 60 * 1000;
+    private static final int listChunk = Integer.getInteger("list.chunkSize", 50);
+    private static final int sessionTimeoutMillis = Integer.getInteger("session.idleSeconds", 300) * 1000;
+    private static final AtomicLong connections = new AtomicLong();
+    private static final AtomicInteger liveSessions = new AtomicInteger();
+    private static final LongAdder evictedSessions = Metrics.counter("sessions.evicted");
+    private static final LongAdder[] requestCounters = new LongAdder[MessageType.values().length];
+
+    static {
+        for (MessageType type : MessageType.values()) {
+            requestCounters[type.ordinal()] = Metrics.counter("requests." + type.toString().toLowerCase());
+        }
+        Metrics.gauge("server.connections.total", connections::get);
+        Metrics.gauge("sessions.live", liveSessions::get);
+        Metrics.gauge("log.dropped", Log::getDropped);
+    }
 
     /**
-     * Creates and runs the server on the port 6666.
-     * @param args
+     * Creates and runs the server on the port -Dserver.port (6666 by default) with the default compain
+     * -Dcompain.default, both set by {@link Startup#configure(String[])} from the arguments and the configuration file.
+     * @param args  the arguments: server [default compain] [--port p] [--config file] [--train]
      */
     public static void run(String[] args) {
         Server server = new Server();
-        server.run(6666);
+        server.run(Integer.getInteger("server.port", 6666), System.getProperty("compain.default"));
     }
 
     /**
-     * Runs the server on the given port.
-     * @param port  the port to run the server on
+     * Runs the server on the given port. The port is bound first and the default compain is opened in the background,
+     * the sessions authenticating to it meanwhile wait until it is open. With -Dserver.train the training run of
+     * {@link Startup#train(int, String)} is played against the server, which then exits.
+     * @param port      the port to run the server on, 0 for any free port
+     * @param compain   the default compain, none if null or blank
      */
-    public void run(int port) {
+    public void run(int port, String compain) {
         stopped = false;
+        initEngines();
         try {
             serverSocket = new ServerSocket(port);
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("Unable to open port {}", port, e);
             System.exit(1);
         }
-        console = System.console();
-        System.out.println("Enter compain name");
-        String compain = console.readLine();
-        try {
-            Database.getInstance(compain);
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(1);
+        int boundPort = serverSocket.getLocalPort();
+        Startup.bound(boundPort);
+        if (compain != null && !compain.isBlank()) {
+            try {
+                Database.checkName(compain.trim());
+            } catch (IllegalArgumentException e) {
+                Log.error("Unable to open compain {}", compain, e);
+                System.exit(1);
+            }
+            defaultCompain = compain.trim();
+        }
+        warmUp(defaultCompain);
+        startReplication();
+        startReaper();
+        if (Boolean.getBoolean("server.train")) {
+            String training = defaultCompain == null ? "training" : defaultCompain;
+            Thread trainer = new Thread(() -> Startup.train(boundPort, training), "training");
+            trainer.setDaemon(true);
+            trainer.start();
         }
+        Log.info("Server listening on port {}, default compain {}", boundPort, defaultCompain);
         while (!stopped)
             try {
                 new ClinentHandler(serverSocket.accept()).start();
             } catch (IOException e) {}
     }
 
+    /**
+     * Starts the daemon thread which opens the default compain, or only loads the JSON codecs if there is none, while
+     * the server already accepts connections. Exits if the compain can't be opened.
+     * @param compain   the default compain, may be null
+     */
+    private static void warmUp(String compain) {
+        Thread thread = new Thread(() -> {
+            try {
+                if (compain == null) Codecs.mapper();
+                else Database.getInstance(compain);
+            } catch (IOException | IllegalArgumentException e) {
+                Log.error("Unable to open compain {}", compain, e);
+                System.exit(1);
+            }
+        }, "warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Creates the engines shared by all the client handlers. The roll engine is seeded with -Droll.seed if it is set.
+     */
+    static void initEngines() {
+        Long seed = Long.getLong("roll.seed");
+        rollEngine = seed == null ? new RollEngine() : new RollEngine(seed);
+        combatEngine = new CombatEngine(rollEngine);
+    }
+
+    /**
+     * Starts following the leader given by -Dreplication.leader or, if there is none, accepting followers on
+     * -Dreplication.port. Exits if the replication can't be started.
+     */
+    private static void startReplication() {
+        String leader = System.getProperty("replication.leader");
+        Integer port = Integer.getInteger("replication.port");
+        try {
+            if (leader != null) ReplicationFollower.start(leader);
+            else if (port != null) ReplicationLeader.start(port, 0);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.error("Unable to start the replication", e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Starts the daemon thread which closes the compains left without sessions and, every -Darchive.checkMinutes,
+     * archives the characters of the open compains untouched for -Darchive.idleDays. Zero days turns the archiving off.
+     */
+    private static void startReaper() {
+        Thread reaper = new Thread(() -> {
+            long lastArchive = System.nanoTime();
+            while (true) {
+                try {
+                    Thread.sleep(Math.max(1000, idleMillis / 4));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (archiveMillis > 0 && System.nanoTime() - lastArchive >= archiveCheckMillis * 1_000_000) {
+                    Database.archiveIdle(archiveMillis);
+                    lastArchive = System.nanoTime();
+                }
+                for (Database closed : Database.closeIdle(idleMillis)) {
+                    combatEngine.close(closed);
+                }
+                Admission.evictIdle();
+            }
+        }, "compain-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
     /**
      * Stops the server.
      * @throws IOException
@@ -66,74 +185,208 @@ public class Server {
     }
 
     /**
-     * Class responsible for running all the communication with the client in the thread.
+     * Class responsible for running all the communication with the client in the thread. Package-private so that
+     * the allocation budgets of the benchmarks module can run it in-process.
      */
-    private static class ClinentHandler extends Thread {
+    static class ClinentHandler extends Thread {
+        private static final int HISTORY_LENGTH = 20;
         private Socket clientSocket;
         private String clientName;
         private String characterName;
-        private ObjectMapper mapper;
+        private Database database;
+        private final StringBuilder rollBuffer = new StringBuilder();
+        private final String connection;
+        private long requests;
 
         public ClinentHandler(Socket socket) {
             this.clientSocket = socket;
+            this.connection = "c" + connections.incrementAndGet();
         }
 
         /**
-         * Runs the ClientHandler. Creates input and output streams, reads for input and processes it.
+         * Runs the ClientHandler. Creates input and output streams, reads for input and processes it. Evicts the
+         * session when no message arrives for -Dsession.idleSeconds.
          */
         public void run() {
-            mapper = new ObjectMapper();
-            mapper.setVisibility(PropertyAccessor.FIELD, Visibility.ANY);
-            try (ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
-                 ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream())) {
+            Log.setCorrelation(connection);
+            Log.info("Accepted connection from {}", clientSocket.getRemoteSocketAddress());
+            liveSessions.incrementAndGet();
+            try {
+                clientSocket.setSoTimeout(sessionTimeoutMillis);
+                clientSocket.setKeepAlive(true);
+            } catch (IOException e) {
+                Log.warn("Unable to set the timeouts of the connection: {}", e);
+            }
+            try (Compression.Input in = new Compression.Input(clientSocket.getInputStream());
+                 Compression.Output out = new Compression.Output(clientSocket.getOutputStream())) {
                 while (true) {
                     try {
                         Object o = in.readObject();
                         if (o instanceof Message) {
                             Message message = (Message) o;
-                            switch (message.type) {
-                                case AUTH -> processAuth(in, out, message);
-                                case LIST -> processList(in, out, message);
-                                case PICK -> processPick(in, out, message);
-                                case VIEW -> processView(in, out, message);
-                                case SET -> processSet(in, out, message);
-                                case CLOSE -> {
-                                    try {
-                                        clientSocket.close();
-                                    } catch (IOException e) {
-                                        e.printStackTrace();
+                            Log.setCorrelation(connection + "-r" + ++requests);
+                            Log.debug("{} from {}", message.type, clientName);
+                            requestCounters[message.type.ordinal()].increment();
+                            if (database == null && needsCompain(message.type)) {
+                                out.writeObject(new Message(MessageType.ERROR, "You have not authenticated yet."));
+                                continue;
+                            }
+                            ReplicationFollower follower = ReplicationFollower.current();
+                            if (follower != null && changesCompain(message)) {
+                                out.writeObject(new Message(MessageType.ERROR,
+                                        "This server is a read-only follower of " + follower.getLeader()));
+                                continue;
+                            }
+                            long retry = Admission.admit(connection, database == null || clientName == null ? null
+                                    : database.getCompain() + "/" + clientName, message.type);
+                            if (retry > 0) {
+                                out.writeObject(new Message(MessageType.RETRY_LATER, Long.toString(retry)));
+                                continue;
+                            }
+                            Events.RequestEvent event = Events.beginRequest();
+                            // SET waits for the client and COMBAT for the other participants, so they take a worker
+                            // only around their reads and writes
+                            Database worker = needsCompain(message.type) && message.type != MessageType.SET
+                                    && message.type != MessageType.COMBAT ? database : null;
+                            if (worker != null) worker.acquireWorker();
+                            try {
+                                switch (message.type) {
+                                    case HELLO -> processHello(in, out, message);
+                                    case PING -> out.writeObject(new Message(MessageType.PONG, message.payload));
+                                    case AUTH -> processAuth(in, out, message);
+                                    case LIST -> processList(in, out, message);
+                                    case PICK -> processPick(in, out, message);
+                                    case VIEW -> processView(in, out, message);
+                                    case SET -> processSet(in, out, message);
+                                    case QUERY -> processQuery(in, out, message);
+                                    case ROLL -> processRoll(in, out, message);
+                                    case COMBAT -> processCombat(in, out, message);
+                                    case HISTORY -> processHistory(in, out, message);
+                                    case REVERT -> processRevert(in, out, message);
+                                    case ADMIN -> processAdmin(in, out, message);
+                                    case CLOSE -> {
+                                        try {
+                                            clientSocket.close();
+                                        } catch (IOException e) {
+                                            Log.warn("Unable to close the connection: {}", e);
+                                        }
+                                        Log.info("Connection closed by {}", clientName);
+                                        return;
                                     }
-                                    return;
+                                    default -> throw new IllegalArgumentException("Unknown command type");
                                 }
-                                default -> throw new IllegalArgumentException("Unknown command type");
+                            } finally {
+                                if (worker != null) worker.releaseWorker();
+                            }
+                            if (event != null) event.end();
+                            if (event != null && event.shouldCommit()) {
+                                event.messageType = message.type.toString();
+                                event.client = clientName;
+                                event.character = characterName;
+                                event.connection = connection;
+                                event.compain = database == null ? null : database.getCompain();
+                                event.commit();
                             }
                         } else {
-                            System.out.println("Unexpected object received");
+                            Log.warn("Unexpected object received: {}", o);
                         }
                     } catch (ClassNotFoundException ex) {
-                        System.out.println("Unknown object received");
+                        Log.warn("Unknown object received: {}", ex.getMessage());
                     }
                 }
+            } catch (SocketTimeoutException ex) {
+                // a half-open connection would keep the thread and the buffers until the restart
+                evictedSessions.increment();
+                Log.info("Evicted session of {} idle for {} ms", clientName, sessionTimeoutMillis);
             } catch (IOException ex) {
-                System.out.println(ex);
+                Log.info("Connection lost: {}", ex);
+            } finally {
+                liveSessions.decrementAndGet();
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    Log.warn("Unable to close the connection: {}", e);
+                }
+                if (database != null) database.release();
+                Log.setCorrelation(null);
             }
         }
 
         /**
-         * Processes AUTH message. Read the metadata. If player is in the metadata, they get assigned appropriate
-         * character.
+         * Decides whether the message needs the compain chosen by AUTH.
+         * @param type  the type of the message
+         * @return      true if the message can't be processed before AUTH
+         */
+        private static boolean needsCompain(MessageType type) {
+            return type != MessageType.HELLO && type != MessageType.AUTH && type != MessageType.CLOSE
+                    && type != MessageType.ADMIN && type != MessageType.PING;
+        }
+
+        /**
+         * Decides whether the message changes the compain, so that a replication follower has to refuse it. Of the
+         * COMBAT commands only those reading the encounters are served, see {@link CombatEngine#isReadOnly(String)}.
+         * @param message   the message
+         * @return          true if the message changes the compain
+         */
+        private static boolean changesCompain(Message message) {
+            return message.type == MessageType.PICK || message.type == MessageType.SET
+                    || message.type == MessageType.REVERT
+                    || message.type == MessageType.COMBAT && !CombatEngine.isReadOnly(message.payload);
+        }
+
+        /**
+         * Processes HELLO message. Agrees to compress the large payloads if the client asked for the codec and
+         * dictionary of the server, see {@link Compression}.
+         * @param in            the input stream
+         * @param out           the output stream
+         * @param message       the message to process
+         * @throws IOException
+         */
+        public void processHello(Compression.Input in, Compression.Output out, Message message) throws IOException {
+            if (message.payload != null && Compression.accepts(message.payload)) {
+                out.writeObject(new Message(MessageType.HELLO, Compression.CODEC));
+                out.enable();
+                in.enable();
+                Log.debug("Compressing the payloads of {} characters and more", Compression.THRESHOLD);
+            } else {
+                out.writeObject(new Message(MessageType.HELLO, "none"));
+            }
+        }
+
+        /**
+         * Processes AUTH message. The payload is "player@compain" or just "player" for the default compain.
+         * Opens the compain if it is not open and reads its metadata. If player is in the metadata, they get
+         * assigned appropriate character.
          * @param in            the input stream
          * @param out           the output stream
          * @param message       the message to process
          * @throws IOException
          */
         public void processAuth(ObjectInputStream in, ObjectOutputStream out, Message message) throws IOException {
-            clientName = message.payload;
+            int at = message.payload.lastIndexOf('@');
+            String player = at < 0 ? message.payload : message.payload.substring(0, at);
+            String compain = at < 0 ? defaultCompain : message.payload.substring(at + 1);
+            if (compain == null) {
+                out.writeObject(new Message(MessageType.ERROR, "There is no default compain, use player@compain"));
+                return;
+            }
+            Database previous = database;
+            if (previous == null || !previous.getCompain().equals(compain)) {
+                try {
+                    database = Database.acquire(compain);
+                } catch (IOException | IllegalArgumentException e) {
+                    Log.warn("Unable to open compain {}: {}", compain, e);
+                    out.writeObject(new Message(MessageType.ERROR, "Unable to open compain " + compain));
+                    return;
+                }
+                if (previous != null) previous.release();
+            }
+            clientName = player;
             HashMap<String, String> map;
             try {
-                map = Database.ReadCompainMetadata();
+                map = database.ReadCompainMetadata();
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("Unable to read compain metadata", e);
                 out.writeObject(new Message(MessageType.ERROR, "Unable to read compain metadata"));
                 return;
             }
@@ -147,36 +400,68 @@ public class Server {
         }
 
         /**
-         * Processes LIST message. Lists the available characters.
+         * Processes LIST message. Streams a page of the characters which are not assigned to any player, filtered
+         * and continued as described by {@link CharacterList}, as CHUNK messages of -Dlist.chunkSize names followed
+         * by an OK message holding the cursor of the next page, empty if there is none. Refused with RETRY_LATER
+         * when the expensive operations are at their limit, see {@link Admission}.
          * @param in            the input stream
          * @param out           the output stream
          * @param message       the message to process
          * @throws IOException
          */
         public void processList(ObjectInputStream in, ObjectOutputStream out, Message message) throws IOException {
-            StringBuilder sb = new StringBuilder();
-            ArrayList<String> characters = Database.getExistingCharacters();
-            HashMap<String, String> map;
+            CharacterList list;
             try {
-                map = Database.ReadCompainMetadata();
-            } catch (IOException e) {
-                e.printStackTrace();
-                out.writeObject(new Message(MessageType.ERROR, "Unable to read compain metadata"));
+                list = CharacterList.parse(message.payload);
+            } catch (IllegalArgumentException e) {
+                out.writeObject(new Message(MessageType.ERROR, e.getMessage()));
+                return;
+            }
+            if (!Admission.tryStartExpensive()) {
+                out.writeObject(new Message(MessageType.RETRY_LATER, Long.toString(Admission.getRetryMillis())));
                 return;
             }
-            for (var character : characters) {
-                if (map.containsValue(character))
-                    continue;
-                sb.append(character);
-                sb.append('\n');
+            try {
+                streamList(out, list);
+            } finally {
+                Admission.endExpensive();
+            }
+        }
+
+        /**
+         * Streams the page of the LIST request.
+         * @param out           the output stream
+         * @param list          the LIST request
+         * @throws IOException
+         */
+        private void streamList(ObjectOutputStream out, CharacterList list) throws IOException {
+            CharacterIndex index = database.getIndex();
+            ArrayList<String> chunk = new ArrayList<>(Math.min(listChunk, list.getLimit()));
+            StringBuilder sb = new StringBuilder();
+            String last = list.getAfter();
+            int remaining = list.getLimit();
+            boolean more = true;
+            while (more && remaining > 0) {
+                chunk.clear();
+                more = index.list(list, last, Math.min(listChunk, remaining), name -> !database.isAssigned(name), chunk);
+                if (chunk.isEmpty()) break;
+                sb.setLength(0);
+                for (String character : chunk) {
+                    sb.append(character);
+                    sb.append('\n');
+                }
+                // every message is written out at once, so the client gets the first chunk before the rest is read
+                out.writeObject(new Message(MessageType.CHUNK, sb.toString()));
+                last = chunk.get(chunk.size() - 1);
+                remaining -= chunk.size();
             }
-            out.writeObject(new Message(MessageType.MESSAGE, sb.toString()));
+            out.writeObject(new Message(MessageType.OK, more && last != null ? CharacterList.cursor(last) : ""));
         }
 
         /**
-         * Processes PICK message. Gets existing characters, reads the metadata. If the chosen character already has
-         * a players assigned to it or if the current player is already assigned to it sends an ERROR message.
-         * Otherwise, assigns the character to the player.
+         * Processes PICK message. Asks the database to assign the chosen character to the player. If the character
+         * already has a player assigned to it or if the current player is already assigned to it sends an ERROR
+         * message. Otherwise, the character is assigned to the player and created if it does not exist.
          * @param in            the input stream
          * @param out           the output stream
          * @param message       the message to process
@@ -184,38 +469,20 @@ public class Server {
          */
         public void processPick(ObjectInputStream in, ObjectOutputStream out, Message message) throws IOException {
             String characterName = message.payload;
-            HashMap<String, String> map;
-            ArrayList<String> characters = Database.getExistingCharacters();
             try {
-                map = Database.ReadCompainMetadata();
-            } catch (IOException e) {
-                e.printStackTrace();
-                out.writeObject(new Message(MessageType.ERROR, "Unable to read compain metadata"));
+                database.pickCharacter(clientName, characterName);
+            } catch (IllegalArgumentException e) {
+                out.writeObject(new Message(MessageType.ERROR, e.getMessage()));
                 return;
             }
-            if (map.get(clientName) == characterName) {
-                out.writeObject(new Message(MessageType.ERROR, "You are already assigned to this character"));
-                return;
-            }
-            if (map.containsValue(characterName)) {
-                out.writeObject(
-                        new Message(MessageType.ERROR, "Can't pick this character. It is assigned to other player"));
-                return;
-            }
-            map.remove(clientName);
-            if (!characters.contains(characterName)) {
-                Character character = new Character();
-                character.setName(characterName);
-                Database.writeCharacter(character);
-            }
             this.characterName = characterName;
-            map.put(clientName, characterName);
-            Database.writeCompainMetadata(map);
             out.writeObject(new Message(MessageType.OK, ""));
         }
 
         /**
-         * Processes VIEW message. Reads the character from the database. Sends the character's string representation.
+         * Processes VIEW message. If the payload holds the version of the character the client already has and
+         * the character has not changed since, sends NOT_MODIFIED. Otherwise, reads the character from the database
+         * and sends the character's string representation together with its version.
          * @param in            the input stream
          * @param out           the output stream
          * @param message       the message to process
@@ -226,12 +493,20 @@ public class Server {
                 out.writeObject(new Message(MessageType.ERROR, "You have not picked a character yet."));
                 return;
             }
-            Character character = Database.readCharacter(characterName);
-            out.writeObject(new Message(MessageType.MESSAGE, character.toString()));
+            long version = database.getCharacterVersion(characterName);
+            if (message.payload != null && !message.payload.isEmpty()
+                    && message.payload.equals(Long.toString(version))) {
+                out.writeObject(new Message(MessageType.NOT_MODIFIED, "", version));
+                return;
+            }
+            Character character = database.readCharacter(characterName);
+            out.writeObject(new Message(MessageType.MESSAGE, character.toString(), version));
+            Startup.viewServed();
         }
 
         /**
          * Processes SET message. Reads the character from the database. Sends the character and gets the character back.
+         * A new SET is refused with RETRY_LATER when the expensive operations are at their limit, see {@link Admission}.
          * @param in            the input stream
          * @param out           the output stream
          * @param message       the message to process
@@ -242,18 +517,189 @@ public class Server {
             if (characterName == null) {
                 out.writeObject(new Message(MessageType.ERROR, "You have not picked a character yet."));
                 return;
-            } else {
-                out.writeObject(new Message(MessageType.OK, ""));
             }
-            Character character = Database.readCharacter(characterName);
+            if (!Admission.tryStartExpensive()) {
+                out.writeObject(new Message(MessageType.RETRY_LATER, Long.toString(Admission.getRetryMillis())));
+                return;
+            }
+            Character character;
+            database.acquireWorker();
+            try {
+                character = database.readCharacter(characterName);
+            } finally {
+                database.releaseWorker();
+                Admission.endExpensive();
+            }
+            out.writeObject(new Message(MessageType.OK, ""));
 
-            String jsonString = mapper.writeValueAsString(character);
+            Events.SerializationEvent serialization = Events.beginSerialization("serialize", Character.class);
+            String jsonString = Codecs.writeCharacterString(character);
+            Events.commit(serialization, jsonString.length());
             out.writeObject(new Message(MessageType.MESSAGE, jsonString));
-            Message response = (Message) in.readObject();
-            if (response.type == MessageType.DISCARD)
+            // the player edits the sheet meanwhile and the client can't send PINGs in the middle of the exchange, so
+            // the idle timeout is suspended; the keep-alive still finds a peer which went away
+            String payload;
+            clientSocket.setSoTimeout(0);
+            try {
+                Message response = (Message) in.readObject();
+                if (response.type == MessageType.DISCARD)
+                    return;
+                payload = ((Message) in.readObject()).payload;
+            } finally {
+                clientSocket.setSoTimeout(sessionTimeoutMillis);
+            }
+            serialization = Events.beginSerialization("deserialize", Character.class);
+            character = Codecs.readCharacter(payload);
+            Events.commit(serialization, payload.length());
+            // the client has already sent the character, so the write waits for its turn instead of being refused
+            Admission.startExpensive();
+            database.acquireWorker();
+            try {
+                database.writeCharacter(character, clientName);
+            } finally {
+                database.releaseWorker();
+                Admission.endExpensive();
+            }
+        }
+
+        /**
+         * Processes QUERY message. Parses the query from the payload and runs it against the character index.
+         * Sends the resulting table or an ERROR message if the query is malformed.
+         * @param in            the input stream
+         * @param out           the output stream
+         * @param message       the message to process
+         * @throws IOException
+         */
+        public void processQuery(ObjectInputStream in, ObjectOutputStream out, Message message) throws IOException {
+            String result;
+            try {
+                result = database.getIndex().query(CharacterQuery.parse(message.payload));
+            } catch (IllegalArgumentException e) {
+                out.writeObject(new Message(MessageType.ERROR, e.getMessage()));
+                return;
+            }
+            out.writeObject(new Message(MessageType.MESSAGE, result));
+        }
+
+        /**
+         * Processes ROLL message. Resolves all the rolls of the request on the server and sends all the results
+         * in a single response.
+         * @param in            the input stream
+         * @param out           the output stream
+         * @param message       the message to process
+         * @throws IOException
+         */
+        public void processRoll(ObjectInputStream in, ObjectOutputStream out, Message message) throws IOException {
+            rollBuffer.setLength(0);
+            try {
+                rollEngine.roll(database, message.payload, characterName, rollBuffer);
+            } catch (IllegalArgumentException e) {
+                out.writeObject(new Message(MessageType.ERROR, e.getMessage()));
+                return;
+            }
+            out.writeObject(new Message(MessageType.MESSAGE, rollBuffer.toString()));
+        }
+    
+        /**
+         * Processes COMBAT message. Runs the combat command from the payload, see {@link CombatEngine}, and sends
+         * the description of the encounter with its version. A "wait" which times out before the encounter changes
+         * is answered by NOT_MODIFIED.
+         * @param in            the input stream
+         * @param out           the output stream
+         * @param message       the message to process
+         * @throws IOException
+         */
+        public void processCombat(ObjectInputStream in, ObjectOutputStream out, Message message) throws IOException {
+            CombatEngine.Result result;
+            try {
+                result = combatEngine.execute(database, message.payload, characterName, clientName);
+            } catch (IllegalArgumentException e) {
+                out.writeObject(new Message(MessageType.ERROR, e.getMessage()));
+                return;
+            }
+            out.writeObject(new Message(result.modified ? MessageType.MESSAGE : MessageType.NOT_MODIFIED,
+                    result.text, result.version));
+        }
+
+        /**
+         * Processes HISTORY message. If the payload is empty, sends the description of the latest changes of the
+         * picked character. Otherwise, sends the character sheet as it was at the version given in the payload.
+         * @param in            the input stream
+         * @param out           the output stream
+         * @param message       the message to process
+         * @throws IOException
+         */
+        public void processHistory(ObjectInputStream in, ObjectOutputStream out, Message message) throws IOException {
+            if (characterName == null) {
+                out.writeObject(new Message(MessageType.ERROR, "You have not picked a character yet."));
+                return;
+            }
+            if (message.payload.isBlank()) {
+                StringBuilder sb = new StringBuilder();
+                for (String change : database.getCharacterHistory(characterName, HISTORY_LENGTH)) {
+                    sb.append(change);
+                    sb.append('\n');
+                }
+                out.writeObject(new Message(MessageType.MESSAGE, sb.toString()));
+                return;
+            }
+            try {
+                long version = Long.parseLong(message.payload.trim());
+                Character character = database.readCharacterVersion(characterName, version);
+                out.writeObject(new Message(MessageType.MESSAGE, "Version " + version + "\n" + character));
+            } catch (IllegalArgumentException e) {
+                out.writeObject(new Message(MessageType.ERROR, e.getMessage()));
+            }
+        }
+
+        /**
+         * Processes REVERT message. Reads the picked character as it was at the version given in the payload and
+         * writes it as a new version, so that the reverted changes stay in the history.
+         * @param in            the input stream
+         * @param out           the output stream
+         * @param message       the message to process
+         * @throws IOException
+         */
+        public void processRevert(ObjectInputStream in, ObjectOutputStream out, Message message) throws IOException {
+            if (characterName == null) {
+                out.writeObject(new Message(MessageType.ERROR, "You have not picked a character yet."));
+                return;
+            }
+            long newVersion;
+            try {
+                long version = Long.parseLong(message.payload.trim());
+                Character character = database.readCharacterVersion(characterName, version);
+                newVersion = database.writeCharacter(character, clientName + " (revert to v" + version + ")");
+            } catch (IllegalArgumentException e) {
+                out.writeObject(new Message(MessageType.ERROR, e.getMessage()));
+                return;
+            }
+            out.writeObject(new Message(MessageType.MESSAGE, "Reverted, the current version is " + newVersion));
+        }
+
+        /**
+         * Processes ADMIN message. Runs the administrative command from the payload, e.g. "jfr start" or
+         * "jfr dump", if the client connected from the loopback address.
+         * @param in            the input stream
+         * @param out           the output stream
+         * @param message       the message to process
+         * @throws IOException
+         */
+        public void processAdmin(ObjectInputStream in, ObjectOutputStream out, Message message) throws IOException {
+            if (!clientSocket.getInetAddress().isLoopbackAddress()) {
+                Log.warn("Admin command refused from {}", clientSocket.getInetAddress());
+                out.writeObject(new Message(MessageType.ERROR, "Admin commands are only accepted from localhost"));
                 return;
-            character = (Character) mapper.readValue(((Message) in.readObject()).payload, Character.class);
-            Database.writeCharacter(character);
+            }
+            String result;
+            try {
+                result = Admin.execute(message.payload, database);
+            } catch (IllegalArgumentException | IOException e) {
+                Log.warn("Admin command {} failed: {}", message.payload, e);
+                out.writeObject(new Message(MessageType.ERROR, e.getMessage()));
+                return;
+            }
+            out.writeObject(new Message(MessageType.MESSAGE, result));
         }
     }
 }
@@ -0,0 +1,160 @@
+package org.mff;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Properties;
+
+/**
+ * Represents the startup of the server: its configuration, the startup timing report and the training run of
+ * the fast-start profile.
+ * <p>
+ * The arguments are: server [compain] [--port p] [--config file] [--train]. The file holds Java properties named
+ * like the -D options, e.g. "server.port=6667" or "compain.idleSeconds=600", and "compain.default" for the default
+ * compain. An option given with -D wins over the file and an argument wins over both. Most options are read when
+ * their classes are initialized, so {@link Main} configures the server before it touches {@link Server}.
+ * <p>
+ * The timing report measures from the start of the JVM to the bound server socket and to the first served VIEW.
+ * The training run ("--train") plays a short session of every kind of request against the server and exits,
+ * so that -XX:ArchiveClassesAtExit records all the classes the requests load, see the fast-start profile
+ * in pom.xml.
+ */
+public class Startup {
+    private static final Instant start = ProcessHandle.current().info().startInstant().orElse(Instant.now());
+    private static volatile long bindMillis = -1;
+    private static volatile long firstViewMillis = -1;
+
+    static {
+        Metrics.gauge("startup.bind.ms", () -> bindMillis);
+        Metrics.gauge("startup.firstView.ms", () -> firstViewMillis);
+    }
+
+    private Startup() {
+    }
+
+    /**
+     * Applies the configuration of the server from the arguments and the configuration file to the system
+     * properties.
+     * @param args  the arguments, the first one being "server"
+     * @throws IllegalArgumentException if the arguments are malformed or the file can't be read
+     */
+    public static void configure(String[] args) {
+        Properties arguments = new Properties();
+        String config = null;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port" -> arguments.setProperty("server.port", value(args, ++i));
+                case "--config" -> config = value(args, ++i);
+                case "--train" -> arguments.setProperty("server.train", "true");
+                default -> {
+                    if (args[i].startsWith("--")) throw new IllegalArgumentException("Unknown option: " + args[i]);
+                    arguments.setProperty("compain.default", args[i]);
+                }
+            }
+        }
+        if (config != null) {
+            Properties file = new Properties();
+            try (InputStream input = Files.newInputStream(Paths.get(config))) {
+                file.load(input);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Unable to read the configuration " + config + ": " + e.getMessage());
+            }
+            for (String name : file.stringPropertyNames()) {
+                if (System.getProperty(name) == null) System.setProperty(name, file.getProperty(name).trim());
+            }
+        }
+        for (String name : arguments.stringPropertyNames()) {
+            System.setProperty(name, arguments.getProperty(name));
+        }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) throw new IllegalArgumentException("Missing the value of " + args[i - 1]);
+        return args[i];
+    }
+
+    /**
+     * Gets the milliseconds since the start of the JVM.
+     * @return  the milliseconds
+     */
+    private static long sinceStart() {
+        return Duration.between(start, Instant.now()).toMillis();
+    }
+
+    /**
+     * Records that the server socket has been bound.
+     * @param port  the bound port
+     */
+    static void bound(int port) {
+        bindMillis = sinceStart();
+        Log.info("Bound port {} {} ms after the start of the JVM", port, bindMillis);
+    }
+
+    /**
+     * Records that a VIEW has been served. Only the first one is reported.
+     */
+    static void viewServed() {
+        if (firstViewMillis >= 0) return;
+        synchronized (Startup.class) {
+            if (firstViewMillis >= 0) return;
+            firstViewMillis = sinceStart();
+        }
+        Log.info("Served the first VIEW {} ms after the start of the JVM", firstViewMillis);
+    }
+
+    /**
+     * Describes the startup timing.
+     * @return  the description
+     */
+    static String describe() {
+        return "bind " + bindMillis + " ms, first VIEW " + (firstViewMillis < 0 ? "not served yet" : firstViewMillis + " ms")
+                + " after the start of the JVM";
+    }
+
+    /**
+     * Runs the training session against the server and exits. Errors of single requests, e.g. a character picked
+     * by an earlier training, don't stop the session.
+     * @param port      the port of the server
+     * @param compain   the compain to train on
+     */
+    static void train(int port, String compain) {
+        try (Socket socket = new Socket("127.0.0.1", port);
+             Compression.Output out = new Compression.Output(socket.getOutputStream());
+             Compression.Input in = new Compression.Input(socket.getInputStream())) {
+            Compression.negotiate(out, in);
+            String[][] requests = {
+                    {"AUTH", "trainer@" + compain}, {"PICK", "Trainer"}, {"VIEW", ""}, {"VIEW", ""},
+                    {"LIST", ""}, {"QUERY", "where hp% <= 100 sort dexterity.save desc top 5"},
+                    {"ROLL", "skill perception; save dexterity for all; dice 2d6+3"}, {"HISTORY", ""},
+                    {"COMBAT", "start training all"}, {"COMBAT", "next training"}, {"COMBAT", "end training"},
+                    {"PING", ""}};
+            for (String[] request : requests) {
+                out.writeObject(new Message(MessageType.valueOf(request[0]), request[1]));
+                out.flush();
+                Message response = (Message) in.readObject();
+                while (response.type == MessageType.CHUNK) {
+                    response = (Message) in.readObject();
+                }
+            }
+            out.writeObject(new Message(MessageType.SET, ""));
+            out.flush();
+            Message response = (Message) in.readObject();
+            if (response.type == MessageType.OK) {
+                Character character = Codecs.readCharacter(((Message) in.readObject()).payload);
+                character.putHeal(1);
+                out.writeObject(new Message(MessageType.OK, ""));
+                out.writeObject(new Message(MessageType.MESSAGE, Codecs.writeCharacterString(character)));
+            }
+            out.writeObject(new Message(MessageType.CLOSE, ""));
+            out.flush();
+        } catch (IOException | ClassNotFoundException e) {
+            Log.error("The training run failed", e);
+            System.exit(1);
+        }
+        Log.info("Training run done: {}", describe());
+        System.exit(0);
+    }
+}
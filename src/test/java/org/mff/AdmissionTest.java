@@ -0,0 +1,146 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the token buckets of {@link Admission}: the burst of a full bucket, the rate of the refill, the cap of
+ * the refill at the burst, the independence of the players and the types, the buckets of a connection kept across
+ * a new AUTH and shared by a player's connections, and the limit of the expensive operations.
+ * The requests are admitted at given times, so the tests do not depend on the speed of the machine.
+ */
+public class AdmissionTest {
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @BeforeClass
+    public static void configure() {
+        // the limits are read once, when the class is loaded
+        System.setProperty("limit.enabled", "true");
+        System.setProperty("limit.view", "10:5");
+        System.setProperty("limit.query", "1000:1");
+        System.setProperty("limit.concurrent", "2");
+        System.setProperty("limit.retryMillis", "50");
+    }
+
+    /**
+     * Admits the requests at the same time until one is refused.
+     * @param player    the player
+     * @param type      the type of the requests
+     * @param now       the time of the requests
+     * @return          the number of the admitted requests
+     */
+    private static int admitAll(String player, MessageType type, long now) {
+        int admitted = 0;
+        while (Admission.admit(player, type, now) == 0) {
+            admitted++;
+            if (admitted > 1000) throw new AssertionError("The type is not limited");
+        }
+        return admitted;
+    }
+
+    @Test
+    public void fullBucketAdmitsTheBurst() {
+        long now = 1000 * SECOND;
+        assertEquals(5, admitAll("burst", MessageType.VIEW, now));
+        // the next token comes a tenth of a second after the last one
+        assertEquals(100, Admission.admit("burst", MessageType.VIEW, now));
+        assertEquals(60, Admission.admit("burst", MessageType.VIEW, now + 40 * MILLI));
+    }
+
+    @Test
+    public void emptyBucketRefillsAtTheRate() {
+        long now = 2000 * SECOND;
+        admitAll("rate", MessageType.VIEW, now);
+        int admitted = 0;
+        // a request every millisecond for ten seconds gets exactly the rate
+        for (long t = now + MILLI; t <= now + 10 * SECOND; t += MILLI) {
+            if (Admission.admit("rate", MessageType.VIEW, t) == 0) admitted++;
+        }
+        assertEquals(100, admitted);
+    }
+
+    @Test
+    public void idleBucketHoldsOnlyTheBurst() {
+        long now = 3000 * SECOND;
+        admitAll("idle", MessageType.VIEW, now);
+        assertEquals(5, admitAll("idle", MessageType.VIEW, now + 30 * SECOND));
+    }
+
+    @Test
+    public void refusedRequestTakesNoToken() {
+        long now = 4000 * SECOND;
+        admitAll("refused", MessageType.VIEW, now);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(Admission.admit("refused", MessageType.VIEW, now + 50 * MILLI) > 0);
+        }
+        assertEquals(0, Admission.admit("refused", MessageType.VIEW, now + 100 * MILLI));
+    }
+
+    @Test
+    public void retryIsAtLeastAMillisecond() {
+        long now = 5000 * SECOND;
+        assertEquals(1, admitAll("fast", MessageType.QUERY, now));
+        assertEquals(1, Admission.admit("fast", MessageType.QUERY, now));
+        assertEquals(1, Admission.admit("fast", MessageType.QUERY, now + MILLI / 2));
+        assertEquals(0, Admission.admit("fast", MessageType.QUERY, now + MILLI));
+    }
+
+    @Test
+    public void playersAndTypesHaveTheirOwnBuckets() {
+        long now = 6000 * SECOND;
+        admitAll("first", MessageType.VIEW, now);
+        assertEquals(5, admitAll("second", MessageType.VIEW, now));
+        assertEquals(0, Admission.admit("first", MessageType.QUERY, now));
+    }
+
+    @Test
+    public void connectionKeepsItsBucketsAcrossAuth() {
+        long now = 8000 * SECOND;
+        assertEquals(5, admitAll("c1", MessageType.VIEW, now));
+        // a new AUTH, even under a fresh name, does not refill the bucket of the connection
+        assertTrue(Admission.admit("c1", "compain/first", MessageType.VIEW, now) > 0);
+        assertTrue(Admission.admit("c1", "compain/second", MessageType.VIEW, now) > 0);
+        // the refused requests took no token from the players
+        assertEquals(5, admitAll("compain/first", MessageType.VIEW, now));
+        assertEquals(0, Admission.admit("c2", "compain/second", MessageType.VIEW, now));
+    }
+
+    @Test
+    public void connectionsOfAPlayerShareItsBuckets() {
+        long now = 9000 * SECOND;
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, Admission.admit("c" + (10 + i), "compain/many", MessageType.VIEW, now));
+        }
+        assertEquals(100, Admission.admit("c15", "compain/many", MessageType.VIEW, now));
+        // the refused request took no token from the connection either
+        assertEquals(5, admitAll("c15", MessageType.VIEW, now));
+        assertEquals(0, Admission.admit("c16", "compain/other", MessageType.VIEW, now));
+    }
+
+    @Test
+    public void unlimitedTypesAreAlwaysAdmitted() {
+        long now = 7000 * SECOND;
+        for (int i = 0; i < 10_000; i++) {
+            assertEquals(0, Admission.admit("operator", MessageType.PING, now));
+            assertEquals(0, Admission.admit("operator", MessageType.ADMIN, now));
+        }
+    }
+
+    @Test
+    public void expensiveOperationsAreLimited() {
+        assertTrue(Admission.tryStartExpensive());
+        assertTrue(Admission.tryStartExpensive());
+        assertFalse(Admission.tryStartExpensive());
+        assertEquals(50, Admission.getRetryMillis());
+        Admission.endExpensive();
+        assertTrue(Admission.tryStartExpensive());
+        Admission.endExpensive();
+        Admission.endExpensive();
+    }
+}
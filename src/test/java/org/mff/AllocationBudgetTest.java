@@ -0,0 +1,281 @@
+package org.mff;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SplittableRandom;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Guards the number of bytes the server allocates per request. Runs a real client handler in-process against
+ * a temporary database over a loopback connection, measures the bytes allocated by the handler's thread per request
+ * of each kind with the ThreadMXBean allocation counters and compares them to the budgets in
+ * allocation-budgets.properties.
+ * <p>
+ * A request over its budget fails the test, and so does a request below two thirds of its budget: a budget that
+ * loose would let a regression through, so it has to be lowered. LIST is measured again after the compain grows ten
+ * times and must stay within the same budget, since a page must not cost more in a larger compain.
+ * -Dbudget.suggest=true prints the budgets for the measured values instead of checking them, -Dbudget.mixedSeconds
+ * runs a mixed workload afterwards and reports the allocation rate and the garbage collections.
+ */
+public class AllocationBudgetTest {
+    private static final String PLAYER = "budget-player";
+    private static final String COMPAIN = "budget";
+    private static final String CHARACTER = "Budget Character";
+    private static final int CHARACTERS = 200;
+    private static final int GROWTH = 10;
+    private static final int WARMUP = Integer.getInteger("budget.warmup", 3000);
+    private static final int MEASURED = Integer.getInteger("budget.requests", 1000);
+    private static final int MIXED_SECONDS = Integer.getInteger("budget.mixedSeconds", 0);
+    private static final double HEADROOM = 1.3;
+    private static final double LOOSEST = 1.5;
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static Path root;
+    private static Database database;
+    private static ServerSocket listener;
+    private static Client client;
+
+    /**
+     * Represents a kind of request whose allocation is measured.
+     */
+    private interface Request {
+        void run(Client client) throws Exception;
+    }
+
+    @BeforeClass
+    public static void start() throws Exception {
+        // the single client sends far more requests than a player may, the budgets are about the handler
+        System.setProperty("limit.enabled", "false");
+        if (!threads.isThreadAllocatedMemorySupported())
+            throw new IllegalStateException("The JVM can't count allocated bytes per thread");
+        threads.setThreadAllocatedMemoryEnabled(true);
+        root = TestCompains.createRoot("budget");
+        prepare(root);
+        Server.initEngines();
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        client = new Client(listener);
+        client.send(new Message(MessageType.AUTH, PLAYER + "@" + COMPAIN));
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        if (client != null) client.close();
+        if (listener != null) listener.close();
+        TestCompains.deleteRoot(root);
+    }
+
+    /**
+     * Creates the compain with the characters and assigns the measured character to the player.
+     * @param root  the directory to keep the data in
+     * @throws Exception
+     */
+    private static void prepare(Path root) throws Exception {
+        Log.setLevel(Log.Level.WARN);
+        database = Database.getInstance(COMPAIN, root);
+        addCharacters(0, CHARACTERS);
+        TestCompains.assign(database, PLAYER, CHARACTER);
+    }
+
+    /**
+     * Adds the characters with the given numbers, the first of them is the measured character.
+     * @param from  the number of the first added character
+     * @param to    the number after the last added character
+     * @throws Exception
+     */
+    private static void addCharacters(int from, int to) throws Exception {
+        SplittableRandom random = new SplittableRandom(42 + from);
+        List<Character> characters = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            Character character = new Character();
+            character.setName(i == 0 ? CHARACTER : "Npc " + i);
+            for (String stat : Character.getStatsView()) {
+                character.setStatValue(stat, random.nextInt(3, 19));
+            }
+            character.setMaxHP(random.nextInt(6, 60));
+            character.setCurrentHP(random.nextInt(0, 60));
+            characters.add(character);
+        }
+        database.writeCharacters(characters, "budget");
+    }
+
+    /**
+     * Gets the measured kinds of requests in the order they are measured.
+     * @return  the map from the names of the budgets to the requests
+     */
+    private static Map<String, Request> requests() {
+        Map<String, Request> requests = new LinkedHashMap<>();
+        requests.put("AUTH", c -> c.send(new Message(MessageType.AUTH, PLAYER + "@" + COMPAIN)));
+        requests.put("LIST", c -> c.send(new Message(MessageType.LIST, "")));
+        requests.put("VIEW", c -> c.send(new Message(MessageType.VIEW, "")));
+        requests.put("VIEW_NOT_MODIFIED", c -> c.send(new Message(MessageType.VIEW,
+                Long.toString(database.getCharacterVersion(CHARACTER)))));
+        requests.put("SET", Client::set);
+        requests.put("QUERY", c -> c.send(new Message(MessageType.QUERY, "where hp% < 50 sort dexterity desc top 5")));
+        requests.put("ROLL", c -> c.send(new Message(MessageType.ROLL, "skill perception; dice 2d6+3")));
+        requests.put("HISTORY", c -> c.send(new Message(MessageType.HISTORY, "")));
+        return requests;
+    }
+
+    @Test
+    public void requestsStayWithinTheirBudgets() throws Exception {
+        boolean suggest = Boolean.getBoolean("budget.suggest");
+        Properties budgets = new Properties();
+        try (InputStream input = AllocationBudgetTest.class.getResourceAsStream("/allocation-budgets.properties")) {
+            if (input != null) budgets.load(input);
+        }
+        StringBuilder failures = new StringBuilder();
+        System.out.printf("%-20s %12s %12s%n", "request", "bytes/op", "budget");
+        Map<String, Request> requests = requests();
+        for (Map.Entry<String, Request> request : requests.entrySet()) {
+            long perRequest = measure(request.getValue());
+            String name = request.getKey();
+            if (suggest) {
+                System.out.println(name + "=" + Math.round(perRequest * HEADROOM / 64) * 64);
+                continue;
+            }
+            check(name, name, perRequest, budgets.getProperty(name), true, failures);
+        }
+        if (!suggest) {
+            // a page of LIST is looked up in the index, so a compain ten times larger must not cost more per request
+            addCharacters(CHARACTERS, CHARACTERS * GROWTH);
+            check("LIST x" + GROWTH, "LIST", measure(requests.get("LIST")), budgets.getProperty("LIST"), false,
+                    failures);
+        }
+        if (MIXED_SECONDS > 0) runMixed();
+        assertTrue("Regenerate the budgets with -Dbudget.suggest=true after an intended change:\n" + failures,
+                failures.length() == 0);
+    }
+
+    /**
+     * Compares the measured bytes to the budget, prints the result and records the failure.
+     * @param label         the label of the measurement
+     * @param name          the name of the budget
+     * @param perRequest    the measured bytes per request
+     * @param budget        the budget, null if the request has none
+     * @param tight         whether a budget too loose for the measured bytes fails too
+     * @param failures      the StringBuilder collecting the failures
+     */
+    private static void check(String label, String name, long perRequest, String budget, boolean tight,
+                              StringBuilder failures) {
+        String verdict = "";
+        if (budget == null) {
+            verdict = "NO BUDGET";
+        } else if (perRequest > Long.parseLong(budget.trim())) {
+            verdict = "OVER " + name + " BUDGET";
+        } else if (tight && perRequest * LOOSEST < Long.parseLong(budget.trim())) {
+            verdict = "BUDGET TOO LOOSE, lower it";
+        }
+        System.out.printf("%-20s %12d %12s  %s%n", label, perRequest, budget == null ? "-" : budget, verdict);
+        if (!verdict.isEmpty()) failures.append(label).append(' ').append(perRequest).append(" bytes/op: ")
+                .append(verdict).append('\n');
+    }
+
+    /**
+     * Measures the bytes the handler allocates per request after the warmup.
+     * @param request   the request to measure
+     * @return          the bytes per request
+     * @throws Exception
+     */
+    private static long measure(Request request) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            request.run(client);
+        }
+        long before = threads.getThreadAllocatedBytes(client.handler.getId());
+        for (int i = 0; i < MEASURED; i++) {
+            request.run(client);
+        }
+        return (threads.getThreadAllocatedBytes(client.handler.getId()) - before) / MEASURED;
+    }
+
+    /**
+     * Runs the mix of the requests for a while and reports the allocation rate and the collections.
+     * @throws Exception
+     */
+    private static void runMixed() throws Exception {
+        List<Request> mix = new ArrayList<>();
+        Map<String, Request> requests = requests();
+        // roughly the mix of the load generator: mostly views, some edits
+        for (int i = 0; i < 14; i++) mix.add(requests.get("VIEW_NOT_MODIFIED"));
+        for (int i = 0; i < 3; i++) mix.add(requests.get("SET"));
+        mix.add(requests.get("LIST"));
+        mix.add(requests.get("QUERY"));
+        mix.add(requests.get("ROLL"));
+        SplittableRandom random = new SplittableRandom(7);
+        long[] gcBefore = collections();
+        long bytesBefore = threads.getThreadAllocatedBytes(client.handler.getId());
+        long start = System.nanoTime();
+        long end = start + MIXED_SECONDS * 1_000_000_000L;
+        long count = 0;
+        while (System.nanoTime() < end) {
+            mix.get(random.nextInt(mix.size())).run(client);
+            count++;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long bytes = threads.getThreadAllocatedBytes(client.handler.getId()) - bytesBefore;
+        long[] gcAfter = collections();
+        System.out.printf("%nmixed workload: %d requests in %.1f s, %d bytes/op, %.1f MB/s allocated by the handler%n",
+                count, seconds, bytes / Math.max(1, count), bytes / seconds / 1e6);
+        System.out.printf("collections: %d taking %d ms%n", gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+    }
+
+    /**
+     * Sums the collections of all the collectors.
+     * @return  the number of collections and their time in milliseconds
+     */
+    private static long[] collections() {
+        long[] sum = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sum[0] += Math.max(0, collector.getCollectionCount());
+            sum[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return sum;
+    }
+
+    /**
+     * Represents the measured connection, failing the requests the handler refuses.
+     */
+    private static class Client extends TestCompains.Connection {
+        private int dexterity = 10;
+
+        Client(ServerSocket listener) throws IOException {
+            super(listener);
+        }
+
+        @Override
+        Message send(Message request) throws IOException, ClassNotFoundException {
+            Message response = super.send(request);
+            if (response.type == MessageType.ERROR || response.type == MessageType.RETRY_LATER)
+                throw new IllegalStateException(request.type + ": " + response.payload);
+            return response;
+        }
+
+        /**
+         * Runs the SET exchange changing the dexterity of the character, so that every write has a change to record.
+         * @throws Exception
+         */
+        private void set() throws Exception {
+            send(new Message(MessageType.SET, ""));
+            Character character = Codecs.readCharacter(((Message) in.readObject()).payload);
+            dexterity = dexterity == 10 ? 11 : 10;
+            character.setStatValue("dexterity", dexterity);
+            out.writeObject(new Message(MessageType.OK, ""));
+            out.writeObject(new Message(MessageType.MESSAGE, Codecs.writeCharacterString(character)));
+            out.flush();
+            out.reset();
+        }
+    }
+}
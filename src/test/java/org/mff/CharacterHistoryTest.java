@@ -0,0 +1,173 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.stream.Stream;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Tests the history of the characters: every version is restored from its snapshot and tail as it was written and
+ * equals the replay of the whole log, removed fields come back through their tombstones, and a character is
+ * reverted, or resurrected after its file was lost, by writing an older version as a new one.
+ */
+public class CharacterHistoryTest {
+    private static final int INTERVAL = 4;
+    private static final int VERSIONS = 4 * INTERVAL + 3;
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static Path root;
+    private static Database database;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        Log.setLevel(Log.Level.WARN);
+        root = TestCompains.createRoot("history");
+        database = Database.getInstance("history", root);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        TestCompains.deleteRoot(root);
+    }
+
+    /**
+     * Creates the state of a character at the version: a changing counter, a nested object which loses and regains
+     * its entries and a field which is removed on every third version.
+     * @param version   the version
+     * @return          the state
+     */
+    private static ObjectNode state(int version) {
+        ObjectNode state = mapper.createObjectNode();
+        state.put("name", "Hero");
+        state.put("currentHp", 20 - version % 7);
+        ObjectNode conditions = state.putObject("conditions");
+        if (version % 2 == 0) conditions.put("poisoned", version);
+        conditions.put("prone", version % 5 == 0);
+        if (version % 3 != 0) state.put("note", "v" + version);
+        return state;
+    }
+
+    /**
+     * Writes the states of all the versions to the history.
+     * @param history   the history
+     * @param dir       the history directory of the character
+     * @throws Exception
+     */
+    private static void appendAll(CharacterHistory history, Path dir) throws Exception {
+        JsonNode before = null;
+        for (int version = 1; version <= VERSIONS; version++) {
+            ObjectNode after = state(version);
+            assertEquals(version, history.append(dir, before, after, "test").get("version").asLong());
+            before = after;
+        }
+    }
+
+    @Test
+    public void everyVersionIsRestoredAsItWasWritten() throws Exception {
+        CharacterHistory history = new CharacterHistory(mapper, INTERVAL);
+        Path dir = root.resolve("every");
+        appendAll(history, dir);
+        assertEquals(VERSIONS, history.getVersion(dir));
+        for (int version = 1; version <= VERSIONS; version++) {
+            assertEquals("v" + version, state(version), history.readVersion(dir, version));
+        }
+        assertEquals(state(VERSIONS), history.readLatest(dir));
+        // a new instance finds the version in the files
+        assertEquals(VERSIONS, new CharacterHistory(mapper, INTERVAL).getVersion(dir));
+        for (long version : new long[] {0, VERSIONS + 1}) {
+            try {
+                history.readVersion(dir, version);
+                fail("Read version " + version);
+            } catch (IllegalArgumentException e) {
+                assertEquals("No such version: " + version, e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void snapshotAndTailEqualTheWholeReplay() throws Exception {
+        Path snapshotted = root.resolve("snapshotted");
+        Path replayed = root.resolve("replayed");
+        appendAll(new CharacterHistory(mapper, INTERVAL), snapshotted);
+        // no snapshot is ever taken, every version is replayed from the first event
+        appendAll(new CharacterHistory(mapper, Integer.MAX_VALUE), replayed);
+        try (Stream<Path> files = Files.list(snapshotted)) {
+            assertEquals(VERSIONS / INTERVAL, files.filter(path -> path.getFileName().toString()
+                    .startsWith("snapshot.")).count());
+        }
+        CharacterHistory fromSnapshots = new CharacterHistory(mapper, INTERVAL);
+        CharacterHistory fromStart = new CharacterHistory(mapper, Integer.MAX_VALUE);
+        for (int version = 1; version <= VERSIONS; version++) {
+            assertEquals("v" + version, fromStart.readVersion(replayed, version),
+                    fromSnapshots.readVersion(snapshotted, version));
+        }
+    }
+
+    @Test
+    public void tombstonesRemoveFieldsWhichComeBackLater() throws Exception {
+        CharacterHistory history = new CharacterHistory(mapper, INTERVAL);
+        Path dir = root.resolve("tombstones");
+        appendAll(history, dir);
+        // version 3 removed the note and the poisoned condition of version 2, version 4 brought the condition back
+        JsonNode removal = Files.readAllLines(dir.resolve("log.0")).stream()
+                .map(line -> {
+                    try {
+                        return mapper.readTree(line);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                })
+                .filter(event -> event.get("version").asLong() == 3)
+                .findFirst().get().get("changes");
+        assertTrue(removal.toString(), removal.path("note").path("$removed").asBoolean());
+        assertTrue(removal.toString(), removal.path("conditions").path("poisoned").path("$removed").asBoolean());
+        assertFalse(history.readVersion(dir, 3).has("note"));
+        assertFalse(history.readVersion(dir, 3).get("conditions").has("poisoned"));
+        assertEquals(4, history.readVersion(dir, 4).get("conditions").get("poisoned").asInt());
+        assertEquals("v4", history.readVersion(dir, 4).get("note").asText());
+    }
+
+    @Test
+    public void revertWritesTheOldVersionAsANewOne() throws Exception {
+        for (int dexterity = 10; dexterity <= 15; dexterity++) {
+            TestCompains.write(database, "Reverted", dexterity);
+        }
+        Character old = database.readCharacterVersion("Reverted", 2);
+        assertEquals(11, old.getStatValue("dexterity"));
+        assertEquals(7, database.writeCharacter(old, "test (revert to v2)"));
+        assertEquals(11, database.readCharacter("Reverted").getStatValue("dexterity"));
+        assertEquals(15, database.readCharacterVersion("Reverted", 6).getStatValue("dexterity"));
+        ArrayList<String> described = database.getCharacterHistory("Reverted", 2);
+        assertTrue(described.toString(), described.get(0).startsWith("v7 "));
+        assertTrue(described.toString(), described.get(0).contains(" by test (revert to v2):"));
+        assertTrue(database.verifyHistory().isEmpty());
+    }
+
+    @Test
+    public void lostCharacterIsResurrectedFromItsHistory() throws Exception {
+        for (int dexterity = 10; dexterity < 10 + INTERVAL + 2; dexterity++) {
+            TestCompains.write(database, "Lost", dexterity);
+        }
+        long version = database.getCharacterVersion("Lost");
+        try (Stream<Path> files = Files.walk(root.resolve("Data").resolve("history"))) {
+            Files.delete(files.filter(path -> path.getFileName().toString().equals("Lost")).findFirst().get());
+        }
+        assertFalse(database.getExistingCharacters().contains("Lost"));
+        Character lost = database.readCharacterVersion("Lost", version);
+        assertEquals(version + 1, database.writeCharacter(lost, "test"));
+        assertEquals(lost.toString(), database.readCharacter("Lost").toString());
+        assertEquals(lost.toString(), database.readCharacterVersion("Lost", version + 1).toString());
+        assertTrue(database.verifyHistory().isEmpty());
+    }
+}
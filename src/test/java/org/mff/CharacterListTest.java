@@ -0,0 +1,201 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the paging of LIST: the pages resumed from their cursors list every character present all along exactly
+ * once and in order while characters are added and removed in between, also over a connection while another
+ * thread keeps writing new characters, and malformed requests are refused.
+ */
+public class CharacterListTest {
+    private static final int CHARACTERS = 100;
+    private static Path root;
+    private static Database database;
+    private static ServerSocket listener;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        System.setProperty("limit.enabled", "false");
+        Log.setLevel(Log.Level.WARN);
+        root = TestCompains.createRoot("list");
+        database = Database.getInstance("listed", root);
+        ArrayList<Character> characters = new ArrayList<>();
+        for (int i = 0; i < CHARACTERS; i++) {
+            characters.add(TestCompains.character(name(i * 2), 10));
+        }
+        database.writeCharacters(characters, "test");
+        TestCompains.assign(database, "player", name(10));
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        if (listener != null) listener.close();
+        TestCompains.deleteRoot(root);
+    }
+
+    /**
+     * Gets the name of the character sorting at the given place.
+     * @param i the place
+     * @return  the name, with a space
+     */
+    private static String name(int i) {
+        return String.format("Hero %04d", i);
+    }
+
+    /**
+     * Gets the next page from the index.
+     * @param index     the index
+     * @param request   the LIST request
+     * @param page      the list to put the names of the page into
+     * @return          the cursor of the next page, null if there is none
+     */
+    private static String page(CharacterIndex index, String request, List<String> page) {
+        CharacterList list = CharacterList.parse(request);
+        page.clear();
+        boolean more = index.list(list, list.getAfter(), list.getLimit(), name -> true, page);
+        return more ? CharacterList.cursor(page.get(page.size() - 1)) : null;
+    }
+
+    /**
+     * Checks that the names are in strictly ascending order.
+     * @param names the names
+     */
+    private static void assertAscending(List<String> names) {
+        for (int i = 1; i < names.size(); i++) {
+            assertTrue(names.get(i - 1) + " " + names.get(i), names.get(i - 1).compareTo(names.get(i)) < 0);
+        }
+    }
+
+    @Test
+    public void cursorResumesAcrossInsertsAndRemovals() throws Exception {
+        CharacterIndex index = new CharacterIndex();
+        for (int i = 0; i < CHARACTERS; i++) {
+            index.update(TestCompains.character(name(i * 2), 10));
+        }
+        HashSet<String> inserted = new HashSet<>();
+        HashSet<String> removed = new HashSet<>();
+        ArrayList<String> listed = new ArrayList<>();
+        ArrayList<String> page = new ArrayList<>();
+        String cursor = page(index, "limit 7", page);
+        listed.addAll(page);
+        while (cursor != null) {
+            assertFalse(cursor, cursor.contains(" "));
+            String last = listed.get(listed.size() - 1);
+            int at = Integer.parseInt(last.substring(5, 9));
+            // a character before the cursor, which is not listed any more, and one right after it are added
+            index.update(TestCompains.character("Ahead of " + last, 10));
+            index.update(TestCompains.character(last + " after", 10));
+            inserted.add(last + " after");
+            // the next character and the one the cursor points to are removed
+            if (index.contains(name(at + 2))) {
+                index.remove(name(at + 2));
+                removed.add(name(at + 2));
+            }
+            index.remove(last);
+            cursor = page(index, "limit 7 after " + cursor, page);
+            listed.addAll(page);
+        }
+        assertAscending(listed);
+        for (String name : listed) {
+            assertFalse(name, name.startsWith("Ahead of "));
+            assertFalse(name, removed.contains(name));
+        }
+        assertTrue(listed.containsAll(inserted));
+        for (int i = 0; i < CHARACTERS; i++) {
+            if (!removed.contains(name(i * 2))) assertTrue(name(i * 2), listed.contains(name(i * 2)));
+        }
+        assertFalse(removed.isEmpty());
+    }
+
+    @Test
+    public void prefixAndTextFilterThePages() throws Exception {
+        CharacterIndex index = new CharacterIndex();
+        for (String name : Arrays.asList("Goblin", "Goblin Boss", "Gnoll", "Big Orc", "orc", "Orc Shaman", "Zed")) {
+            index.update(TestCompains.character(name, 10));
+        }
+        ArrayList<String> page = new ArrayList<>();
+        assertEquals(CharacterList.cursor("Goblin"), page(index, "prefix Gob limit 1", page));
+        assertEquals(List.of("Goblin"), page);
+        assertEquals(null, page(index, "prefix Gob limit 1 after " + CharacterList.cursor("Goblin"), page));
+        assertEquals(List.of("Goblin Boss"), page);
+        assertEquals(null, page(index, "contains ORC", page));
+        assertEquals(List.of("Big Orc", "Orc Shaman", "orc"), page);
+        // a cursor before the prefix starts at the prefix
+        assertEquals(null, page(index, "prefix Orc after Big%20Orc", page));
+        assertEquals(List.of("Orc Shaman"), page);
+    }
+
+    @Test
+    public void malformedRequestsAreRefused() {
+        for (String[] refused : new String[][] {
+                {"limit", "Expected value after limit"},
+                {"limit many", "Expected number after limit: many"},
+                {"limit 0", "Limit must be between 1 and " + CharacterList.MAX_LIMIT},
+                {"after Big Orc", "Invalid cursor: Big Orc"},
+                {"orcs", "Unexpected token: orcs"}}) {
+            try {
+                CharacterList.parse(refused[0]);
+                fail("Parsed " + refused[0]);
+            } catch (IllegalArgumentException e) {
+                assertEquals(refused[1], e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void pagesOverTheConnectionResumeWhileCharactersAreWritten() throws Exception {
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 1; writing.get() && i < CHARACTERS * 2; i += 2) {
+                    TestCompains.write(database, name(i), 10);
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }, "writing");
+        ArrayList<String> listed = new ArrayList<>();
+        try (TestCompains.Connection connection = new TestCompains.Connection(listener)) {
+            assertEquals(MessageType.OK, connection.send(MessageType.AUTH, "lister@listed").type);
+            writer.start();
+            String cursor = "";
+            do {
+                connection.out.writeObject(new Message(MessageType.LIST,
+                        "limit 9" + (cursor.isEmpty() ? "" : " after " + cursor)));
+                connection.out.flush();
+                connection.out.reset();
+                Message response;
+                while ((response = (Message) connection.in.readObject()).type == MessageType.CHUNK) {
+                    listed.addAll(Arrays.asList(response.payload.split("\n")));
+                }
+                assertEquals(response.payload, MessageType.OK, response.type);
+                cursor = response.payload;
+            } while (!cursor.isEmpty());
+        } finally {
+            writing.set(false);
+            writer.join();
+        }
+        assertAscending(listed);
+        // the assigned character is never listed, every other one present all along is listed once
+        assertFalse(listed.contains(name(10)));
+        for (int i = 0; i < CHARACTERS * 2; i += 2) {
+            if (i != 10) assertTrue(name(i), listed.contains(name(i)));
+        }
+    }
+}
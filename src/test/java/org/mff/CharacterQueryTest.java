@@ -0,0 +1,160 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+/**
+ * Tests the queries over the {@link CharacterIndex} against a straightforward evaluation over the characters:
+ * the filters, the full sort, the top-k selection with its ties and the parallel evaluation of a large index.
+ */
+public class CharacterQueryTest {
+    /**
+     * Creates the characters with random strength and dexterity, named "c0", "c1", ... in the order of the rows.
+     * @param count the number of characters
+     * @param seed  the seed of the values
+     * @return      the characters
+     * @throws Exception
+     */
+    private static List<Character> characters(int count, long seed) throws Exception {
+        SplittableRandom random = new SplittableRandom(seed);
+        List<Character> characters = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Character character = new Character();
+            character.setName("c" + i);
+            // a narrow range makes many ties
+            character.setStatValue("strength", random.nextInt(3, 9));
+            character.setStatValue("dexterity", random.nextInt(3, 19));
+            characters.add(character);
+        }
+        return characters;
+    }
+
+    private static CharacterIndex index(List<Character> characters) {
+        CharacterIndex index = new CharacterIndex();
+        for (Character character : characters) {
+            index.update(character);
+        }
+        return index;
+    }
+
+    /**
+     * Gets the names of the rows of the rendered result.
+     * @param result    the result of the query
+     * @return          the names in the order of the result
+     */
+    private static List<String> names(String result) {
+        String[] lines = result.split("\n");
+        List<String> names = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) {
+            names.add(lines[i].substring(0, lines[i].indexOf(' ')));
+        }
+        assertEquals(names.size() + " character(s)", lines[0]);
+        return names;
+    }
+
+    /**
+     * Evaluates "where dexterity >= min sort strength [desc] [top limit]" over the characters, the ties in the order
+     * of the rows.
+     * @param characters    the characters in the order of the rows
+     * @param min           the least dexterity
+     * @param descending    true to sort the strongest first
+     * @param limit         the number of the results, -1 for all
+     * @return              the names of the results
+     */
+    private static List<String> expected(List<Character> characters, int min, boolean descending, int limit) {
+        Comparator<Character> order = Comparator.comparingInt(character -> character.getStatValue("strength"));
+        if (descending) order = order.reversed();
+        return characters.stream()
+                .filter(character -> character.getStatValue("dexterity") >= min)
+                .sorted(order)
+                .limit(limit < 0 ? Long.MAX_VALUE : limit)
+                .map(Character::getName)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void topKMatchesTheFullEvaluation() throws Exception {
+        List<Character> characters = characters(500, 1);
+        CharacterIndex index = index(characters);
+        for (int min : new int[] {3, 10, 18, 19}) {
+            for (int limit : new int[] {0, 1, 5, 37, 500, 1000}) {
+                assertEquals(expected(characters, min, true, limit), names(index.query(CharacterQuery.parse(
+                        "where dexterity >= " + min + " sort strength desc top " + limit))));
+                assertEquals(expected(characters, min, false, limit), names(index.query(CharacterQuery.parse(
+                        "where dexterity >= " + min + " sort strength top " + limit))));
+            }
+            assertEquals(expected(characters, min, true, -1), names(index.query(CharacterQuery.parse(
+                    "where dexterity >= " + min + " sort strength desc"))));
+        }
+    }
+
+    @Test
+    public void filtersCombineAndRenderTheirColumns() throws Exception {
+        List<Character> characters = characters(200, 2);
+        CharacterIndex index = index(characters);
+        String result = index.query(CharacterQuery.parse("where strength = 5 and dexterity != 10 and dexterity < 15"));
+        List<String> expected = characters.stream()
+                .filter(c -> c.getStatValue("strength") == 5 && c.getStatValue("dexterity") != 10
+                        && c.getStatValue("dexterity") < 15)
+                .map(Character::getName)
+                .collect(Collectors.toList());
+        assertEquals(expected, names(result));
+        String first = result.split("\n")[1];
+        Character character = characters.get(Integer.parseInt(first.substring(1, first.indexOf(' '))));
+        assertEquals(character.getName() + " strength=5 dexterity=" + character.getStatValue("dexterity"), first);
+    }
+
+    @Test
+    public void removedCharactersLeaveTheResults() throws Exception {
+        List<Character> characters = characters(100, 3);
+        CharacterIndex index = index(characters);
+        List<Character> kept = new ArrayList<>();
+        for (Character character : characters) {
+            if (character.getStatValue("strength") > 5) index.remove(character.getName());
+            else kept.add(character);
+        }
+        // the last rows fill the holes, so only the set of the results is compared
+        List<String> result = names(index.query(CharacterQuery.parse("where strength <= 8")));
+        result.sort(null);
+        List<String> names = kept.stream().map(Character::getName).sorted().collect(Collectors.toList());
+        assertEquals(names, result);
+        assertEquals(kept.size(), index.size());
+    }
+
+    @Test
+    public void largeIndexIsEvaluatedInParallelWithTheSameResult() throws Exception {
+        List<Character> characters = characters(20_000, 4);
+        CharacterIndex index = index(characters);
+        assertEquals(expected(characters, 12, true, 50), names(index.query(CharacterQuery.parse(
+                "where dexterity >= 12 sort strength desc top 50"))));
+        assertEquals(expected(characters, 17, false, -1), names(index.query(CharacterQuery.parse(
+                "where dexterity >= 17 sort strength"))));
+    }
+
+    @Test
+    public void malformedQueriesAreRejected() {
+        String[] queries = {"where dexterity", "where dexterity ~ 3", "where dexterity > x", "sort", "top",
+                "top -1", "select dexterity"};
+        for (String query : queries) {
+            try {
+                CharacterQuery.parse(query);
+                fail("Accepted: " + query);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            new CharacterIndex().query(CharacterQuery.parse("where charisma_bonus > 1"));
+            fail("Accepted an unknown column");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that concurrent reads of the same character share a single read of its file, that a failed read fails
+ * all the callers sharing it and that a write is never hidden by a read which started before it.
+ */
+public class CoalescedReadTest {
+    private static final int THREADS = 16;
+    private static final int ROUNDS = 200;
+    private static Path root;
+    private static Database database;
+    private static ExecutorService pool;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        Log.setLevel(Log.Level.WARN);
+        root = TestCompains.createRoot("reads");
+        database = Database.getInstance("reads", root);
+        pool = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        if (pool != null) pool.shutdownNow();
+        TestCompains.deleteRoot(root);
+    }
+
+    /**
+     * Writes the character with the given dexterity.
+     * @param name      the name of the character
+     * @param dexterity the dexterity
+     * @param padding   the length of the class of the character, a long one makes the reads overlap
+     * @throws Exception
+     */
+    private static void write(String name, int dexterity, int padding) throws Exception {
+        Character character = TestCompains.character(name, dexterity);
+        character.setCharacterClass("x".repeat(padding));
+        database.writeCharacter(character, "test");
+    }
+
+    /**
+     * Reads the character from all the threads at once.
+     * @param name  the name of the character
+     * @return      the futures of the reads
+     */
+    private static List<Future<Character>> readAtOnce(String name) {
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        List<Future<Character>> reads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            reads.add(pool.submit(() -> {
+                barrier.await(5, TimeUnit.SECONDS);
+                return database.readCharacter(name);
+            }));
+        }
+        return reads;
+    }
+
+    private static long metric(String name) {
+        return Metrics.snapshot().getOrDefault(name, 0L);
+    }
+
+    @Test
+    public void concurrentReadsShareOneReadOfTheFile() throws Exception {
+        write("Shared", 14, 1 << 20);
+        long readsBefore = metric("database.reads");
+        long coalescedBefore = metric("database.reads.coalesced");
+        for (int round = 0; round < ROUNDS; round++) {
+            for (Future<Character> read : readAtOnce("Shared")) {
+                assertEquals(14, read.get(5, TimeUnit.SECONDS).getStatValue("dexterity"));
+            }
+        }
+        long reads = metric("database.reads") - readsBefore;
+        long coalesced = metric("database.reads.coalesced") - coalescedBefore;
+        // every call either read the file or joined a read in flight
+        assertEquals((long) THREADS * ROUNDS, reads + coalesced);
+        assertTrue("No read was coalesced in " + ROUNDS + " rounds of " + THREADS + " readers", coalesced > 0);
+    }
+
+    @Test
+    public void failedReadFailsEveryCallerAndIsNotRemembered() throws Exception {
+        for (Future<Character> read : readAtOnce("Missing")) {
+            try {
+                read.get(5, TimeUnit.SECONDS);
+                fail("A read of a missing character succeeded");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().toString(), e.getCause() instanceof IOException);
+            }
+        }
+        write("Missing", 12, 0);
+        assertEquals(12, database.readCharacter("Missing").getStatValue("dexterity"));
+    }
+
+    @Test
+    public void readAfterWriteSeesTheWrite() throws Exception {
+        write("Changing", 10, 0);
+        for (int dexterity = 11; dexterity < 11 + ROUNDS; dexterity++) {
+            List<Future<Character>> reads = readAtOnce("Changing");
+            write("Changing", dexterity, 0);
+            assertEquals(dexterity, database.readCharacter("Changing").getStatValue("dexterity"));
+            for (Future<Character> read : reads) {
+                read.get(5, TimeUnit.SECONDS);
+            }
+        }
+    }
+}
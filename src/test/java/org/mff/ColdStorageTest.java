@@ -0,0 +1,170 @@
+package org.mff;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the cold tier: idle characters are archived into a zip segment and restored byte for byte, a VIEW of an
+ * archived character restores it, and a reopened cold tier lets the hot files win and drops the dead segments.
+ */
+public class ColdStorageTest {
+    private static final int CHARACTERS = 20;
+    private static Path root;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        System.setProperty("limit.enabled", "false");
+        Log.setLevel(Log.Level.WARN);
+        root = TestCompains.createRoot("cold");
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        TestCompains.deleteRoot(root);
+    }
+
+    /**
+     * Creates the compain with the characters "Idle 0" to "Idle 19" and "Played", which the player "player" plays.
+     * @param compain   the name of the compain
+     * @return          the compain
+     * @throws Exception
+     */
+    private static Database create(String compain) throws Exception {
+        Database database = Database.getInstance(compain, root);
+        for (int i = 0; i < CHARACTERS; i++) {
+            TestCompains.write(database, "Idle " + i, 3 + i % 16);
+        }
+        TestCompains.write(database, "Played", 12);
+        TestCompains.assign(database, "player", "Played");
+        return database;
+    }
+
+    /**
+     * Reads the hot files of the compain.
+     * @param compain   the name of the compain
+     * @return          the map from the names of the characters to the content of their files
+     * @throws Exception
+     */
+    private static Map<String, byte[]> hotFiles(String compain) throws Exception {
+        HashMap<String, byte[]> files = new HashMap<>();
+        try (Stream<Path> walk = Files.walk(root.resolve("Data").resolve(compain), 2)) {
+            for (Path path : (Iterable<Path>) walk::iterator) {
+                String fileName = path.getFileName().toString();
+                if (Files.isRegularFile(path) && !fileName.startsWith(".")) {
+                    files.put(Database.decodeName(fileName), Files.readAllBytes(path));
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Archives every character of the open compains which is not played, those of the other tests included.
+     * @throws Exception
+     */
+    private static void archiveAll() throws Exception {
+        // the characters were accessed in this very millisecond at the latest
+        Thread.sleep(5);
+        Database.archiveIdle(0);
+    }
+
+    @Test
+    public void archivedCharactersAreRestoredByteForByte() throws Exception {
+        Database database = create("restored");
+        Map<String, byte[]> before = hotFiles("restored");
+        assertEquals(CHARACTERS + 1, before.size());
+        archiveAll();
+        assertEquals(1, hotFiles("restored").size());
+        assertFalse(database.isArchived("Played"));
+
+        Path segment = root.resolve("Archive").resolve("restored").resolve("segment-000001.zip");
+        try (ZipFile zip = new ZipFile(segment.toFile())) {
+            assertEquals(CHARACTERS, zip.size());
+            for (int i = 0; i < CHARACTERS; i++) {
+                String name = "Idle " + i;
+                assertTrue(name, database.isArchived(name));
+                assertArrayEquals(name, before.get(name),
+                        zip.getInputStream(zip.getEntry(Database.encodeName(name))).readAllBytes());
+            }
+        }
+        for (int i = 0; i < CHARACTERS; i++) {
+            String name = "Idle " + i;
+            assertEquals(3 + i % 16, database.readCharacter(name).getStatValue("dexterity"));
+            assertFalse(name, database.isArchived(name));
+        }
+        Map<String, byte[]> after = hotFiles("restored");
+        assertEquals(before.keySet(), after.keySet());
+        for (String name : before.keySet()) {
+            assertArrayEquals(name, before.get(name), after.get(name));
+        }
+        // the segment is deleted with its last live entry
+        assertFalse(Files.exists(segment));
+        assertTrue(database.verifyHistory().isEmpty());
+    }
+
+    @Test
+    public void viewOfAnArchivedCharacterRestoresIt() throws Exception {
+        Database database = create("viewed");
+        archiveAll();
+        // the player of an archived character, e.g. assigned by a snapshot of the leader
+        TestCompains.assign(database, "viewer", "Idle 7");
+        assertTrue(database.isArchived("Idle 7"));
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             TestCompains.Connection connection = new TestCompains.Connection(listener)) {
+            assertEquals(MessageType.MESSAGE, connection.send(MessageType.AUTH, "viewer@viewed").type);
+            Message response = connection.send(MessageType.VIEW, "");
+            assertEquals(MessageType.MESSAGE, response.type);
+            assertEquals(1, response.version);
+            assertTrue(response.payload, response.payload.startsWith("Idle 7\n"));
+        }
+        assertFalse(database.isArchived("Idle 7"));
+        assertTrue(hotFiles("viewed").containsKey("Idle 7"));
+        assertTrue(database.isArchived("Idle 8"));
+    }
+
+    @Test
+    public void reopenedColdTierPrefersTheHotFiles() throws Exception {
+        Database database = create("reopened");
+        archiveAll();
+        database.readCharacter("Idle 0");
+        Path directory = root.resolve("Archive").resolve("reopened");
+        ColdStorage cold = new ColdStorage(directory);
+        // as if the hot file of Idle 1 was written just before a crash which left its entry behind
+        cold.load(name -> database.getIndex().contains(name) || name.equals("Idle 1"));
+        assertEquals(CHARACTERS - 2, cold.size());
+        assertFalse(cold.contains("Idle 0"));
+        assertFalse(cold.contains("Idle 1"));
+        assertNull(cold.read("Idle 1"));
+        assertNotNull(cold.read("Idle 2"));
+
+        HashMap<String, Path> files = new HashMap<>();
+        Path file = root.resolve("again.json");
+        Files.writeString(file, "{}");
+        for (int i = 2; i < CHARACTERS; i++) {
+            files.put("Idle " + i, file);
+        }
+        // every entry of the first segment is dead once the second one holds its characters
+        cold.archive(files);
+        assertFalse(Files.exists(directory.resolve("segment-000001.zip")));
+        assertEquals("{}", cold.read("Idle 2"));
+        cold.remove("Idle 2");
+        assertFalse(cold.contains("Idle 2"));
+        cold.close();
+    }
+}
@@ -0,0 +1,144 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the combat tracker: the turn order of tied initiatives, the rounds, the delays and the waiting for
+ * the changes of an encounter, which times out after -Dcombat.waitSeconds.
+ */
+public class CombatEngineTest {
+    private static final int WAIT_SECONDS = 1;
+    private static Path root;
+    private static Database database;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        // read once, when the engine is loaded
+        System.setProperty("combat.waitSeconds", Integer.toString(WAIT_SECONDS));
+        Log.setLevel(Log.Level.WARN);
+        root = TestCompains.createRoot("combat");
+        database = Database.getInstance("combat", root);
+        TestCompains.write(database, "Ann", 14);
+        TestCompains.write(database, "Bo", 10);
+        TestCompains.write(database, "Cy", 14);
+        TestCompains.write(database, "Di", 18);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        TestCompains.deleteRoot(root);
+    }
+
+    /**
+     * Represents a roll engine whose d20 rolls are given in advance.
+     */
+    private static class LoadedDice extends RollEngine {
+        private final ArrayDeque<Integer> rolls = new ArrayDeque<>();
+
+        LoadedDice(int... _rolls) {
+            for (int roll : _rolls) {
+                rolls.add(roll);
+            }
+        }
+
+        @Override
+        public int rollD20() {
+            return rolls.remove();
+        }
+    }
+
+    /**
+     * Gets the names of the combatants in the turn order, the current one marked with '>'.
+     * @param description   the description of the encounter
+     * @return              the names, one per line
+     */
+    private static String turns(String description) {
+        StringBuilder sb = new StringBuilder();
+        String[] lines = description.split("\n");
+        for (int i = 1; i < lines.length; i++) {
+            // "> 12 Name (hp 7/7)" for the current combatant, "  12 Name (hp 7/7)" for the others
+            String[] words = lines[i].substring(2).split(" ");
+            sb.append(lines[i].startsWith(">") ? ">" : "").append(words[1]).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void tiedInitiativesAreOrderedByDexterityThenByArrival() throws Exception {
+        // Ann +2, Bo +0, Cy +2 and Di +4 all total 12
+        CombatEngine engine = new CombatEngine(new LoadedDice(10, 12, 10, 8));
+        CombatEngine.Result started = engine.execute(database, "start ties Ann, Bo, Cy, Di", null, "test");
+        assertTrue(started.text, started.text.startsWith("Encounter ties, round 1\n> 12 Di (hp "));
+        assertEquals(">Di\nAnn\nCy\nBo\n", turns(started.text));
+        assertEquals("Di\n>Ann\nCy\nBo\n", turns(engine.execute(database, "next ties", null, "test").text));
+        assertEquals("Di\nAnn\n>Cy\nBo\n", turns(engine.execute(database, "next ties", null, "test").text));
+        engine.execute(database, "next ties", null, "test");
+        CombatEngine.Result second = engine.execute(database, "next ties", null, "test");
+        assertTrue(second.text, second.text.startsWith("Encounter ties, round 2\n"));
+        assertEquals(">Di\nAnn\nCy\nBo\n", turns(second.text));
+        // the current combatant delaying after Cy passes the turn to Ann
+        CombatEngine.Result delayed = engine.execute(database, "delay ties Di after Cy", null, "test");
+        assertEquals(">Ann\nCy\nDi\nBo\n", turns(delayed.text));
+        assertEquals(6, engine.execute(database, "show ties", null, "test").version);
+    }
+
+    @Test
+    public void waitTimesOutWithoutAChange() throws Exception {
+        CombatEngine engine = new CombatEngine(new LoadedDice(5, 6));
+        long version = engine.execute(database, "start quiet Ann, Bo", null, "test").version;
+        long started = System.nanoTime();
+        CombatEngine.Result result = engine.execute(database, "wait quiet " + version, null, "test");
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        assertFalse(result.modified);
+        assertEquals(version, result.version);
+        assertEquals("", result.text);
+        assertTrue(waited + " ms", waited >= WAIT_SECONDS * 1000 - 50 && waited < WAIT_SECONDS * 1000 + 2000);
+        // a version the participant has not seen yet is answered at once
+        assertTrue(engine.execute(database, "wait quiet " + (version - 1), null, "test").modified);
+    }
+
+    @Test
+    public void waitReturnsTheChange() throws Exception {
+        CombatEngine engine = new CombatEngine(new LoadedDice(5, 6));
+        long version = engine.execute(database, "start busy Ann, Bo", null, "test").version;
+        Thread next = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+                engine.execute(database, "next busy", null, "test");
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }, "next");
+        next.start();
+        CombatEngine.Result result = engine.execute(database, "wait busy " + version, null, "test");
+        next.join();
+        assertTrue(result.modified);
+        assertEquals(version + 1, result.version);
+        assertEquals("Ann\n>Bo\n", turns(result.text));
+        // an ended encounter wakes its participants
+        Thread end = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+                engine.execute(database, "end busy", null, "test");
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }, "end");
+        end.start();
+        result = engine.execute(database, "wait busy " + result.version, null, "test");
+        end.join();
+        assertTrue(result.text, result.text.startsWith("Encounter busy, round 1, ended\n"));
+        String listed = engine.execute(database, "list", null, "test").text;
+        assertFalse(listed, Arrays.asList(listed.split("\n")).contains("busy"));
+    }
+}
@@ -0,0 +1,124 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the export and the import of a compain: a plain and a gzipped round trip into empty compains, the imported
+ * players which would share a character with another player and the skipped invalid lines.
+ */
+public class CompainArchiveTest {
+    private static final int CHARACTERS = 50;
+    private static Path root;
+    private static Database source;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        Log.setLevel(Log.Level.WARN);
+        root = TestCompains.createRoot("archive");
+        source = Database.getInstance("source", root);
+        for (int i = 0; i < CHARACTERS; i++) {
+            TestCompains.write(source, "Hero " + i, 3 + i % 16);
+        }
+        // a second version, the import records only the latest one
+        TestCompains.write(source, "Hero 0", 18);
+        HashMap<String, String> players = new HashMap<>();
+        players.put("alpha", "Hero 0");
+        players.put("beta", "Hero 1");
+        source.writeCompainMetadata(players);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        TestCompains.deleteRoot(root);
+    }
+
+    /**
+     * Exports the source compain to the file and imports it into the target compain.
+     * @param file      the name of the file in the root
+     * @param target    the compain to import into
+     * @return          the result of the import
+     * @throws Exception
+     */
+    private static CompainArchive.ImportResult roundTrip(String file, Database target) throws Exception {
+        Path path = root.resolve(file);
+        assertEquals(CHARACTERS, new CompainArchive(source).exportTo(path));
+        return new CompainArchive(target).importFrom(path);
+    }
+
+    /**
+     * Checks that no character is assigned to two players.
+     * @param players   the map from players to their characters
+     */
+    private static void assertAssignedOnce(Map<String, String> players) {
+        assertEquals(players.toString(), players.size(), new HashSet<>(players.values()).size());
+    }
+
+    @Test
+    public void roundTripCopiesTheCharactersAndThePlayers() throws Exception {
+        for (String file : new String[] {"plain.ndjson", "gzipped.ndjson.gz"}) {
+            Database target = Database.getInstance("copy-" + file.length(), root);
+            CompainArchive.ImportResult result = roundTrip(file, target);
+            assertEquals(CHARACTERS, result.getCharacters());
+            assertEquals(2, result.getPlayers());
+            assertEquals(0, result.getSkipped());
+            assertTrue(result.getConflicts().isEmpty());
+            ArrayList<String> names = target.getExistingCharacters();
+            names.sort(null);
+            ArrayList<String> expected = source.getExistingCharacters();
+            expected.sort(null);
+            assertEquals(expected, names);
+            for (String name : names) {
+                assertEquals(name, source.readCharacter(name).toString(), target.readCharacter(name).toString());
+            }
+            assertEquals(18, target.readCharacter("Hero 0").getStatValue("dexterity"));
+            assertEquals(source.ReadCompainMetadata(), target.ReadCompainMetadata());
+        }
+    }
+
+    @Test
+    public void importSkipsThePlayersOfCharactersAssignedToOthers() throws Exception {
+        Database target = Database.getInstance("taken", root);
+        HashMap<String, String> players = new HashMap<>();
+        players.put("gamma", "Hero 0");
+        players.put("beta", "Hero 7");
+        target.writeCompainMetadata(players);
+        CompainArchive.ImportResult result = roundTrip("taken.ndjson", target);
+        assertEquals(CHARACTERS, result.getCharacters());
+        assertEquals(1, result.getPlayers());
+        assertEquals(Map.of("alpha", "Hero 0"), result.getConflicts());
+        assertTrue(result.toString(), result.toString().contains("player alpha: Hero 0 is assigned to another player"));
+        Map<String, String> merged = target.ReadCompainMetadata();
+        // beta's own character is replaced, gamma keeps Hero 0 and alpha gets nothing
+        assertEquals(Map.of("gamma", "Hero 0", "beta", "Hero 1"), merged);
+        assertAssignedOnce(merged);
+        assertFalse(target.isAssigned("Hero 7"));
+    }
+
+    @Test
+    public void firstPlayerOfTheArchiveGetsASharedCharacter() throws Exception {
+        Database target = Database.getInstance("shared", root);
+        String archive = "{\"format\":\"character-manager\",\"version\":1,\"compain\":\"x\"}\n"
+                + "{\"metadata\":{\"first\":\"Twin\",\"second\":\"Twin\",\"third\":\"Other\"}}\n"
+                + "not json\n"
+                + "{\"unknown\":1}\n";
+        CompainArchive.ImportResult result = new CompainArchive(target).importFrom(
+                new ByteArrayInputStream(archive.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(2, result.getSkipped());
+        assertEquals(2, result.getPlayers());
+        assertEquals(Map.of("second", "Twin"), result.getConflicts());
+        assertEquals(Map.of("first", "Twin", "third", "Other"), target.ReadCompainMetadata());
+    }
+}
@@ -0,0 +1,278 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the group commit of {@link CompainWriter}: the order of the changes, the grouping of the waiting changes
+ * into a single commit, the failures of a change and of the commit and the stop after the queued changes.
+ */
+public class CompainWriterTest {
+    private final AtomicInteger commits = new AtomicInteger();
+    private volatile IOException commitFailure;
+    private CompainWriter writer;
+
+    @BeforeClass
+    public static void quiet() {
+        // the failed commits are logged as errors on purpose
+        Log.setLevel(Log.Level.OFF);
+    }
+
+    @After
+    public void stop() {
+        if (writer != null) writer.stop();
+    }
+
+    /**
+     * Creates the writer counting its commits and failing them while commitFailure is set.
+     * @param capacity  the capacity of the mailbox
+     */
+    private void start(int capacity) {
+        writer = new CompainWriter("test-writer", capacity, () -> {
+            commits.incrementAndGet();
+            if (commitFailure != null) throw commitFailure;
+        });
+    }
+
+    /**
+     * Submits a change which holds the writer until the returned latch is counted down, so that the following
+     * changes wait in the mailbox and form a single group.
+     * @return  the latch releasing the writer
+     * @throws InterruptedException
+     */
+    private CountDownLatch block() throws InterruptedException {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        writer.submit(() -> {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        });
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    @Test
+    public void appliesTheChangesInTheOrderOfSubmission() throws Exception {
+        start(64);
+        List<Integer> applied = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            int value = i;
+            futures.add(writer.submit(() -> {
+                applied.add(value);
+                return value;
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(i, (int) futures.get(i).get(5, TimeUnit.SECONDS));
+        }
+        for (int i = 0; i < applied.size(); i++) {
+            assertEquals(i, (int) applied.get(i));
+        }
+        assertEquals(1000, applied.size());
+    }
+
+    @Test
+    public void commitsTheWaitingChangesTogetherBeforeCompletingThem() throws Exception {
+        start(64);
+        CountDownLatch release = block();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        int[] commitsSeen = new int[10];
+        for (int i = 0; i < 10; i++) {
+            int value = i;
+            futures.add(writer.submit(() -> value));
+            futures.get(i).thenRun(() -> commitsSeen[value] = commits.get());
+        }
+        assertEquals(0, commits.get());
+        for (CompletableFuture<Integer> future : futures) {
+            assertFalse(future.isDone());
+        }
+        release.countDown();
+        for (CompletableFuture<Integer> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        // the blocking change is committed alone, the ten changes waiting behind it in one group
+        assertEquals(2, commits.get());
+        for (int seen : commitsSeen) {
+            assertEquals(2, seen);
+        }
+    }
+
+    @Test
+    public void failedChangeFailsOnlyItsCaller() throws Exception {
+        start(64);
+        CountDownLatch release = block();
+        IOException failure = new IOException("broken change");
+        CompletableFuture<Integer> before = writer.submit(() -> 1);
+        CompletableFuture<Integer> failed = writer.submit(() -> {
+            throw failure;
+        });
+        CompletableFuture<Integer> after = writer.submit(() -> 3);
+        release.countDown();
+        assertEquals(1, (int) before.get(5, TimeUnit.SECONDS));
+        assertEquals(3, (int) after.get(5, TimeUnit.SECONDS));
+        try {
+            failed.join();
+            fail("The failed change completed");
+        } catch (CompletionException e) {
+            assertSame(failure, e.getCause());
+        }
+        assertEquals(2, commits.get());
+    }
+
+    @Test
+    public void failedCommitFailsEveryChangeOfTheGroup() throws Exception {
+        start(64);
+        CountDownLatch release = block();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            int value = i;
+            futures.add(writer.submit(() -> value));
+        }
+        commitFailure = new IOException("disk full");
+        release.countDown();
+        for (CompletableFuture<Integer> future : futures) {
+            try {
+                future.join();
+                fail("A change of the failed commit completed");
+            } catch (CompletionException e) {
+                assertSame(commitFailure, e.getCause());
+            }
+        }
+        commitFailure = null;
+        assertEquals(7, (int) writer.submit(() -> 7).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void callRethrowsTheFailureOfTheChange() throws Exception {
+        start(64);
+        try {
+            writer.call(() -> {
+                throw new IllegalArgumentException("bad argument");
+            });
+            fail("The failed change returned");
+        } catch (IllegalArgumentException e) {
+            assertEquals("bad argument", e.getMessage());
+        }
+        commitFailure = new IOException("disk full");
+        try {
+            writer.call(() -> 1);
+            fail("The change of the failed commit returned");
+        } catch (IOException e) {
+            assertSame(commitFailure, e);
+        }
+    }
+
+    @Test
+    public void callFromAChangeRunsInTheSameGroup() throws Exception {
+        start(64);
+        int result = writer.call(() -> writer.call(() -> 41) + 1);
+        assertEquals(42, result);
+        assertEquals(1, commits.get());
+    }
+
+    @Test
+    public void fullMailboxMakesTheCallersWait() throws Exception {
+        start(2);
+        CountDownLatch release = block();
+        writer.submit(() -> 1);
+        writer.submit(() -> 2);
+        CompletableFuture<CompletableFuture<Integer>> third =
+                CompletableFuture.supplyAsync(() -> writer.submit(() -> 3));
+        Thread.sleep(200);
+        assertFalse(third.isDone());
+        release.countDown();
+        assertEquals(3, (int) third.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void stopCommitsTheQueuedChanges() throws Exception {
+        start(64);
+        CountDownLatch release = block();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            int value = i;
+            futures.add(writer.submit(() -> value));
+        }
+        Thread stopper = new Thread(writer::stop);
+        stopper.start();
+        release.countDown();
+        stopper.join(5000);
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(i, (int) futures.get(i).get(5, TimeUnit.SECONDS));
+        }
+        writer = null;
+    }
+
+    /**
+     * Writes the text to the file through a file channel, which an interrupt of the writing thread closes.
+     * @param file  the file to write
+     * @param text  the text to write
+     * @return      the file
+     * @throws IOException
+     */
+    private static Path writeThroughChannel(Path file, String text) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+        }
+        return file;
+    }
+
+    @Test
+    public void stopDoesNotInterruptTheFileWritesOfTheQueuedChanges() throws Exception {
+        Path root = TestCompains.createRoot("writer");
+        try {
+            Path committed = root.resolve("committed");
+            writer = new CompainWriter("test-writer", 64, () -> writeThroughChannel(committed, "committed"));
+            CountDownLatch release = block();
+            List<CompletableFuture<Path>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                Path file = root.resolve("change-" + i);
+                futures.add(writer.submit(() -> writeThroughChannel(file, file.getFileName().toString())));
+            }
+            Thread stopper = new Thread(writer::stop);
+            stopper.start();
+            // the stop is requested while the writer is in the middle of a group
+            Thread.sleep(200);
+            release.countDown();
+            stopper.join(5000);
+            assertFalse(stopper.isAlive());
+            for (int i = 0; i < futures.size(); i++) {
+                Path file = futures.get(i).get(5, TimeUnit.SECONDS);
+                assertEquals("change-" + i, Files.readString(file));
+            }
+            assertEquals("committed", Files.readString(committed));
+            writer = null;
+        } finally {
+            TestCompains.deleteRoot(root);
+        }
+    }
+}
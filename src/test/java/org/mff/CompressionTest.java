@@ -0,0 +1,175 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+/**
+ * Tests the compression of the messages: payloads deflated with the preset dictionary come back as they were sent,
+ * and truncated frames, frames longer than declared, oversized frames and frames on a connection which has not
+ * negotiated the compression are refused.
+ */
+public class CompressionTest {
+    private static final int MAX_FRAME_BYTES = 16 << 20;
+
+    /**
+     * Creates the sheet of a character, longer than the compression threshold.
+     * @param name  the name of the character
+     * @return      the sheet
+     * @throws Exception
+     */
+    private static String sheet(String name) throws Exception {
+        return TestCompains.character(name, 14).toString();
+    }
+
+    /**
+     * Deflates the data with the preset dictionary, as the other side does.
+     * @param raw   the data
+     * @return      the deflated data
+     */
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setDictionary(Compression.getDictionary());
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                deflated.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return deflated.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Writes the objects to a stream, compressing the large payloads if asked to.
+     * @param compressed    whether the compression is enabled
+     * @param objects       the objects to write
+     * @return              the content of the stream
+     * @throws IOException
+     */
+    private static byte[] write(boolean compressed, Object... objects) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Compression.Output out = new Compression.Output(bytes)) {
+            if (compressed) out.enable();
+            for (Object object : objects) {
+                out.writeObject(object);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a single message from the stream.
+     * @param stream    the content of the stream
+     * @param enabled   whether the compression was negotiated
+     * @return          the message
+     * @throws Exception
+     */
+    private static Message read(byte[] stream, boolean enabled) throws Exception {
+        try (Compression.Input in = new Compression.Input(new ByteArrayInputStream(stream))) {
+            if (enabled) in.enable();
+            return (Message) in.readObject();
+        }
+    }
+
+    /**
+     * Checks that the frame is refused with the given exception and message.
+     * @param frame     the frame
+     * @param expected  the class of the expected exception
+     * @param message   the start of the message of the exception
+     * @throws Exception
+     */
+    private static void assertRefused(Compression.Deflated frame, Class<? extends IOException> expected,
+                                      String message) throws Exception {
+        try {
+            read(write(false, frame), true);
+            fail("Accepted the frame");
+        } catch (IOException e) {
+            assertEquals(e.toString(), expected, e.getClass());
+            assertTrue(e.toString(), e.getMessage().startsWith(message));
+        }
+    }
+
+    @Test
+    public void payloadsRoundTripThroughTheDictionary() throws Exception {
+        Message[] messages = {
+                new Message(MessageType.MESSAGE, sheet("Dragon 🐉"), 7),
+                new Message(MessageType.MESSAGE, "short", 1),
+                new Message(MessageType.LIST, String.join("\n", Arrays.asList(sheet("A"), sheet("B"), sheet("C")))),
+                new Message(MessageType.CLOSE, null)
+        };
+        byte[] compressed = write(true, (Object[]) messages);
+        byte[] plain = write(false, (Object[]) messages);
+        // the field, stat and skill names of the sheets are in the dictionary
+        assertTrue(compressed.length + " of " + plain.length, compressed.length * 3 < plain.length);
+        try (Compression.Input in = new Compression.Input(new ByteArrayInputStream(compressed))) {
+            in.enable();
+            for (Message sent : messages) {
+                Message received = (Message) in.readObject();
+                assertEquals(sent.type, received.type);
+                assertEquals(sent.payload, received.payload);
+                assertEquals(sent.version, received.version);
+            }
+        }
+    }
+
+    @Test
+    public void frameWithoutNegotiationIsRefused() throws Exception {
+        try {
+            read(write(true, new Message(MessageType.MESSAGE, sheet("Hero"))), false);
+            fail("Accepted a compressed message without negotiation");
+        } catch (StreamCorruptedException e) {
+            assertEquals("Compressed message without negotiated compression", e.getMessage());
+        }
+    }
+
+    @Test
+    public void truncatedFramesAreRefused() throws Exception {
+        byte[] raw = sheet("Hero").getBytes(StandardCharsets.UTF_8);
+        byte[] data = deflate(raw);
+        assertEquals(sheet("Hero"), read(write(false, new Compression.Deflated(MessageType.MESSAGE, 0, raw.length,
+                data)), true).payload);
+        assertRefused(new Compression.Deflated(MessageType.MESSAGE, 0, raw.length,
+                Arrays.copyOf(data, data.length / 2)), StreamCorruptedException.class, "Truncated compressed message");
+        // a frame declaring more than it holds
+        assertRefused(new Compression.Deflated(MessageType.MESSAGE, 0, raw.length + 1, data),
+                StreamCorruptedException.class, "Truncated compressed message");
+        byte[] garbage = data.clone();
+        Arrays.fill(garbage, 0, 8, (byte) 0xff);
+        assertRefused(new Compression.Deflated(MessageType.MESSAGE, 0, raw.length, garbage),
+                IOException.class, "Corrupted compressed message");
+    }
+
+    @Test
+    public void oversizedFramesAreRefused() throws Exception {
+        // a bomb: a megabyte of zeros deflates to a few kilobytes and declares a short payload
+        byte[] bomb = deflate(new byte[1 << 20]);
+        assertTrue(bomb.length + " bytes", bomb.length * 100 < 1 << 20);
+        assertRefused(new Compression.Deflated(MessageType.MESSAGE, 0, 100, bomb),
+                StreamCorruptedException.class, "Compressed message longer than its declared 100 bytes");
+        // the same bomb declaring more than a frame may hold is refused before the buffer is allocated
+        assertRefused(new Compression.Deflated(MessageType.MESSAGE, 0, MAX_FRAME_BYTES + 1, bomb),
+                StreamCorruptedException.class, "Invalid compressed message of " + (MAX_FRAME_BYTES + 1) + " bytes");
+        assertRefused(new Compression.Deflated(MessageType.MESSAGE, 0, -1, bomb),
+                StreamCorruptedException.class, "Invalid compressed message of -1 bytes");
+        assertRefused(new Compression.Deflated(null, 0, 100, bomb),
+                StreamCorruptedException.class, "Invalid compressed message of 100 bytes");
+        // the deflated data itself is limited while the stream reads it
+        assertRefused(new Compression.Deflated(MessageType.MESSAGE, 0, 100, new byte[MAX_FRAME_BYTES + 1]),
+                InvalidClassException.class, "filter status: REJECTED");
+    }
+}
@@ -0,0 +1,133 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the conditional VIEW: the sheet comes with its version, the current version is answered with NOT_MODIFIED
+ * and a stale one with the new sheet, and a sheet is never older than the version sent with it while the character
+ * is written. Runs a real client handler in-process over a loopback connection.
+ */
+public class ConditionalViewTest {
+    private static final String COMPAIN = "views";
+    private static final String PLAYER = "viewer";
+    private static final String CHARACTER = "Viewed";
+    private static Path root;
+    private static Database database;
+    private static ServerSocket listener;
+    private static TestCompains.Connection connection;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        System.setProperty("limit.enabled", "false");
+        Log.setLevel(Log.Level.WARN);
+        root = TestCompains.createRoot("views");
+        database = Database.getInstance(COMPAIN, root);
+        write("Rogue");
+        TestCompains.assign(database, PLAYER, CHARACTER);
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        connection = new TestCompains.Connection(listener);
+        assertEquals(MessageType.MESSAGE, connection.send(MessageType.AUTH, PLAYER + "@" + COMPAIN).type);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        if (connection != null) connection.close();
+        if (listener != null) listener.close();
+        TestCompains.deleteRoot(root);
+    }
+
+    /**
+     * Writes the character with the given class.
+     * @param characterClass    the class of the character
+     * @return                  the new version of the character
+     * @throws Exception
+     */
+    private static long write(String characterClass) throws Exception {
+        Character character = TestCompains.character(CHARACTER, 10);
+        character.setCharacterClass(characterClass);
+        return database.writeCharacter(character, "test");
+    }
+
+    @Test
+    public void viewWithoutVersionSendsTheSheetAndItsVersion() throws Exception {
+        Message response = connection.send(MessageType.VIEW, "");
+        assertEquals(MessageType.MESSAGE, response.type);
+        assertEquals(database.getCharacterVersion(CHARACTER), response.version);
+        assertEquals(database.readCharacter(CHARACTER).toString(), response.payload);
+    }
+
+    @Test
+    public void currentVersionIsNotModified() throws Exception {
+        long version = connection.send(MessageType.VIEW, "").version;
+        for (int i = 0; i < 10; i++) {
+            Message response = connection.send(MessageType.VIEW, Long.toString(version));
+            assertEquals(MessageType.NOT_MODIFIED, response.type);
+            assertEquals(version, response.version);
+            assertEquals("", response.payload);
+        }
+    }
+
+    @Test
+    public void staleVersionGetsTheNewSheet() throws Exception {
+        long stale = connection.send(MessageType.VIEW, "").version;
+        long version = write("Wizard");
+        assertEquals(stale + 1, version);
+        Message response = connection.send(MessageType.VIEW, Long.toString(stale));
+        assertEquals(MessageType.MESSAGE, response.type);
+        assertEquals(version, response.version);
+        assertTrue(response.payload, response.payload.contains("CLASS: Wizard\n"));
+        assertEquals(MessageType.NOT_MODIFIED, connection.send(MessageType.VIEW, Long.toString(version)).type);
+    }
+
+    @Test
+    public void sheetIsNeverOlderThanItsVersion() throws Exception {
+        long first = database.getCharacterVersion(CHARACTER) + 1;
+        assertEquals(first, write("v" + first));
+        long last = first + 300;
+        Thread writing = new Thread(() -> {
+            try {
+                for (long version = first + 1; version <= last; version++) {
+                    assertEquals(version, write("v" + version));
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }, "writing");
+        writing.start();
+        long seen = 0;
+        while (seen < last) {
+            Message response = connection.send(MessageType.VIEW, "");
+            Matcher written = Pattern.compile("CLASS: v(\\d+)\n").matcher(response.payload);
+            assertTrue(response.payload, written.find());
+            // a sheet older than its version would be cached under the newer version by the client
+            assertTrue(response.version + " " + written.group(1), Long.parseLong(written.group(1)) >= response.version);
+            seen = response.version;
+        }
+        writing.join();
+    }
+
+    @Test
+    public void malformedVersionGetsTheSheet() throws Exception {
+        Message response = connection.send(MessageType.VIEW, "not a version");
+        assertEquals(MessageType.MESSAGE, response.type);
+        assertEquals(database.getCharacterVersion(CHARACTER), response.version);
+    }
+
+    @Test
+    public void viewWithoutPayloadGetsTheSheet() throws Exception {
+        Message response = connection.send(MessageType.VIEW, null);
+        assertEquals(MessageType.MESSAGE, response.type);
+        assertEquals(database.getCharacterVersion(CHARACTER), response.version);
+        assertEquals(database.readCharacter(CHARACTER).toString(), response.payload);
+    }
+}
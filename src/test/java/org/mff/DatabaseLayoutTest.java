@@ -0,0 +1,149 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the file names of the characters and the migration of the compains to the hashed layout: awkward names
+ * survive the encoding and a write and read, and the characters and histories of compains stored in the flat
+ * layout and in the hashed layout of version 2 are found under their new file names.
+ */
+public class DatabaseLayoutTest {
+    private static final List<String> NAMES = Arrays.asList(
+            "Bob Smith", "BobSmith", "Bob/Smith", "..\\Bob", "100%", "%41", "%", "Ærøskøbing", "Dvořák",
+            "日本語", "🐉 Dragon", "CON", "con", "Con.txt", "NUL", "aux.log", "PRN",
+            "COM1", "lpt9.dat", "COM10", "CONSOLE", ".hidden", "trailing.", "dots...", "-", "a:b*c?\"<>|");
+    private static Path root;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        Log.setLevel(Log.Level.WARN);
+        root = TestCompains.createRoot("layout");
+        Database.getInstance("names", root);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        TestCompains.deleteRoot(root);
+    }
+
+    /**
+     * Checks that the file name is valid on Windows and on Unix and hides nothing.
+     * @param fileName  the file name
+     */
+    private static void assertPortable(String fileName) {
+        assertTrue(fileName, fileName.matches("[A-Za-z0-9_%.\\-]+"));
+        assertFalse(fileName, fileName.startsWith("."));
+        assertFalse(fileName, fileName.endsWith("."));
+        String stem = fileName.split("\\.", 2)[0].toUpperCase();
+        assertFalse(fileName, stem.matches("CON|PRN|AUX|NUL|COM[1-9]|LPT[1-9]"));
+    }
+
+    /**
+     * Writes a file of the character in the given layout.
+     * @param file      the file
+     * @param name      the name of the character
+     * @param dexterity the dexterity of the character
+     * @throws Exception
+     */
+    private static void writeOldFile(Path file, String name, int dexterity) throws Exception {
+        Files.createDirectories(file.getParent());
+        Files.write(file, Codecs.writeCharacter(TestCompains.character(name, dexterity)));
+    }
+
+    @Test
+    public void namesRoundTripThroughPortableFileNames() {
+        HashSet<String> fileNames = new HashSet<>();
+        for (String name : NAMES) {
+            String fileName = Database.encodeName(name);
+            assertPortable(fileName);
+            assertEquals(fileName, name, Database.decodeName(fileName));
+            assertTrue(fileName, fileNames.add(fileName.toUpperCase()));
+        }
+        assertEquals("Bob%20Smith", Database.encodeName("Bob Smith"));
+        assertEquals("%43ON", Database.encodeName("CON"));
+        assertEquals("COM10", Database.encodeName("COM10"));
+        assertEquals("trailing%2E", Database.encodeName("trailing."));
+    }
+
+    @Test
+    public void charactersWithAwkwardNamesAreWrittenAndRead() throws Exception {
+        Database database = Database.getInstance("names", root);
+        for (int i = 0; i < NAMES.size(); i++) {
+            TestCompains.write(database, NAMES.get(i), 3 + i % 16);
+        }
+        ArrayList<String> existing = database.getExistingCharacters();
+        existing.sort(null);
+        ArrayList<String> expected = new ArrayList<>(NAMES);
+        expected.sort(null);
+        assertEquals(expected, existing);
+        for (int i = 0; i < NAMES.size(); i++) {
+            Character character = database.readCharacter(NAMES.get(i));
+            assertEquals(NAMES.get(i), character.getName());
+            assertEquals(3 + i % 16, character.getStatValue("dexterity"));
+        }
+    }
+
+    @Test
+    public void flatLayoutIsMigrated() throws Exception {
+        Path data = root.resolve("Data").resolve("flat");
+        Path history = root.resolve("History").resolve("flat");
+        String[] names = {"Bob Smith", "Alice", "CON"};
+        for (int i = 0; i < names.length; i++) {
+            writeOldFile(data.resolve(names[i].replaceAll(" ", "")), names[i], 10 + i);
+        }
+        // the flat layout kept the history of a character in a directory named as its file
+        Path bobHistory = history.resolve("BobSmith");
+        CharacterHistory written = new CharacterHistory(Codecs.mapper(), 16);
+        written.append(bobHistory, null, Codecs.mapper().valueToTree(TestCompains.character("Bob Smith", 9)), "test");
+        written.append(bobHistory, Codecs.mapper().valueToTree(TestCompains.character("Bob Smith", 9)),
+                Codecs.mapper().valueToTree(TestCompains.character("Bob Smith", 10)), "test");
+
+        Database database = Database.getInstance("flat", root);
+        for (int i = 0; i < names.length; i++) {
+            assertEquals(10 + i, database.readCharacter(names[i]).getStatValue("dexterity"));
+        }
+        assertEquals(2, database.getCharacterVersion("Bob Smith"));
+        assertEquals(9, database.readCharacterVersion("Bob Smith", 1).getStatValue("dexterity"));
+        assertEquals(3, TestCompains.write(database, "Bob Smith", 11));
+        assertFalse(Files.exists(data.resolve("BobSmith")));
+        assertFalse(Files.exists(bobHistory));
+        assertTrue(database.verifyHistory().isEmpty());
+    }
+
+    @Test
+    public void reservedNamesOfTheHashedLayoutAreMigrated() throws Exception {
+        Path data = root.resolve("Data").resolve("hashed");
+        Path history = root.resolve("History").resolve("hashed");
+        // version 2 of the layout kept these names as they were
+        writeOldFile(data.resolve("00").resolve("CON"), "CON", 12);
+        writeOldFile(data.resolve("01").resolve("trailing."), "trailing.", 13);
+        writeOldFile(data.resolve("02").resolve("Kept"), "Kept", 14);
+        new CharacterHistory(Codecs.mapper(), 16).append(history.resolve("00").resolve("CON"), null,
+                Codecs.mapper().valueToTree(TestCompains.character("CON", 12)), "test");
+        Files.writeString(data.resolve(".layout"), "2");
+
+        Database database = Database.getInstance("hashed", root);
+        ArrayList<String> existing = database.getExistingCharacters();
+        existing.sort(null);
+        assertEquals(Arrays.asList("CON", "Kept", "trailing."), existing);
+        assertEquals(12, database.readCharacter("CON").getStatValue("dexterity"));
+        assertEquals(13, database.readCharacter("trailing.").getStatValue("dexterity"));
+        assertEquals(14, database.readCharacter("Kept").getStatValue("dexterity"));
+        assertEquals(1, database.getCharacterVersion("CON"));
+        assertFalse(Files.exists(data.resolve("00").resolve("CON")));
+        assertFalse(Files.exists(history.resolve("00").resolve("CON")));
+        assertEquals("3", Files.readString(data.resolve(".layout")));
+    }
+}
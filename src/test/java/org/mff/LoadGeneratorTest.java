@@ -0,0 +1,171 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the load generator: the accuracy of its latency histogram and short closed and open loop runs against
+ * real client handlers running in-process on the loopback address.
+ */
+public class LoadGeneratorTest {
+    private static Path root;
+    private static ServerSocket listener;
+    private static Thread acceptor;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        System.setProperty("limit.enabled", "false");
+        Log.setLevel(Log.Level.WARN);
+        root = TestCompains.createRoot("load");
+        Database.getInstance("load", root);
+        listener = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    TestCompains.serve(listener.accept());
+                }
+            } catch (IOException e) {
+                // the listener was closed
+            }
+        }, "load-test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        if (listener != null) listener.close();
+        if (acceptor != null) acceptor.join(5000);
+        TestCompains.deleteRoot(root);
+    }
+
+    /**
+     * Runs the load generator against the in-process handlers and captures its report. Every run has its own
+     * compain, since the simulated players of a run pick the characters the players of the same names picked before.
+     * @param compain   the compain of the players
+     * @param args      the arguments after the port
+     * @return          the report
+     */
+    private static String load(String compain, String... args) {
+        String[] all = new String[args.length + 5];
+        all[0] = "load";
+        all[1] = "--port";
+        all[2] = Integer.toString(listener.getLocalPort());
+        all[3] = "--compains";
+        all[4] = compain;
+        System.arraycopy(args, 0, all, 5, args.length);
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        try {
+            LoadGenerator.run(all);
+        } finally {
+            System.setOut(out);
+        }
+        return captured.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the rows of the report by their labels.
+     * @param report    the report
+     * @return          the map from the labels to the columns of the rows
+     */
+    private static Map<String, String[]> rows(String report) {
+        Map<String, String[]> rows = new HashMap<>();
+        for (String line : report.split("\n")) {
+            String[] columns = line.trim().split("\\s+");
+            if (columns.length == 9 && columns[8].matches("\\d+")) rows.put(columns[0], columns);
+        }
+        return rows;
+    }
+
+    /**
+     * Checks that every request of the mix was sent and succeeded and that every connection held.
+     * @param report    the report
+     * @param types     the labels of the types in the mix
+     */
+    private static void assertClean(String report, String... types) {
+        Map<String, String[]> rows = rows(report);
+        long sum = 0;
+        for (String type : types) {
+            assertTrue(report, rows.containsKey(type));
+            assertEquals(report, "0", rows.get(type)[8]);
+            sum += Long.parseLong(rows.get(type)[1]);
+        }
+        assertEquals(report, types.length + 1, rows.size());
+        assertEquals(report, sum, Long.parseLong(rows.get("total")[1]));
+        assertEquals(report, "0", rows.get("total")[8]);
+        assertTrue(report, report.contains("connection errors: 0\n"));
+    }
+
+    @Test
+    public void closedLoopRunsTheWholeMix() {
+        String report = load("closed", "--clients", "4", "--duration", "1.5", "--think", "4",
+                "--mix", "auth=1,list=1,pick=1,view=5,set=2");
+        assertTrue(report, report.startsWith("4 clients, "));
+        assertTrue(report, report.contains("closed loop"));
+        assertClean(report, "AUTH", "LIST", "PICK", "VIEW", "SET");
+    }
+
+    @Test
+    public void openLoopRunsAtTheRate() {
+        String report = load("open", "--clients", "8", "--duration", "2", "--rate", "100", "--mix", "view=1",
+                "--compress");
+        assertTrue(report, report.contains("open loop at 100.0 requests/s"));
+        // the AUTH and the PICK which start every player are not measured
+        assertClean(report, "VIEW");
+        long views = Long.parseLong(rows(report).get("VIEW")[1]);
+        assertTrue(report, views > 150 && views <= 200);
+    }
+
+    @Test
+    public void malformedArgumentsPrintTheUsage() {
+        assertTrue(load("closed", "--mix", "close=1").startsWith("Unsupported request type: CLOSE\nUsage: load"));
+        assertTrue(load("closed", "--clients", "0").startsWith("At least one client is needed\nUsage: load"));
+        assertTrue(load("closed", "--think").startsWith("Missing value of --think\nUsage: load"));
+    }
+
+    @Test
+    public void histogramIsExactForSmallValues() {
+        LoadGenerator.Histogram histogram = new LoadGenerator.Histogram();
+        for (int value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(50, histogram.percentile(50));
+        assertEquals(99, histogram.percentile(99));
+        assertEquals(100, histogram.percentile(100));
+        assertEquals(100, histogram.max());
+        assertEquals(0, new LoadGenerator.Histogram().percentile(50));
+    }
+
+    @Test
+    public void histogramErrorIsBelowTwoPercent() {
+        LoadGenerator.Histogram first = new LoadGenerator.Histogram();
+        LoadGenerator.Histogram second = new LoadGenerator.Histogram();
+        for (long value = 1; value <= 1_000_000; value++) {
+            (value % 2 == 0 ? first : second).record(value);
+        }
+        first.add(second);
+        assertEquals(1_000_000, first.count());
+        assertEquals(1_000_000, first.max());
+        for (double percent : new double[] {1, 10, 50, 90, 99, 99.9}) {
+            double exact = percent * 10_000;
+            double error = Math.abs(first.percentile(percent) - exact) / exact;
+            assertTrue(percent + "%: " + first.percentile(percent), error < 0.02);
+        }
+    }
+}
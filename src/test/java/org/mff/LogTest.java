@@ -0,0 +1,103 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the asynchronous log: the entries dropped while the ring buffer is full, the formatting of the arguments
+ * and of the errors and the wake-up of the idle background thread.
+ */
+public class LogTest {
+    private static final int CAPACITY = 16;
+    private static Path file;
+
+    @BeforeClass
+    public static void start() throws IOException {
+        // the log reads its configuration once, when the class is loaded
+        file = Files.createTempFile("character_manager-log", ".log");
+        System.setProperty("log.file", file.toString());
+        System.setProperty("log.capacity", Integer.toString(CAPACITY));
+        System.setProperty("log.level", "INFO");
+    }
+
+    @AfterClass
+    public static void stop() throws IOException {
+        if (file != null) Files.deleteIfExists(file);
+    }
+
+    /**
+     * Waits until the log file contains the text.
+     * @param text  the text to wait for
+     * @return      the content of the log file
+     * @throws Exception
+     */
+    private static String awaitLogged(String text) throws Exception {
+        long deadline = System.nanoTime() + 5_000_000_000L;
+        String content;
+        do {
+            content = Files.readString(file, StandardCharsets.UTF_8);
+            if (content.contains(text)) return content;
+            Thread.sleep(10);
+        } while (System.nanoTime() < deadline);
+        throw new AssertionError("Not logged: " + text + "\n" + content);
+    }
+
+    @Test
+    public void dropsTheEntriesWhileTheBufferIsFullAndReportsThem() throws Exception {
+        Log.info("before the full buffer");
+        awaitLogged("before the full buffer");
+        long droppedBefore = Log.getDropped();
+        // the background thread drains the buffer holding the monitor of the class, so it can't drain meanwhile
+        synchronized (Log.class) {
+            for (int i = 0; i < CAPACITY + 10; i++) {
+                Log.info("full buffer entry {}", i);
+            }
+            assertEquals(10, Log.getDropped() - droppedBefore);
+        }
+        String content = awaitLogged("dropped 10 log entries");
+        for (int i = 0; i < CAPACITY; i++) {
+            assertTrue("Missing entry " + i, content.contains("full buffer entry " + i + "\n"));
+        }
+        for (int i = CAPACITY; i < CAPACITY + 10; i++) {
+            assertFalse("Dropped entry " + i + " was logged", content.contains("full buffer entry " + i + "\n"));
+        }
+        assertTrue(content.indexOf("full buffer entry 0\n") < content.indexOf("full buffer entry " + (CAPACITY - 1)));
+    }
+
+    @Test
+    public void formatsTheArgumentsAndTheErrors() throws Exception {
+        Log.warn("three {} {} {}", "a", 2, (Object) null);
+        Log.warn("described {}: {}", "x", new IOException("short failure"));
+        Log.warn("traced {}", "y", new IOException("traced failure"));
+        Log.debug("below the level {}", "z");
+        String content = awaitLogged("traced y\n");
+        assertTrue(content.contains("three a 2 null\n"));
+        assertTrue(content.contains("described x: java.io.IOException: short failure\n"));
+        assertFalse(content.contains("short failure\n\tat "));
+        assertTrue(content.contains("traced y\njava.io.IOException: traced failure\n\tat "));
+        assertFalse(content.contains("below the level"));
+    }
+
+    @Test
+    public void idleWriterWakesUpForTheNextEntry() throws Exception {
+        Log.info("before idling");
+        awaitLogged("before idling");
+        // long enough for the background thread to park
+        Thread.sleep(300);
+        long start = System.nanoTime();
+        Log.info("after idling");
+        awaitLogged("after idling");
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        // without the unpark the entry would wait for the one second fallback of the park
+        assertTrue("The entry took " + millis + " ms", millis < 500);
+    }
+}
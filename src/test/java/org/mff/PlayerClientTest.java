@@ -0,0 +1,98 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PipedReader;
+import java.io.PipedWriter;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that the heartbeats of the interactive client keep its session alive while the player types at a prompt
+ * for longer than the idle timeout of the server. The client reads its commands from a pipe and talks to a client
+ * handler running in-process on the loopback address.
+ */
+public class PlayerClientTest {
+    private static final int IDLE_SECONDS = 2;
+    private static Path root;
+    private static ServerSocket listener;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        // both are read once, when the classes are loaded
+        System.setProperty("session.idleSeconds", Integer.toString(IDLE_SECONDS));
+        System.setProperty("client.heartbeatSeconds", "1");
+        System.setProperty("limit.enabled", "false");
+        Log.setLevel(Log.Level.WARN);
+        root = TestCompains.createRoot("client");
+        Database database = Database.getInstance("prompts", root);
+        TestCompains.write(database, "Thinker", 14);
+        TestCompains.assign(database, "thinker", "Thinker");
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        if (listener != null) listener.close();
+        TestCompains.deleteRoot(root);
+    }
+
+    private static long evicted() {
+        return Metrics.snapshot().getOrDefault("sessions.evicted", 0L);
+    }
+
+    @Test
+    public void playerAtAPromptStaysConnected() throws Exception {
+        PipedWriter typed = new PipedWriter();
+        PlayerClient client = new PlayerClient(new BufferedReader(new PipedReader(typed)));
+        Thread accepting = new Thread(() -> {
+            try {
+                TestCompains.serve(listener.accept());
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        accepting.start();
+        client.startConnection(listener.getInetAddress().getHostAddress(), listener.getLocalPort());
+        accepting.join();
+
+        long evictedBefore = evicted();
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        Thread player = new Thread(() -> {
+            try {
+                client.play();
+            } catch (Exception e) {
+                e.printStackTrace(out);
+            }
+        }, "player");
+        try {
+            player.start();
+            typed.write("thinker@prompts\nquery\n");
+            typed.flush();
+            // the player thinks about the query for more than twice the idle timeout
+            TimeUnit.SECONDS.sleep(IDLE_SECONDS * 2 + 1);
+            typed.write("where dexterity >= 10\nquit\n");
+            typed.flush();
+            player.join(TimeUnit.SECONDS.toMillis(10));
+        } finally {
+            System.setOut(out);
+        }
+        String output = captured.toString(StandardCharsets.UTF_8);
+        assertFalse(output, player.isAlive());
+        assertTrue(output, output.contains("1 character(s)\nThinker dexterity=14\n"));
+        assertEquals(output, evictedBefore, evicted());
+    }
+}
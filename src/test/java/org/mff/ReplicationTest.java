@@ -0,0 +1,202 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests a leader and a follower on the loopback address: the follower converges and serves only the requests
+ * which change nothing. The compains live in a directory fixed once per JVM, so
+ * the leader runs in a child JVM driven by commands on its standard input while this JVM follows it.
+ */
+public class ReplicationTest {
+    private static final String COMPAIN = "replicated";
+    private static final String SECRET = "replication-test-secret";
+    private static Path leaderRoot;
+    private static Path followerRoot;
+    private static Path leaderLog;
+    private static Process leader;
+    private static BufferedReader leaderOut;
+    private static PrintWriter leaderIn;
+    private static int port;
+    private static Database database;
+
+    /**
+     * Runs the leader: opens the compain with the character Alpha played by the player "alpha", starts the
+     * replication on a free port and prints it, then writes the characters given as "write &lt;name&gt; &lt;dexterity&gt;"
+     * lines and answers every line with "ok &lt;version&gt;".
+     */
+    public static class Leader {
+        public static void main(String[] args) throws Exception {
+            Log.setLevel(Log.Level.WARN);
+            Database database = Database.getInstance(COMPAIN, Paths.get(args[0]));
+            TestCompains.write(database, "Alpha", 11);
+            TestCompains.assign(database, "alpha", "Alpha");
+            System.out.println("port " + ReplicationLeader.start(0, 0).getPort());
+            BufferedReader commands = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = commands.readLine()) != null) {
+                String[] words = line.split(" ");
+                long version = TestCompains.write(database, words[1], Integer.parseInt(words[2]));
+                System.out.println("ok " + version);
+            }
+            System.exit(0);
+        }
+    }
+
+    @BeforeClass
+    public static void start() throws Exception {
+        System.setProperty("replication.secret", SECRET);
+        System.setProperty("limit.enabled", "false");
+        Log.setLevel(Log.Level.WARN);
+        Server.initEngines();
+        leaderRoot = TestCompains.createRoot("leader");
+        followerRoot = TestCompains.createRoot("follower");
+        // the standard output of the leader answers the commands, so its log goes elsewhere
+        leaderLog = Files.createTempFile("character_manager-leader", ".log");
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        leader = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "-Dreplication.secret=" + SECRET, "-Dreplication.heartbeatMillis=100", "-Dlog.file=" + leaderLog,
+                Leader.class.getName(), leaderRoot.toString())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        leaderOut = new BufferedReader(new InputStreamReader(leader.getInputStream(), StandardCharsets.UTF_8));
+        leaderIn = new PrintWriter(leader.getOutputStream(), true, StandardCharsets.UTF_8);
+        String line = leaderOut.readLine();
+        if (line == null || !line.startsWith("port ")) throw new IllegalStateException("The leader did not start: " + line);
+        port = Integer.parseInt(line.substring(5));
+        database = Database.getInstance(COMPAIN, followerRoot);
+        ReplicationFollower.start("127.0.0.1:" + port);
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        ReplicationFollower.stopFollowing();
+        if (leader != null) {
+            leader.getOutputStream().close();
+            if (!leader.waitFor(10, TimeUnit.SECONDS)) leader.destroyForcibly();
+        }
+        TestCompains.deleteRoot(leaderRoot);
+        TestCompains.deleteRoot(followerRoot);
+        if (leaderLog != null) Files.deleteIfExists(leaderLog);
+    }
+
+    /**
+     * Writes the character on the leader.
+     * @param name      the name of the character
+     * @param dexterity the dexterity
+     * @return          the version of the character on the leader
+     * @throws IOException
+     */
+    private static long writeOnLeader(String name, int dexterity) throws IOException {
+        leaderIn.println("write " + name + " " + dexterity);
+        String line = leaderOut.readLine();
+        if (line == null || !line.startsWith("ok ")) throw new IllegalStateException("The leader failed: " + line);
+        return Long.parseLong(line.substring(3));
+    }
+
+    /**
+     * Waits until the condition holds on the follower.
+     * @param what      the description of the condition
+     * @param condition the condition
+     * @throws Exception
+     */
+    private static void await(String what, Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (!condition.call()) {
+            if (System.nanoTime() > deadline) fail("The follower did not converge: " + what);
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Waits until the follower has the character at the version with the dexterity.
+     * @param name      the name of the character
+     * @param version   the version of the character
+     * @param dexterity the dexterity
+     * @throws Exception
+     */
+    private static void awaitReplicated(String name, long version, int dexterity) throws Exception {
+        await(name + " at version " + version, () -> database.getCharacterVersion(name) == version);
+        assertEquals(dexterity, database.readCharacter(name).getStatValue("dexterity"));
+    }
+
+    @Test
+    public void followerConvergesAfterTheSnapshotAndTheLiveChanges() throws Exception {
+        // Alpha and its player were written before the follower connected, so they come with the snapshot
+        await("Alpha assigned", () -> database.isAssigned("Alpha"));
+        awaitReplicated("Alpha", 1, 11);
+        Map<String, String> players = database.ReadCompainMetadata();
+        assertEquals("Alpha", players.get("alpha"));
+
+        long beta = writeOnLeader("Beta", 13);
+        awaitReplicated("Beta", beta, 13);
+        long alpha = writeOnLeader("Alpha", 15);
+        assertEquals(2, alpha);
+        awaitReplicated("Alpha", alpha, 15);
+        for (int dexterity = 1; dexterity <= 50; dexterity++) {
+            writeOnLeader("Gamma", dexterity);
+        }
+        awaitReplicated("Gamma", 50, 50);
+        assertEquals(25, database.readCharacterVersion("Gamma", 25).getStatValue("dexterity"));
+        assertFalse(database.isAssigned("Beta"));
+    }
+
+    @Test
+    public void followerServesOnlyTheCombatCommandsWhichReadTheEncounters() throws Exception {
+        await("Alpha assigned", () -> database.isAssigned("Alpha"));
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             TestCompains.Connection connection = new TestCompains.Connection(listener)) {
+            assertEquals(MessageType.MESSAGE, connection.send(MessageType.AUTH, "alpha@" + COMPAIN).type);
+            Message list = connection.send(MessageType.COMBAT, "list");
+            assertEquals(MessageType.MESSAGE, list.type);
+            assertEquals("", list.payload);
+            assertEquals("No such encounter: ambush", connection.send(MessageType.COMBAT, "show ambush").payload);
+            for (String command : new String[] {"start ambush me", "add ambush me", "next ambush", "end ambush",
+                    "damage ambush 3 Alpha", "heal ambush 3 Alpha", "  START ambush", "unknown"}) {
+                Message refused = connection.send(MessageType.COMBAT, command);
+                assertEquals(command, MessageType.ERROR, refused.type);
+                assertTrue(refused.payload, refused.payload.startsWith("This server is a read-only follower of "));
+            }
+            assertEquals(MessageType.ERROR, connection.send(MessageType.SET, "").type);
+        }
+    }
+
+    @Test
+    public void leaderRefusesAFollowerWithoutTheSecret() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(10_000);
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.writeObject(new Message(MessageType.REPLICATE, "wrong secret"));
+            out.flush();
+            ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
+            in.readObject();
+            fail("The leader replicated to a follower with a wrong secret");
+        } catch (EOFException | SocketException e) {
+            // the leader closed the connection
+        }
+    }
+}
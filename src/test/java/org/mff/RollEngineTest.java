@@ -0,0 +1,137 @@
+package org.mff;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the dice rolling engine: seeded requests are deterministic, the limits of the parser hold, "for npcs" leaves
+ * out the characters of the players and a repeated request is rolled without allocating.
+ */
+public class RollEngineTest {
+    private static final int CHARACTERS = 10;
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static Path root;
+    private static Database database;
+
+    @BeforeClass
+    public static void start() throws Exception {
+        Log.setLevel(Log.Level.WARN);
+        root = TestCompains.createRoot("rolls");
+        database = Database.getInstance("rolls", root);
+        for (int i = 0; i < CHARACTERS; i++) {
+            TestCompains.write(database, "Hero " + i, 8 + i);
+        }
+        TestCompains.assign(database, "player", "Hero 3");
+    }
+
+    @AfterClass
+    public static void stop() throws Exception {
+        TestCompains.deleteRoot(root);
+    }
+
+    /**
+     * Rolls the request for Hero 0.
+     * @param engine    the engine to roll with
+     * @param request   the request
+     * @return          the results
+     * @throws Exception
+     */
+    private static String roll(RollEngine engine, String request) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        engine.roll(database, request, "Hero 0", sb);
+        return sb.toString();
+    }
+
+    /**
+     * Checks that the request is refused with the given message.
+     * @param request   the request
+     * @param message   the expected message of the refusal
+     * @throws Exception
+     */
+    private static void assertRefused(String request, String message) throws Exception {
+        try {
+            roll(new RollEngine(), request);
+            fail("Rolled " + request);
+        } catch (IllegalArgumentException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    @Test
+    public void seededRequestsAreDeterministic() throws Exception {
+        String request = "seed 42; dice 3d20+2; save dexterity for all; check dexterity";
+        String first = roll(new RollEngine(), request);
+        // a different root seed and a cached compiled request do not matter
+        RollEngine other = new RollEngine(7);
+        assertEquals(first, roll(other, request));
+        assertEquals(first, roll(other, request));
+        assertEquals(CHARACTERS + 2, first.split("\n").length);
+        assertTrue(first, first.startsWith("3d20+2: "));
+        assertFalse(first.equals(roll(other, "seed 43; dice 3d20+2; save dexterity for all; check dexterity")));
+    }
+
+    @Test
+    public void rootSeedMakesTheEngineDeterministic() throws Exception {
+        assertEquals(roll(new RollEngine(5), "dice 10d100"), roll(new RollEngine(5), "dice 10d100"));
+    }
+
+    @Test
+    public void parserLimitsHold() throws Exception {
+        assertRefused("dice 1d6+1d6+1d6+1d6+1d6+1d6+1d6+1d6+1d6+1d6+1d6+1d6+1d6+1d6+1d6+1d6+1d6+1d6+1d6+1d6+1d6",
+                "At most 20 terms may be rolled at once");
+        assertRefused("dice 1001d6", "Invalid dice: 1001d6");
+        assertRefused("dice 1d1001", "Invalid dice: 1d1001");
+        assertRefused("dice 100001", "Invalid constant: 100001");
+        assertRefused("skill", "Expected <kind> <what>, got: skill");
+        assertRefused("juggle knives", "Unknown roll: juggle");
+        assertRefused("seed many; dice 1d6", "Expected a number, got: many");
+        StringBuilder rolls = new StringBuilder("dice 1d6");
+        for (int i = 1; i < 20; i++) {
+            rolls.append("; dice 1d6");
+        }
+        assertEquals(20, roll(new RollEngine(), rolls.toString()).split("\n").length);
+        assertRefused(rolls.append("; dice 1d6").toString(), "At most 20 rolls may be made at once");
+        assertTrue(roll(new RollEngine(), "dice 1000d1000-100000").startsWith("1000d1000-100000: "));
+    }
+
+    @Test
+    public void npcsAreTheCharactersWithoutPlayers() throws Exception {
+        String rolled = roll(new RollEngine(), "save wisdom for npcs");
+        assertEquals(rolled, CHARACTERS - 1, rolled.split("\n").length);
+        assertFalse(rolled, rolled.contains("Hero 3 "));
+        for (int i = 0; i < CHARACTERS; i++) {
+            if (i != 3) assertTrue(rolled, rolled.contains("Hero " + i + " wisdom save: "));
+        }
+        String named = roll(new RollEngine(), "skill stealth for Hero 3, Hero 5");
+        assertTrue(named, named.startsWith("Hero 3 stealth: "));
+        assertTrue(named, named.contains("\nHero 5 stealth: "));
+    }
+
+    @Test
+    public void repeatedRequestDoesNotAllocate() throws Exception {
+        RollEngine engine = new RollEngine(1);
+        String request = "save dexterity for npcs; skill perception; dice 2d6+3";
+        StringBuilder sb = new StringBuilder(4096);
+        for (int i = 0; i < 10_000; i++) {
+            sb.setLength(0);
+            engine.roll(database, request, "Hero 0", sb);
+        }
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 1000; i++) {
+            sb.setLength(0);
+            engine.roll(database, request, "Hero 0", sb);
+        }
+        long bytes = threads.getCurrentThreadAllocatedBytes() - before;
+        // the counter itself allocates a little
+        assertTrue(bytes + " bytes", bytes < 1000);
+    }
+}
@@ -0,0 +1,161 @@
+package org.mff;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+/**
+ * Holds the fixtures shared by the tests: compains in temporary roots, the characters written to them and client
+ * handlers serving connections in-process on the loopback address. The root of the compains is set once per JVM,
+ * so a test class opens all its compains in the same root.
+ */
+final class TestCompains {
+    private TestCompains() {
+    }
+
+    /**
+     * Creates an empty temporary directory to keep the compains in.
+     * @param name  the name of the directory, a prefix is added
+     * @return      the directory
+     * @throws IOException
+     */
+    static Path createRoot(String name) throws IOException {
+        return Files.createTempDirectory("character_manager-" + name);
+    }
+
+    /**
+     * Deletes the temporary directory with all the compains in it.
+     * @param root  the directory, nothing is done if null
+     * @throws IOException
+     */
+    static void deleteRoot(Path root) throws IOException {
+        if (root != null) Database.deleteTree(root);
+    }
+
+    /**
+     * Creates a character with the given dexterity and the default values of everything else.
+     * @param name      the name of the character
+     * @param dexterity the dexterity
+     * @return          the character
+     * @throws Exception
+     */
+    static Character character(String name, int dexterity) throws Exception {
+        Character character = new Character();
+        character.setName(name);
+        character.setStatValue("dexterity", dexterity);
+        return character;
+    }
+
+    /**
+     * Writes the character with the given dexterity.
+     * @param database  the compain
+     * @param name      the name of the character
+     * @param dexterity the dexterity
+     * @return          the new version of the character
+     * @throws Exception
+     */
+    static long write(Database database, String name, int dexterity) throws Exception {
+        return database.writeCharacter(character(name, dexterity), "test");
+    }
+
+    /**
+     * Assigns the character to the player, replacing all the other assignments.
+     * @param database  the compain
+     * @param player    the player
+     * @param character the name of the character
+     * @throws IOException
+     */
+    static void assign(Database database, String player, String character) throws IOException {
+        HashMap<String, String> players = new HashMap<>();
+        players.put(player, character);
+        database.writeCompainMetadata(players);
+    }
+
+    /**
+     * Serves the accepted connection with a client handler running as a daemon thread.
+     * @param accepted  the accepted connection
+     * @return          the started handler
+     * @throws IOException
+     */
+    static Server.ClinentHandler serve(Socket accepted) throws IOException {
+        // without it every response waits for a delayed ACK and the tests measure that
+        accepted.setTcpNoDelay(true);
+        Server.ClinentHandler handler = new Server.ClinentHandler(accepted);
+        handler.setDaemon(true);
+        handler.start();
+        return handler;
+    }
+
+    /**
+     * Represents a connection to a client handler running in-process: the client's end and the handler of the
+     * server's end.
+     */
+    static class Connection implements Closeable {
+        final Server.ClinentHandler handler;
+        final Socket socket;
+        final ObjectOutputStream out;
+        final ObjectInputStream in;
+
+        /**
+         * Connects to the listener and serves the accepted end with a new handler.
+         * @param listener  the listener on the loopback address, with no other pending connection
+         * @throws IOException
+         */
+        Connection(ServerSocket listener) throws IOException {
+            socket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+            socket.setTcpNoDelay(true);
+            handler = serve(listener.accept());
+            out = new ObjectOutputStream(socket.getOutputStream());
+            in = new ObjectInputStream(socket.getInputStream());
+        }
+
+        /**
+         * Sends the request and reads the response, skipping the chunks of a streamed one.
+         * @param request   the request to send
+         * @return          the response
+         * @throws IOException
+         * @throws ClassNotFoundException
+         */
+        Message send(Message request) throws IOException, ClassNotFoundException {
+            out.writeObject(request);
+            out.flush();
+            out.reset();
+            Message response;
+            do {
+                response = (Message) in.readObject();
+            } while (response.type == MessageType.CHUNK);
+            return response;
+        }
+
+        /**
+         * Sends the request and reads the response.
+         * @param type      the type of the request
+         * @param payload   the payload of the request
+         * @return          the response
+         * @throws IOException
+         * @throws ClassNotFoundException
+         */
+        Message send(MessageType type, String payload) throws IOException, ClassNotFoundException {
+            return send(new Message(type, payload));
+        }
+
+        /**
+         * Says goodbye to the handler and closes the connection.
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                out.writeObject(new Message(MessageType.CLOSE, ""));
+                out.flush();
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}